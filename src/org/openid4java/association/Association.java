@@ -4,7 +4,6 @@
 
 package org.openid4java.association;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -15,8 +14,9 @@ import javax.crypto.spec.SecretKeySpec;
 import java.security.NoSuchAlgorithmException;
 import java.security.GeneralSecurityException;
 import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
 
 /**
  * @author Marius Scurtescu, Johnny Bufu
@@ -35,11 +35,25 @@ public class Association implements Serializable
     public static final int HMAC_SHA1_KEYSIZE = 160;
     public static final int HMAC_SHA256_KEYSIZE = 256;
 
+    private static final long serialVersionUID = -1178702916712883757L;
+
+    /**
+     * Maximum number of idle signer engines kept per association.
+     */
+    private static final int SIGNER_POOL_SIZE = 8;
+
     private String _type;
     private String _handle;
     private SecretKey _macKey;
     private Date _expiry;
 
+    /**
+     * Idle signer engines, with their Mac initialized with the MAC key,
+     * reused across signatures; created on first use (also after
+     * deserialization).
+     */
+    private transient volatile Queue _signerPool;
+
     private Association(String type, String handle, SecretKey macKey, Date expiry)
     {
         if (DEBUG) _log.debug("Creating association, type: " + type +
@@ -239,56 +253,89 @@ public class Association implements Serializable
         return _expiry.before(now);
     }
 
-    protected byte[] sign(byte[] data) throws AssociationException
+    /**
+     * Gets a signer initialized with the association's MAC key, for
+     * computing or verifying a signature over data in key-value form.
+     * The signer is for exclusive use by the caller until it completes
+     * or is released.
+     */
+    public KeyValueSigner getSigner() throws AssociationException
     {
-        try
+        Queue pool = _signerPool;
+        KeyValueSigner.Engine engine = pool != null ?
+                (KeyValueSigner.Engine) pool.poll() : null;
+
+        if (engine == null)
         {
-            String algorithm = _macKey.getAlgorithm();
-            Mac mac = Mac.getInstance(algorithm);
+            try
+            {
+                Mac mac = Mac.getInstance(_macKey.getAlgorithm());
+
+                mac.init(_macKey);
+
+                engine = new KeyValueSigner.Engine(mac);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new AssociationException("Cannot sign!", e);
+            }
+        }
 
-            mac.init(_macKey);
+        return new KeyValueSigner(this, engine);
+    }
 
-            return mac.doFinal(data);
-        }
-        catch (GeneralSecurityException e)
+    /**
+     * Takes back the engine of a released signer, for reuse by subsequent
+     * signatures.
+     */
+    void releaseEngine(KeyValueSigner.Engine engine)
+    {
+        Queue pool = _signerPool;
+        if (pool == null)
         {
-            throw new AssociationException("Cannot sign!", e);
+            pool = new ConcurrentLinkedQueue();
+            _signerPool = pool;
         }
+
+        engine.getMac().reset();
+
+        // size() is linear, but the pool is small
+        if (pool.size() < SIGNER_POOL_SIZE)
+            pool.offer(engine);
     }
 
-    public String sign(String text) throws AssociationException
+    protected byte[] sign(byte[] data) throws AssociationException
     {
-        if (DEBUG) _log.debug("Computing signature for input data:\n" + text);
+        KeyValueSigner signer = getSigner();
 
         try
         {
-            String signature = new String(Base64.encodeBase64(sign(text.getBytes("utf-8"))), "utf-8");
-            if (DEBUG)
-                _log.debug("Calculated signature: " + signature);
-            return signature;
+            return signer.getMac().doFinal(data);
         }
-        catch (UnsupportedEncodingException e)
+        finally
         {
-            throw new AssociationException("Unsupported encoding for signed text.", e);
+            signer.release();
         }
     }
 
+    public String sign(String text) throws AssociationException
+    {
+        if (DEBUG) _log.debug("Computing signature for input data:\n" + text);
+
+        String signature = getSigner().appendText(text).signBase64();
+
+        if (DEBUG)
+            _log.debug("Calculated signature: " + signature);
+
+        return signature;
+    }
+
     public boolean verifySignature(String text, String signature) throws AssociationException
     {
         if (DEBUG) _log.debug("Verifying signature: " + signature);
-        // The Java String.equals() method returns on the first difference in
-        // its inputs, which allows a timing attack to recover signature values.
-        // This verification method will take the same amount of time for any
-        // two inputs of equal length.
-        String textSig = sign(text);
-        if (textSig.length() == 0 || textSig.length() != signature.length()) {
-          return false;
-        }
 
-        int result = 0;
-        for (int i = 0; i < textSig.length(); i++) {
-          result |= textSig.charAt(i) ^ signature.charAt(i);
-        }
-        return result == 0;
+        // compares the canonical encoding in constant time; String.equals()
+        // would return on the first difference, allowing a timing attack
+        return getSigner().appendText(text).verify(signature);
     }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.association;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size and time bounded cache of decoded associations, used by the caching
+ * association store decorators.
+ * <p>
+ * An entry is kept for at most the configured time-to-live, or until the
+ * association expires if that comes first. When the maximum size is
+ * reached the least recently used entry is evicted.
+ */
+public class AssociationCache
+{
+    private static Log _log = LogFactory.getLog(AssociationCache.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    /**
+     * Maximum number of associations kept in the cache. Default: 1000.
+     */
+    private int _maxSize = 1000;
+
+    /**
+     * Maximum time (in seconds) an association is kept. Default: 300s.
+     */
+    private int _ttl = 300;
+
+    /**
+     * Map of key -> CacheEntry, in access order.
+     */
+    private final Map _entries = new LinkedHashMap(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            if (size() > _maxSize)
+            {
+                _evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private long _hits;
+    private long _misses;
+    private long _evictions;
+    private long _expirations;
+
+    public AssociationCache()
+    {
+    }
+
+    public AssociationCache(int maxSize, int ttl)
+    {
+        setMaxSize(maxSize);
+        setTtl(ttl);
+    }
+
+    /**
+     * Returns the cached association, or null if none is cached or
+     * the cached one is no longer fresh.
+     */
+    public synchronized Association get(String key)
+    {
+        CacheEntry entry = (CacheEntry) _entries.get(key);
+
+        if (entry == null)
+        {
+            _misses++;
+            return null;
+        }
+
+        if (entry.getExpiry() <= System.currentTimeMillis())
+        {
+            _entries.remove(key);
+            _expirations++;
+            _misses++;
+            return null;
+        }
+
+        _hits++;
+        return entry.getAssociation();
+    }
+
+    public synchronized void put(String key, Association association)
+    {
+        if (_ttl <= 0 || _maxSize <= 0 || association == null) return;
+
+        long expiry = System.currentTimeMillis() + 1000L * _ttl;
+
+        if (association.getExpiry().getTime() < expiry)
+            expiry = association.getExpiry().getTime();
+
+        if (expiry <= System.currentTimeMillis())
+            return;
+
+        _entries.put(key, new CacheEntry(association, expiry));
+
+        if (DEBUG) _log.debug("Cached association: " + association.getHandle() +
+                              " key: " + key);
+    }
+
+    public synchronized void remove(String key)
+    {
+        _entries.remove(key);
+    }
+
+    public synchronized void clear()
+    {
+        _entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        return _entries.size();
+    }
+
+    public synchronized int getMaxSize()
+    {
+        return _maxSize;
+    }
+
+    /**
+     * Sets the maximum number of associations kept in the cache;
+     * 0 disables caching.
+     */
+    public synchronized void setMaxSize(int maxSize)
+    {
+        _maxSize = maxSize;
+
+        while (_entries.size() > _maxSize)
+        {
+            _entries.remove(_entries.keySet().iterator().next());
+            _evictions++;
+        }
+    }
+
+    public synchronized int getTtl()
+    {
+        return _ttl;
+    }
+
+    /**
+     * Sets the maximum time (in seconds) an association is kept;
+     * 0 disables caching.
+     */
+    public synchronized void setTtl(int ttl)
+    {
+        _ttl = ttl;
+    }
+
+    public synchronized long getHits()
+    {
+        return _hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return _misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return _evictions;
+    }
+
+    public synchronized long getExpirations()
+    {
+        return _expirations;
+    }
+
+    public String toString()
+    {
+        return "AssociationCache size: " + size() + " hits: " + getHits() +
+               " misses: " + getMisses() + " evictions: " + getEvictions() +
+               " expirations: " + getExpirations();
+    }
+
+    private static class CacheEntry
+    {
+        private final Association _association;
+        private final long _expiry;
+
+        public CacheEntry(Association association, long expiry)
+        {
+            _association = association;
+            _expiry = expiry;
+        }
+
+        public Association getAssociation()
+        {
+            return _association;
+        }
+
+        public long getExpiry()
+        {
+            return _expiry;
+        }
+    }
+}
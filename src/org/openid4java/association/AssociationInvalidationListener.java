@@ -0,0 +1,21 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.association;
+
+/**
+ * Notified when a caching association store removes an association, so
+ * that the removal can be propagated to the caches of the other nodes
+ * sharing the underlying store (which then call their store's
+ * <code>invalidate</code> method).
+ */
+public interface AssociationInvalidationListener
+{
+    /**
+     * @param opUrl     The OP endpoint for consumer associations,
+     *                  null for server associations.
+     * @param handle    The handle of the removed association.
+     */
+    public void invalidated(String opUrl, String handle);
+}
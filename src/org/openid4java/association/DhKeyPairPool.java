@@ -0,0 +1,280 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.association;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openid4java.util.DaemonThreadFactory;
+
+import javax.crypto.spec.DHParameterSpec;
+import java.security.KeyPair;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of pre-generated Diffie-Hellman key pairs, so that the modular
+ * exponentiation needed for a new key pair is not part of the association
+ * latency.
+ * <p>
+ * Key pairs are kept for the registered DHParameterSpecs (the default
+ * OpenID modulus is registered when the pool is created), and each one is
+ * handed out only once. When a pool drops below the low water mark it is
+ * refilled on a low priority background thread. Requests for parameters
+ * that are not registered, or for an empty pool, fall back to generating
+ * the key pair in the calling thread.
+ * <p>
+ * Enable with {@link DiffieHellmanSession#setKeyPairPool(DhKeyPairPool)}.
+ */
+public class DhKeyPairPool
+{
+    private static Log _log = LogFactory.getLog(DhKeyPairPool.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    /**
+     * Number of key pairs kept for each DHParameterSpec. Default: 50.
+     */
+    private final int _capacity;
+
+    /**
+     * Size below which a background refill is started. Default: capacity / 2.
+     */
+    private int _lowWaterMark;
+
+    /**
+     * Map of DhParameterKey -> BlockingQueue of KeyPairs.
+     */
+    private final Map _pools = new ConcurrentHashMap();
+
+    private final AtomicBoolean _refillPending = new AtomicBoolean();
+    private ExecutorService _refillExecutor;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _generated = new AtomicLong();
+
+    public DhKeyPairPool()
+    {
+        this(50);
+    }
+
+    public DhKeyPairPool(int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Invalid pool capacity: " + capacity);
+
+        _capacity = capacity;
+        _lowWaterMark = capacity / 2;
+
+        addParameter(DiffieHellmanSession.getDefaultParameter());
+    }
+
+    /**
+     * Registers a DHParameterSpec for which key pairs are pre-generated.
+     */
+    public void addParameter(DHParameterSpec dhSpec)
+    {
+        DhParameterKey key = new DhParameterKey(dhSpec);
+
+        synchronized (_pools)
+        {
+            if (! _pools.containsKey(key))
+                _pools.put(key, new ArrayBlockingQueue(_capacity));
+        }
+
+        scheduleRefill();
+    }
+
+    public void removeParameter(DHParameterSpec dhSpec)
+    {
+        _pools.remove(new DhParameterKey(dhSpec));
+    }
+
+    /**
+     * Gets a key pair for the DHParameterSpec, from the pool if one is
+     * available, or generated in the calling thread otherwise.
+     *
+     * @return  A key pair that has not been handed out before, or null
+     *          if the key pair cannot be generated.
+     */
+    public KeyPair getKeyPair(DHParameterSpec dhSpec)
+    {
+        BlockingQueue pool = (BlockingQueue) _pools.get(new DhParameterKey(dhSpec));
+
+        KeyPair keyPair = pool != null ? (KeyPair) pool.poll() : null;
+
+        if (pool != null && pool.size() <= _lowWaterMark)
+            scheduleRefill();
+
+        if (keyPair != null)
+        {
+            _hits.incrementAndGet();
+            return keyPair;
+        }
+
+        _misses.incrementAndGet();
+
+        if (DEBUG) _log.debug("No pre-generated DH key pair available, " +
+                              "generating one for modulus: " + dhSpec.getP());
+
+        return DiffieHellmanSession.generateKeyPair(dhSpec);
+    }
+
+    /**
+     * Fills up all the pools in the calling thread; stops early if the
+     * thread is interrupted, e.g. by {@link #shutdown()}.
+     */
+    public void fill()
+    {
+        Iterator iter = _pools.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry entry = (Map.Entry) iter.next();
+            DhParameterKey key = (DhParameterKey) entry.getKey();
+            BlockingQueue pool = (BlockingQueue) entry.getValue();
+
+            while (pool.remainingCapacity() > 0 && _pools.get(key) == pool &&
+                    ! Thread.currentThread().isInterrupted())
+            {
+                KeyPair keyPair = DiffieHellmanSession.generateKeyPair(key.getSpec());
+
+                if (keyPair == null)
+                {
+                    _log.error("Cannot pre-generate DH key pairs for modulus: " +
+                               key.getSpec().getP() + ", unregistering");
+                    _pools.remove(key);
+                    break;
+                }
+
+                if (! pool.offer(keyPair))
+                    break;
+
+                _generated.incrementAndGet();
+            }
+        }
+    }
+
+    private void scheduleRefill()
+    {
+        if (! _refillPending.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            getRefillExecutor().execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        fill();
+                    }
+                    catch (Throwable t)
+                    {
+                        _log.error("Error refilling DH key pair pool", t);
+                    }
+                    finally
+                    {
+                        _refillPending.set(false);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            _refillPending.set(false);
+        }
+    }
+
+    private synchronized ExecutorService getRefillExecutor()
+    {
+        if (_refillExecutor == null)
+            _refillExecutor = Executors.newSingleThreadExecutor(
+                    new DaemonThreadFactory("dh-keypair-pool", Thread.MIN_PRIORITY));
+
+        return _refillExecutor;
+    }
+
+    /**
+     * Stops the background refill thread; it is restarted on demand.
+     */
+    public synchronized void shutdown()
+    {
+        if (_refillExecutor != null)
+        {
+            _refillExecutor.shutdownNow();
+            _refillExecutor = null;
+        }
+        _refillPending.set(false);
+    }
+
+    public int getCapacity()
+    {
+        return _capacity;
+    }
+
+    public int getLowWaterMark()
+    {
+        return _lowWaterMark;
+    }
+
+    /**
+     * Sets the pool size at or below which a background refill is started;
+     * a value of 0 refills only pools that ran empty.
+     */
+    public void setLowWaterMark(int lowWaterMark)
+    {
+        _lowWaterMark = Math.min(lowWaterMark, _capacity);
+    }
+
+    /**
+     * Gets the number of ready key pairs for the DHParameterSpec,
+     * or -1 if the parameters are not registered.
+     */
+    public int getSize(DHParameterSpec dhSpec)
+    {
+        BlockingQueue pool = (BlockingQueue) _pools.get(new DhParameterKey(dhSpec));
+
+        return pool != null ? pool.size() : -1;
+    }
+
+    /**
+     * Number of key pairs served from the pool.
+     */
+    public long getHits()
+    {
+        return _hits.get();
+    }
+
+    /**
+     * Number of key pairs generated in the calling thread.
+     */
+    public long getMisses()
+    {
+        return _misses.get();
+    }
+
+    /**
+     * Number of key pairs pre-generated for the pool.
+     */
+    public long getGenerated()
+    {
+        return _generated.get();
+    }
+
+    public String toString()
+    {
+        return "DhKeyPairPool parameters: " + _pools.size() +
+               " capacity: " + _capacity + " hits: " + getHits() +
+               " misses: " + getMisses() + " generated: " + getGenerated();
+    }
+}
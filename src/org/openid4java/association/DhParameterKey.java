@@ -0,0 +1,47 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.association;
+
+import javax.crypto.spec.DHParameterSpec;
+import java.math.BigInteger;
+
+/**
+ * Map key for Diffie-Hellman parameters;
+ * DHParameterSpec doesn't implement equals() and hashCode().
+ */
+class DhParameterKey
+{
+    private final DHParameterSpec _spec;
+    private final BigInteger _p;
+    private final BigInteger _g;
+    private final int _l;
+
+    public DhParameterKey(DHParameterSpec spec)
+    {
+        _spec = spec;
+        _p = spec.getP();
+        _g = spec.getG();
+        _l = spec.getL();
+    }
+
+    public DHParameterSpec getSpec()
+    {
+        return _spec;
+    }
+
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (! (o instanceof DhParameterKey)) return false;
+
+        DhParameterKey that = (DhParameterKey) o;
+        return _l == that._l && _p.equals(that._p) && _g.equals(that._g);
+    }
+
+    public int hashCode()
+    {
+        return 31 * _p.hashCode() + _g.hashCode();
+    }
+}
@@ -40,6 +40,19 @@ public class DiffieHellmanSession
     public static final String H_ALGORITHM_SHA1 = "SHA-1";
     public static final String H_ALGORITHM_SHA256 = "SHA-256";
 
+    /**
+     * Optional pool of pre-generated key pairs; null (default) generates
+     * the key pair when the session is created.
+     */
+    private static volatile DhKeyPairPool _keyPairPool;
+
+    /**
+     * Optional fixed-base exponentiation engine used to generate key pairs
+     * for the parameters it has precomputed; null (default) uses the JCE
+     * key pair generator.
+     */
+    private static volatile FixedBaseDhEngine _engine;
+
     private AssociationSessionType _type;
     private DHParameterSpec _dhParameterSpec;
     private KeyPair _keyPair;
@@ -51,7 +64,9 @@ public class DiffieHellmanSession
     {
         _type            = type;
         _dhParameterSpec = dhParameterSpec;
-        _keyPair         = generateKeyPair(dhParameterSpec);
+        _keyPair         = _keyPairPool != null ?
+                _keyPairPool.getKeyPair(dhParameterSpec) :
+                generateKeyPair(dhParameterSpec);
 
         try
         {
@@ -64,6 +79,34 @@ public class DiffieHellmanSession
         }
     }
 
+    public static DhKeyPairPool getKeyPairPool()
+    {
+        return _keyPairPool;
+    }
+
+    /**
+     * Sets the pool from which all DH sessions take their key pairs;
+     * null disables pooling.
+     */
+    public static void setKeyPairPool(DhKeyPairPool keyPairPool)
+    {
+        _keyPairPool = keyPairPool;
+    }
+
+    public static FixedBaseDhEngine getEngine()
+    {
+        return _engine;
+    }
+
+    /**
+     * Sets the engine used to generate key pairs for its registered
+     * parameters; null disables it.
+     */
+    public static void setEngine(FixedBaseDhEngine engine)
+    {
+        _engine = engine;
+    }
+
     public String toString()
     {
         return _type + " base: " + _dhParameterSpec.getG()
@@ -138,6 +181,15 @@ public class DiffieHellmanSession
 
     protected static KeyPair generateKeyPair(DHParameterSpec dhSpec)
     {
+        FixedBaseDhEngine engine = _engine;
+        if (engine != null)
+        {
+            KeyPair keyPair = engine.generateKeyPair(dhSpec);
+
+            if (keyPair != null)
+                return keyPair;
+        }
+
         try
         {
             KeyPairGenerator keyGen = KeyPairGenerator.getInstance(ALGORITHM);
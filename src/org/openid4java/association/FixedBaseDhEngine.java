@@ -0,0 +1,264 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.association;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.DHPrivateKeySpec;
+import javax.crypto.spec.DHPublicKeySpec;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Diffie-Hellman key pair generator using fixed-base windowed
+ * exponentiation.
+ * <p>
+ * Since the generator and modulus are the same for all the key pairs of
+ * a DHParameterSpec, the powers g^(d * 2^(w*i)) mod p are precomputed once
+ * for every w-bit window i of the private exponent and every digit d.
+ * Computing a public key g^x mod p then takes one modular multiplication
+ * per window and no squarings; the products are reduced with Barrett
+ * reduction, which is cheaper than BigInteger.mod() for repeated
+ * reductions by the same modulus.
+ * <p>
+ * Tables are built for the registered DHParameterSpecs; the default OpenID
+ * modulus is registered when the engine is created. With the default window
+ * of 4 bits, the table for a 1024-bit modulus holds 4096 numbers,
+ * about 600KB.
+ * <p>
+ * Enable with {@link DiffieHellmanSession#setEngine(FixedBaseDhEngine)}.
+ */
+public class FixedBaseDhEngine
+{
+    private static Log _log = LogFactory.getLog(FixedBaseDhEngine.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+
+    /**
+     * Width (in bits) of the exponent windows. Default: 4.
+     */
+    private final int _windowBits;
+
+    /**
+     * Map of DhParameterKey -> Table.
+     */
+    private final Map _tables = new ConcurrentHashMap();
+
+    private final SecureRandom _random = new SecureRandom();
+
+    public FixedBaseDhEngine()
+    {
+        this(4);
+    }
+
+    public FixedBaseDhEngine(int windowBits)
+    {
+        if (windowBits < 1 || windowBits > 8)
+            throw new IllegalArgumentException("Invalid window size: " + windowBits);
+
+        _windowBits = windowBits;
+
+        addParameter(DiffieHellmanSession.getDefaultParameter());
+    }
+
+    public int getWindowBits()
+    {
+        return _windowBits;
+    }
+
+    /**
+     * Registers a DHParameterSpec and precomputes its table.
+     */
+    public void addParameter(DHParameterSpec dhSpec)
+    {
+        DhParameterKey key = new DhParameterKey(dhSpec);
+
+        if (! _tables.containsKey(key))
+            _tables.put(key, new Table(dhSpec, privateExponentBits(dhSpec), _windowBits));
+    }
+
+    public void removeParameter(DHParameterSpec dhSpec)
+    {
+        _tables.remove(new DhParameterKey(dhSpec));
+    }
+
+    public boolean hasParameter(DHParameterSpec dhSpec)
+    {
+        return _tables.containsKey(new DhParameterKey(dhSpec));
+    }
+
+    /**
+     * Computes g^x mod p with the precomputed table.
+     *
+     * @throws IllegalArgumentException if the parameters are not registered.
+     */
+    public BigInteger pow(DHParameterSpec dhSpec, BigInteger x)
+    {
+        Table table = (Table) _tables.get(new DhParameterKey(dhSpec));
+
+        if (table == null)
+            throw new IllegalArgumentException("DH parameters not registered");
+
+        return table.pow(x);
+    }
+
+    /**
+     * Generates a key pair for the DHParameterSpec.
+     *
+     * @return  The key pair, or null if the parameters are not registered
+     *          or the key objects cannot be created.
+     */
+    public KeyPair generateKeyPair(DHParameterSpec dhSpec)
+    {
+        Table table = (Table) _tables.get(new DhParameterKey(dhSpec));
+
+        if (table == null)
+            return null;
+
+        BigInteger p = dhSpec.getP();
+        BigInteger g = dhSpec.getG();
+
+        // 2 <= x <= p - 2
+        BigInteger x;
+        do
+        {
+            x = new BigInteger(table.getExponentBits(), _random);
+        }
+        while (x.compareTo(TWO) < 0 || x.compareTo(p.subtract(TWO)) > 0);
+
+        BigInteger y = table.pow(x);
+
+        try
+        {
+            KeyFactory keyFactory = KeyFactory.getInstance(DiffieHellmanSession.ALGORITHM);
+
+            return new KeyPair(
+                    keyFactory.generatePublic(new DHPublicKeySpec(y, p, g)),
+                    keyFactory.generatePrivate(new DHPrivateKeySpec(x, p, g)));
+        }
+        catch (GeneralSecurityException e)
+        {
+            _log.error("Cannot create DH key objects for modulus: " + p, e);
+            return null;
+        }
+    }
+
+    /**
+     * Length of the private exponents: the one set in the DHParameterSpec,
+     * or half the length of the modulus (as the JCE generator does for
+     * the default OpenID modulus).
+     */
+    private static int privateExponentBits(DHParameterSpec dhSpec)
+    {
+        int l = dhSpec.getL();
+
+        return l > 0 ? l : dhSpec.getP().bitLength() / 2;
+    }
+
+    private static class Table
+    {
+        private final BigInteger _p;
+        private final BigInteger _order;
+        private final int _exponentBits;
+        private final int _windowBits;
+
+        // Barrett reduction: k = bit length of p, mu = floor(2^(2k) / p)
+        private final int _k;
+        private final BigInteger _mu;
+
+        // _powers[i][d] = g^(d * 2^(windowBits * i)) mod p
+        private final BigInteger[][] _powers;
+
+        public Table(DHParameterSpec dhSpec, int exponentBits, int windowBits)
+        {
+            long start = System.currentTimeMillis();
+
+            _p = dhSpec.getP();
+            _order = _p.subtract(BigInteger.ONE);
+            _exponentBits = exponentBits;
+            _windowBits = windowBits;
+
+            _k = _p.bitLength();
+            _mu = BigInteger.ONE.shiftLeft(2 * _k).divide(_p);
+
+            // cover all the exponents below the modulus
+            int windows = (_k + windowBits - 1) / windowBits;
+            int digits = 1 << windowBits;
+
+            _powers = new BigInteger[windows][digits];
+
+            BigInteger base = dhSpec.getG().mod(_p);
+            for (int i = 0; i < windows; i++)
+            {
+                _powers[i][0] = BigInteger.ONE;
+                _powers[i][1] = base;
+                for (int d = 2; d < digits; d++)
+                    _powers[i][d] = multiply(_powers[i][d - 1], base);
+
+                // base^(2^windowBits) for the next window
+                base = multiply(_powers[i][digits - 1], base);
+            }
+
+            if (DEBUG) _log.debug("Built fixed-base table for modulus: " + _p +
+                    " windows: " + windows + " in " +
+                    (System.currentTimeMillis() - start) + " ms");
+        }
+
+        public int getExponentBits()
+        {
+            return _exponentBits;
+        }
+
+        public BigInteger pow(BigInteger x)
+        {
+            // g^x = g^(x mod (p-1)) for a prime modulus
+            if (x.signum() < 0 || x.bitLength() > _powers.length * _windowBits)
+                x = x.mod(_order);
+
+            BigInteger result = BigInteger.ONE;
+
+            int windows = Math.min(_powers.length,
+                    (x.bitLength() + _windowBits - 1) / _windowBits);
+
+            for (int i = 0; i < windows; i++)
+            {
+                int digit = 0;
+                int offset = i * _windowBits;
+                for (int b = _windowBits - 1; b >= 0; b--)
+                    digit = (digit << 1) | (x.testBit(offset + b) ? 1 : 0);
+
+                if (digit != 0)
+                    result = multiply(result, _powers[i][digit]);
+            }
+
+            return result;
+        }
+
+        /**
+         * Computes a * b mod p, for a, b < p, with a Barrett reduction
+         * instead of a division.
+         */
+        private BigInteger multiply(BigInteger a, BigInteger b)
+        {
+            BigInteger t = a.multiply(b);
+
+            BigInteger q = t.shiftRight(_k - 1).multiply(_mu).shiftRight(_k + 1);
+            BigInteger r = t.subtract(q.multiply(_p));
+
+            while (r.compareTo(_p) >= 0)
+                r = r.subtract(_p);
+
+            return r;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.association;
+
+import org.apache.commons.codec.binary.Base64;
+
+import javax.crypto.Mac;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Computes an association's signature over data in key-value form,
+ * encoding the "key:value\n" lines directly into the MAC, without building
+ * the signed text or its UTF-8 byte representation.
+ * <p>
+ * Obtained from {@link Association#getSigner()}; a signer must be used by
+ * a single thread, and is handed back to the association by
+ * {@link #sign()}, {@link #signBase64()}, {@link #verify(String)} or
+ * {@link #release()}, after which it must no longer be used.
+ * <p>
+ * Each call to {@link Association#getSigner()} returns a new signer; only
+ * the initialized Mac and the encoding buffer behind it are pooled, so
+ * releasing a signer more than once is harmless and cannot affect the
+ * signer another thread has obtained since.
+ */
+public class KeyValueSigner
+{
+    private static final int BUFFER_SIZE = 256;
+
+    private final Association _association;
+
+    // pooled state, null once the signer is released
+    private Engine _engine;
+
+    // UTF-8 encoding buffer, flushed into the MAC when full
+    private byte[] _buffer;
+    private int _count;
+
+    KeyValueSigner(Association association, Engine engine)
+    {
+        _association = association;
+        _engine = engine;
+        _buffer = engine.getBuffer();
+    }
+
+    Mac getMac()
+    {
+        checkActive();
+
+        return _engine.getMac();
+    }
+
+    /**
+     * Appends a "key:value\n" line to the signed data;
+     * a null value is signed as an empty value.
+     */
+    public KeyValueSigner append(String key, String value)
+    {
+        checkActive();
+
+        encode(key);
+        write((byte) ':');
+        if (value != null) encode(value);
+        write((byte) '\n');
+
+        return this;
+    }
+
+    /**
+     * Appends arbitrary text to the signed data.
+     */
+    public KeyValueSigner appendText(String text)
+    {
+        checkActive();
+
+        encode(text);
+
+        return this;
+    }
+
+    /**
+     * Completes the signature and releases the signer.
+     *
+     * @return  The raw MAC bytes.
+     */
+    public byte[] sign()
+    {
+        checkActive();
+
+        try
+        {
+            flush();
+            return _engine.getMac().doFinal();
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    /**
+     * Completes the signature and releases the signer.
+     *
+     * @return  The Base64 encoded signature, as used in OpenID messages.
+     */
+    public String signBase64() throws AssociationException
+    {
+        try
+        {
+            return new String(Base64.encodeBase64(sign()), "utf-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new AssociationException("Unsupported encoding for signature.", e);
+        }
+    }
+
+    /**
+     * Completes the signature, compares it with the supplied one and
+     * releases the signer. Only the canonical Base64 encoding of the
+     * signature is accepted; the comparison takes the same amount of time
+     * for any signature of the expected length.
+     *
+     * @param signature     Base64 encoded signature.
+     */
+    public boolean verify(String signature) throws AssociationException
+    {
+        String expected = signBase64();
+
+        if (signature == null || signature.length() != expected.length())
+            return false;
+
+        int result = 0;
+        for (int i = 0; i < expected.length(); i++)
+            result |= expected.charAt(i) ^ signature.charAt(i);
+
+        return result == 0;
+    }
+
+    /**
+     * Discards the signed data and hands the signer's state back to the
+     * association; does nothing if the signer was already released.
+     */
+    public void release()
+    {
+        Engine engine = _engine;
+        if (engine == null) return;
+
+        _engine = null;
+        _buffer = null;
+        _count = 0;
+        _association.releaseEngine(engine);
+    }
+
+    private void checkActive()
+    {
+        if (_engine == null)
+            throw new IllegalStateException("Signer already released.");
+    }
+
+    /**
+     * UTF-8 encodes the string into the buffer; unpaired surrogates are
+     * replaced with '?', as String.getBytes("utf-8") does.
+     */
+    private void encode(String s)
+    {
+        int length = s.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = s.charAt(i);
+
+            if (c < 0x80)
+            {
+                write((byte) c);
+            }
+            else if (c < 0x800)
+            {
+                write((byte) (0xC0 | (c >> 6)));
+                write((byte) (0x80 | (c & 0x3F)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                     Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                write((byte) (0xF0 | (cp >> 18)));
+                write((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                write((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                write((byte) (0x80 | (cp & 0x3F)));
+            }
+            else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c))
+            {
+                write((byte) '?');
+            }
+            else
+            {
+                write((byte) (0xE0 | (c >> 12)));
+                write((byte) (0x80 | ((c >> 6) & 0x3F)));
+                write((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void write(byte b)
+    {
+        if (_count == BUFFER_SIZE) flush();
+
+        _buffer[_count++] = b;
+    }
+
+    private void flush()
+    {
+        if (_count > 0)
+        {
+            _engine.getMac().update(_buffer, 0, _count);
+            _count = 0;
+        }
+    }
+
+    /**
+     * The reusable state of a signer: a Mac initialized with the
+     * association's MAC key and the encoding buffer.
+     */
+    static class Engine
+    {
+        private final Mac _mac;
+        private final byte[] _buffer = new byte[BUFFER_SIZE];
+
+        Engine(Mac mac)
+        {
+            _mac = mac;
+        }
+
+        Mac getMac()
+        {
+            return _mac;
+        }
+
+        byte[] getBuffer()
+        {
+            return _buffer;
+        }
+    }
+}
@@ -4,6 +4,7 @@
 
 package org.openid4java.consumer;
 
+import org.openid4java.util.InternetDateCodec;
 import org.openid4java.util.InternetDateFormat;
 
 import java.util.Date;
@@ -13,6 +14,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
+ * Base NonceVerifier that checks the nonce timestamps and delegates the
+ * replay check to subclasses.
+ * <p>
+ * The verifier does not lock; subclasses must make their replay checks
+ * safe for concurrent use.
+ *
  * @author Marius Scurtescu, Johnny Bufu
  */
 public abstract class AbstractNonceVerifier implements NonceVerifier
@@ -20,9 +27,13 @@ public abstract class AbstractNonceVerifier implements NonceVerifier
     private static Log _log = LogFactory.getLog(AbstractNonceVerifier.class);
     private static final boolean DEBUG = _log.isDebugEnabled();
 
+    /**
+     * @deprecated Not safe for concurrent use, since verifiers no longer
+     *             lock; use {@link InternetDateCodec} instead.
+     */
     protected static InternetDateFormat _dateFormat = new InternetDateFormat();
 
-    protected int _maxAgeSeconds;
+    protected volatile int _maxAgeSeconds;
 
     /**
      * @param maxAge maximum token age in seconds
@@ -45,23 +56,23 @@ public abstract class AbstractNonceVerifier implements NonceVerifier
     /**
      * Checks if nonce date is valid and if it is in the max age boundary. Other checks are delegated to {@link #seen(java.util.Date, String, String)}
      */
-    public synchronized int seen(String opUrl, String nonce)
+    public int seen(String opUrl, String nonce)
     {
         if (DEBUG) _log.debug("Verifying nonce: " + nonce);
 
-        Date now = new Date();
+        long now = System.currentTimeMillis();
 
         try
         {
-            Date nonceDate = _dateFormat.parse(nonce);
+            long nonceTime = InternetDateCodec.parseSeconds(nonce) * 1000;
 
-            if (isTooOld(now, nonceDate))
+            if (isTooOld(now, nonceTime))
             {
                 _log.warn("Nonce is too old: " + nonce);
                 return TOO_OLD;
             }
 
-            return seen(now, opUrl, nonce);
+            return seen(now, nonceTime, opUrl, nonce);
         }
         catch (ParseException e)
         {
@@ -78,10 +89,28 @@ public abstract class AbstractNonceVerifier implements NonceVerifier
      */
     protected abstract int seen(Date now, String opUrl, String nonce);
 
+    /**
+     * Checks if the nonce was seen before, given its already parsed timestamp.
+     * Delegates to {@link #seen(java.util.Date, String, String)} by default;
+     * subclasses can override it to avoid parsing the timestamp again.
+     *
+     * @param now The time used to check the max age boudary, in milliseconds.
+     * @param nonceTime The timestamp of the nonce, in milliseconds.
+     */
+    protected int seen(long now, long nonceTime, String opUrl, String nonce)
+    {
+        return seen(new Date(now), opUrl, nonce);
+    }
+
     protected boolean isTooOld(Date now, Date nonce)
     {
-        long age = now.getTime() - nonce.getTime();
+        return isTooOld(now.getTime(), nonce.getTime());
+    }
+
+    protected boolean isTooOld(long now, long nonceTime)
+    {
+        long age = now - nonceTime;
 
-        return age > _maxAgeSeconds * 1000;
+        return age > _maxAgeSeconds * 1000L;
     }
 }
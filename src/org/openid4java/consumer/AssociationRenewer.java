@@ -0,0 +1,437 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openid4java.association.Association;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.util.DaemonThreadFactory;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renews the associations established by a ConsumerManager in the
+ * background, before they enter the pre-expiry lock interval, so that
+ * authentication requests to active OpenID Providers do not wait for
+ * an association to be established.
+ * <p>
+ * An OP is tracked once an association is established with it, and its
+ * renewal is scheduled at a random time within the jitter window before
+ * {@link ConsumerManager#getPreExpiryAssocLockInterval()} starts, so that
+ * associations established together are not renewed together. At most one
+ * renewal per OP is pending at any time, and renewals of an OP are at least
+ * the retry interval apart. OPs whose associations do not outlast the
+ * pre-expiry lock interval plus the jitter window are not tracked. OPs
+ * that have not been used for authentication within the idle timeout are
+ * no longer renewed; a failed renewal is retried while the current
+ * association is usable.
+ * <p>
+ * A failed background renewal leaves the current association in place.
+ *
+ * @see ConsumerManager#setAssociationRenewer(AssociationRenewer)
+ */
+public class AssociationRenewer
+{
+    private static Log _log = LogFactory.getLog(AssociationRenewer.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    private ConsumerManager _consumerManager;
+
+    /**
+     * Map of OP endpoint -> TrackedOp.
+     */
+    private final Map _ops = new ConcurrentHashMap();
+
+    private final Random _random = new Random();
+
+    private ScheduledThreadPoolExecutor _executor;
+
+    /**
+     * Time window (in seconds) before the pre-expiry lock interval in which
+     * renewals are spread. Default: 120s.
+     */
+    private int _jitterWindow = 120;
+
+    /**
+     * Time (in seconds) after its last use that an OP stops being renewed.
+     * Default: 3600s.
+     */
+    private int _idleTimeout = 3600;
+
+    /**
+     * Delay (in seconds) before retrying a failed renewal. Default: 60s.
+     */
+    private int _retryInterval = 60;
+
+    /**
+     * Maximum number of tracked OPs. Default: 1000.
+     */
+    private int _maxOps = 1000;
+
+    /**
+     * Number of renewal threads. Default: 1.
+     */
+    private int _threads = 1;
+
+    private final AtomicLong _renewals = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+    private final AtomicLong _idleDropped = new AtomicLong();
+
+    /**
+     * Used by {@link ConsumerManager#setAssociationRenewer}.
+     */
+    synchronized void setConsumerManager(ConsumerManager consumerManager)
+    {
+        _consumerManager = consumerManager;
+    }
+
+    /**
+     * Records an authentication request to the OP.
+     */
+    void recordUse(DiscoveryInformation discovered)
+    {
+        TrackedOp op = (TrackedOp) _ops.get(discovered.getOPEndpoint().toString());
+
+        if (op != null)
+            op.touch();
+    }
+
+    /**
+     * Tracks the OP and schedules the renewal of the association just
+     * established with it.
+     */
+    void associated(DiscoveryInformation discovered, Association assoc)
+    {
+        String opEndpoint = discovered.getOPEndpoint().toString();
+
+        long now = System.currentTimeMillis();
+        long preExpiry = 1000L * _consumerManager.getPreExpiryAssocLockInterval();
+
+        // too short-lived to be renewed ahead of the lock interval; renewing
+        // would loop against the OP
+        if (assoc.getExpiry().getTime() - now <= preExpiry + 1000L * _jitterWindow)
+        {
+            if (DEBUG) _log.debug("Association too short-lived to renew: " + opEndpoint);
+
+            TrackedOp op = (TrackedOp) _ops.remove(opEndpoint);
+            if (op != null)
+            {
+                synchronized (op)
+                {
+                    op.cancel();
+                }
+            }
+            return;
+        }
+
+        TrackedOp op = (TrackedOp) _ops.get(opEndpoint);
+        if (op == null)
+        {
+            if (_ops.size() >= _maxOps)
+            {
+                if (DEBUG) _log.debug("Not tracking OP, limit reached: " + opEndpoint);
+                return;
+            }
+
+            op = new TrackedOp(discovered);
+            TrackedOp existing = (TrackedOp) ((ConcurrentHashMap) _ops)
+                    .putIfAbsent(opEndpoint, op);
+            if (existing != null) op = existing;
+        }
+
+        // renewals do not count as uses: only the first tracking and
+        // recordUse() keep the OP from going idle
+
+        long renewAt = assoc.getExpiry().getTime() - preExpiry
+                - (long) (_random.nextDouble() * 1000L * _jitterWindow);
+
+        schedule(op, Math.max(1000L * _retryInterval, renewAt - now));
+    }
+
+    private void schedule(final TrackedOp op, long delay)
+    {
+        ScheduledThreadPoolExecutor executor = getExecutor();
+
+        synchronized (op)
+        {
+            if (op.isRenewing())
+                return; // rescheduled when the renewal completes
+
+            op.cancel();
+            op.setFuture(executor.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    renew(op);
+                }
+            }, delay, TimeUnit.MILLISECONDS));
+        }
+
+        if (DEBUG) _log.debug("Scheduled association renewal for: " +
+                              op.getOpEndpoint() + " in " + delay + " ms");
+    }
+
+    private void renew(TrackedOp op)
+    {
+        String opEndpoint = op.getOpEndpoint();
+
+        if (System.currentTimeMillis() - op.getLastUse() > 1000L * _idleTimeout)
+        {
+            _ops.remove(opEndpoint);
+            _idleDropped.incrementAndGet();
+
+            if (DEBUG) _log.debug("OP idle, association not renewed: " + opEndpoint);
+            return;
+        }
+
+        synchronized (op)
+        {
+            op.setRenewing(true);
+        }
+
+        Association assoc = null;
+        try
+        {
+            assoc = _consumerManager.renewAssociation(op.getDiscovered());
+        }
+        catch (RuntimeException e)
+        {
+            _log.error("Error renewing association with: " + opEndpoint, e);
+        }
+        finally
+        {
+            synchronized (op)
+            {
+                op.setRenewing(false);
+            }
+        }
+
+        if (assoc != null)
+        {
+            _renewals.incrementAndGet();
+            _log.info("Renewed association with: " + opEndpoint +
+                      " handle: " + assoc.getHandle());
+
+            associated(op.getDiscovered(), assoc);
+        }
+        else
+        {
+            _failures.incrementAndGet();
+
+            Association current = _consumerManager.getAssociations().load(opEndpoint);
+            if (current != null && ! current.hasExpired() &&
+                    ! Association.FAILED_ASSOC_HANDLE.equals(current.getHandle()))
+            {
+                _log.warn("Association renewal failed, retrying in " +
+                          _retryInterval + "s: " + opEndpoint);
+
+                schedule(op, 1000L * _retryInterval);
+            }
+            else
+            {
+                _log.warn("Association renewal failed, no longer tracking: " + opEndpoint);
+                _ops.remove(opEndpoint);
+            }
+        }
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getExecutor()
+    {
+        if (_executor == null)
+            _executor = new ScheduledThreadPoolExecutor(_threads,
+                    new DaemonThreadFactory("AssociationRenewer", Thread.MIN_PRIORITY));
+
+        return _executor;
+    }
+
+    /**
+     * Cancels the pending renewals and stops the renewal threads;
+     * OPs are tracked again as new associations are established.
+     */
+    public synchronized void shutdown()
+    {
+        if (_executor != null)
+        {
+            _executor.shutdownNow();
+            _executor = null;
+        }
+
+        _ops.clear();
+    }
+
+    /**
+     * Gets the number of tracked OPs.
+     */
+    public int getTrackedCount()
+    {
+        return _ops.size();
+    }
+
+    public int getJitterWindow()
+    {
+        return _jitterWindow;
+    }
+
+    /**
+     * Sets the time window (in seconds) before the pre-expiry lock interval
+     * in which renewals are randomly spread.
+     * <p>
+     * Default: 120s.
+     */
+    public void setJitterWindow(int jitterWindow)
+    {
+        _jitterWindow = jitterWindow;
+    }
+
+    public int getIdleTimeout()
+    {
+        return _idleTimeout;
+    }
+
+    /**
+     * Sets the time (in seconds) after its last use that an OP is no longer
+     * renewed.
+     * <p>
+     * Default: 3600s.
+     */
+    public void setIdleTimeout(int idleTimeout)
+    {
+        _idleTimeout = idleTimeout;
+    }
+
+    public int getRetryInterval()
+    {
+        return _retryInterval;
+    }
+
+    /**
+     * Sets the delay (in seconds) before a failed renewal is retried; also
+     * the minimum time between two renewals of an OP.
+     * <p>
+     * Default: 60s.
+     */
+    public void setRetryInterval(int retryInterval)
+    {
+        _retryInterval = retryInterval;
+    }
+
+    public int getMaxOps()
+    {
+        return _maxOps;
+    }
+
+    /**
+     * Sets the maximum number of OPs whose associations are renewed.
+     * <p>
+     * Default: 1000.
+     */
+    public void setMaxOps(int maxOps)
+    {
+        _maxOps = maxOps;
+    }
+
+    public int getThreads()
+    {
+        return _threads;
+    }
+
+    /**
+     * Sets the number of renewal threads; takes effect when the threads
+     * are (re)started.
+     * <p>
+     * Default: 1.
+     */
+    public void setThreads(int threads)
+    {
+        _threads = threads;
+    }
+
+    /**
+     * Gets the number of successful renewals.
+     */
+    public long getRenewalCount()
+    {
+        return _renewals.get();
+    }
+
+    /**
+     * Gets the number of failed renewals.
+     */
+    public long getFailureCount()
+    {
+        return _failures.get();
+    }
+
+    /**
+     * Gets the number of OPs dropped because they were idle.
+     */
+    public long getIdleCount()
+    {
+        return _idleDropped.get();
+    }
+
+    private static class TrackedOp
+    {
+        private final DiscoveryInformation _discovered;
+        private final String _opEndpoint;
+        private volatile long _lastUse;
+        private ScheduledFuture _future;
+        private boolean _renewing;
+
+        public TrackedOp(DiscoveryInformation discovered)
+        {
+            _discovered = discovered;
+            _opEndpoint = discovered.getOPEndpoint().toString();
+            _lastUse = System.currentTimeMillis();
+        }
+
+        public DiscoveryInformation getDiscovered()
+        {
+            return _discovered;
+        }
+
+        public String getOpEndpoint()
+        {
+            return _opEndpoint;
+        }
+
+        public long getLastUse()
+        {
+            return _lastUse;
+        }
+
+        public void touch()
+        {
+            _lastUse = System.currentTimeMillis();
+        }
+
+        public void setFuture(ScheduledFuture future)
+        {
+            _future = future;
+        }
+
+        public void cancel()
+        {
+            if (_future != null) _future.cancel(false);
+        }
+
+        public boolean isRenewing()
+        {
+            return _renewing;
+        }
+
+        public void setRenewing(boolean renewing)
+        {
+            _renewing = renewing;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NonceStore decorator that sends concurrent put-if-absent calls to the
+ * underlying store in batches.
+ * <p>
+ * Calls are queued; while a batch is in flight, the calls arriving meanwhile
+ * accumulate, and the first of them to go next sends all the queued calls
+ * (up to the maximum batch size) with a single
+ * {@link NonceStore#putIfAbsent(String[], int[])}. Calls never wait for a
+ * batch to fill up, so a lone call goes out at once.
+ */
+public class BatchingNonceStore implements NonceStore
+{
+    private final NonceStore _store;
+
+    /**
+     * Maximum number of keys sent in one batch. Default: 100.
+     */
+    private volatile int _maxBatchSize = 100;
+
+    private final ConcurrentLinkedQueue _queue = new ConcurrentLinkedQueue();
+
+    private final Object _flushLock = new Object();
+
+    private final AtomicLong _batches = new AtomicLong();
+    private final AtomicLong _requests = new AtomicLong();
+
+    public BatchingNonceStore(NonceStore store)
+    {
+        _store = store;
+    }
+
+    public NonceStore getStore()
+    {
+        return _store;
+    }
+
+    public int getMaxBatchSize()
+    {
+        return _maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException(
+                    "Invalid maximum batch size: " + maxBatchSize);
+
+        _maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Gets the number of batches sent to the underlying store.
+     */
+    public long getBatches()
+    {
+        return _batches.get();
+    }
+
+    /**
+     * Gets the number of keys sent in batches to the underlying store.
+     */
+    public long getRequests()
+    {
+        return _requests.get();
+    }
+
+    public boolean putIfAbsent(String key, int ttl) throws IOException
+    {
+        Request request = new Request(key, ttl);
+
+        _queue.add(request);
+
+        synchronized (_flushLock)
+        {
+            while (! request.isDone())
+                flush();
+        }
+
+        return request.getResult();
+    }
+
+    public boolean[] putIfAbsent(String[] keys, int[] ttls) throws IOException
+    {
+        return _store.putIfAbsent(keys, ttls);
+    }
+
+    private void flush()
+    {
+        int maxBatchSize = _maxBatchSize;
+        List batch = new ArrayList();
+
+        Request request;
+        while (batch.size() < maxBatchSize &&
+                (request = (Request) _queue.poll()) != null)
+            batch.add(request);
+
+        if (batch.isEmpty()) return;
+
+        String[] keys = new String[batch.size()];
+        int[] ttls = new int[batch.size()];
+        for (int i = 0; i < keys.length; i++)
+        {
+            request = (Request) batch.get(i);
+            keys[i] = request.getKey();
+            ttls[i] = request.getTtl();
+        }
+
+        _batches.incrementAndGet();
+        _requests.addAndGet(keys.length);
+
+        try
+        {
+            boolean[] results = _store.putIfAbsent(keys, ttls);
+
+            for (int i = 0; i < keys.length; i++)
+                ((Request) batch.get(i)).setResult(results[i]);
+        }
+        catch (IOException e)
+        {
+            for (int i = 0; i < keys.length; i++)
+                ((Request) batch.get(i)).setFailure(e);
+        }
+        catch (RuntimeException e)
+        {
+            IOException failure = new IOException("Nonce store failure: " + e);
+            failure.initCause(e);
+
+            for (int i = 0; i < keys.length; i++)
+                ((Request) batch.get(i)).setFailure(failure);
+        }
+        finally
+        {
+            // complete the whole batch even if the store threw an Error or
+            // returned too few results; the waiting callers would spin
+            // on the flush lock otherwise
+            IOException failure = null;
+
+            for (int i = 0; i < keys.length; i++)
+            {
+                request = (Request) batch.get(i);
+
+                if (! request.isDone())
+                {
+                    if (failure == null)
+                        failure = new IOException("Nonce store failure");
+
+                    request.setFailure(failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * A queued call; updated and read under the flush lock.
+     */
+    private static class Request
+    {
+        private final String _key;
+        private final int _ttl;
+
+        private boolean _done;
+        private boolean _result;
+        private IOException _failure;
+
+        public Request(String key, int ttl)
+        {
+            _key = key;
+            _ttl = ttl;
+        }
+
+        public String getKey()
+        {
+            return _key;
+        }
+
+        public int getTtl()
+        {
+            return _ttl;
+        }
+
+        public boolean isDone()
+        {
+            return _done;
+        }
+
+        public void setResult(boolean result)
+        {
+            _result = result;
+            _done = true;
+        }
+
+        public void setFailure(IOException failure)
+        {
+            _failure = failure;
+            _done = true;
+        }
+
+        public boolean getResult() throws IOException
+        {
+            if (_failure != null)
+                throw _failure;
+
+            return _result;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationCache;
+import org.openid4java.association.AssociationInvalidationListener;
+
+/**
+ * ConsumerAssociationStore decorator that keeps the decoded associations
+ * in memory, so that loading an association that was recently saved or
+ * loaded does not query the underlying (e.g. JDBC) store.
+ * <p>
+ * Two caches are kept: associations by OP and handle, and the latest
+ * association for each OP. Associations are cached for the cache's
+ * time-to-live, bounded by their expiry, and dropped when removed through
+ * this store. When several nodes share the underlying store, removals can
+ * be propagated with an {@link AssociationInvalidationListener} that calls
+ * {@link #invalidate(String, String)} on the other nodes.
+ */
+public class CachingConsumerAssociationStore implements ConsumerAssociationStore
+{
+    private final ConsumerAssociationStore _store;
+
+    /**
+     * Associations by "opUrl handle".
+     */
+    private final AssociationCache _handleCache;
+
+    /**
+     * Latest association by opUrl.
+     */
+    private final AssociationCache _latestCache;
+
+    private AssociationInvalidationListener _invalidationListener;
+
+    public CachingConsumerAssociationStore(ConsumerAssociationStore store)
+    {
+        this(store, new AssociationCache(), new AssociationCache());
+    }
+
+    public CachingConsumerAssociationStore(ConsumerAssociationStore store,
+                                           AssociationCache handleCache,
+                                           AssociationCache latestCache)
+    {
+        _store = store;
+        _handleCache = handleCache;
+        _latestCache = latestCache;
+    }
+
+    public ConsumerAssociationStore getStore()
+    {
+        return _store;
+    }
+
+    public AssociationCache getHandleCache()
+    {
+        return _handleCache;
+    }
+
+    public AssociationCache getLatestCache()
+    {
+        return _latestCache;
+    }
+
+    public AssociationInvalidationListener getInvalidationListener()
+    {
+        return _invalidationListener;
+    }
+
+    /**
+     * Sets the listener notified when an association is removed through
+     * this store. Default: null.
+     */
+    public void setInvalidationListener(AssociationInvalidationListener listener)
+    {
+        _invalidationListener = listener;
+    }
+
+    public void save(String opUrl, Association association)
+    {
+        _store.save(opUrl, association);
+
+        _handleCache.put(handleKey(opUrl, association.getHandle()), association);
+
+        putLatest(opUrl, association);
+    }
+
+    public Association load(String opUrl, String handle)
+    {
+        String key = handleKey(opUrl, handle);
+
+        Association association = _handleCache.get(key);
+
+        if (association == null)
+        {
+            association = _store.load(opUrl, handle);
+
+            if (association != null)
+                _handleCache.put(key, association);
+        }
+
+        return association;
+    }
+
+    public Association load(String opUrl)
+    {
+        Association association = _latestCache.get(opUrl);
+
+        if (association == null)
+        {
+            association = _store.load(opUrl);
+
+            if (association != null)
+                putLatest(opUrl, association);
+        }
+
+        return association;
+    }
+
+    /**
+     * Caches the association as the latest one of the OP, unless the cached
+     * one expires later; a load racing with a save thus cannot replace the
+     * newly saved association with the one it read before.
+     */
+    private void putLatest(String opUrl, Association association)
+    {
+        synchronized (_latestCache)
+        {
+            Association latest = _latestCache.get(opUrl);
+
+            if (latest == null ||
+                    ! association.getExpiry().before(latest.getExpiry()))
+                _latestCache.put(opUrl, association);
+        }
+    }
+
+    public void remove(String opUrl, String handle)
+    {
+        invalidate(opUrl, handle);
+
+        _store.remove(opUrl, handle);
+
+        AssociationInvalidationListener listener = _invalidationListener;
+        if (listener != null)
+            listener.invalidated(opUrl, handle);
+    }
+
+    /**
+     * Drops the association from the caches only; used to apply removals
+     * done on other nodes.
+     */
+    public void invalidate(String opUrl, String handle)
+    {
+        _handleCache.remove(handleKey(opUrl, handle));
+
+        synchronized (_latestCache)
+        {
+            Association latest = _latestCache.get(opUrl);
+
+            if (latest != null && latest.getHandle().equals(handle))
+                _latestCache.remove(opUrl);
+        }
+    }
+
+    private static String handleKey(String opUrl, String handle)
+    {
+        return opUrl + " " + handle;
+    }
+}
@@ -36,6 +36,10 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages OpenID communications with an OpenID Provider (Server).
@@ -111,6 +115,12 @@ public class ConsumerManager
      */
     private DHParameterSpec _dhParams = DiffieHellmanSession.getDefaultParameter();
 
+    /**
+     * Map of AssociationSessionType -> Boolean, caching whether the JCE
+     * supports the session's DH and HMAC algorithms.
+     */
+    private final Map _supportedAssocTypes = new ConcurrentHashMap();
+
     /**
      * Timeout (in seconds) for keeping track of failed association attempts.
      * Default 5 minutes.
@@ -125,6 +135,32 @@ public class ConsumerManager
      */
     private int _preExpiryAssocLockInterval = 300;
 
+    /**
+     * Optional background renewal of the established associations.
+     * Default: null, associations are renewed by authentication requests.
+     */
+    private AssociationRenewer _associationRenewer;
+
+    /**
+     * Serves discover() from warmed results when set. Default: null.
+     */
+    private DiscoveryWarmer _discoveryWarmer;
+
+    /**
+     * Map of OP endpoint -> CountDownLatch, for the association attempts in
+     * progress; concurrent attempts with the same OP wait for the first one.
+     */
+    private final ConcurrentHashMap _pendingAssociations = new ConcurrentHashMap();
+
+    /**
+     * Maximum time (in milliseconds) to wait for an association attempt
+     * in progress in another thread. Default: 10000ms.
+     */
+    private long _assocWaitTimeout = 10000;
+
+    private final AtomicLong _suppressedAssocAttempts = new AtomicLong();
+    private final AtomicLong _assocWaitTimeouts = new AtomicLong();
+
 
     // --- authentication preferences ---
 
@@ -463,6 +499,67 @@ public class ConsumerManager
         this._preExpiryAssocLockInterval = preExpiryAssocLockInterval;
     }
 
+    /**
+     * Gets the maximum time (in milliseconds) to wait for an association
+     * attempt with the same OP in progress in another thread.
+     * Default: 10000ms.
+     */
+    public long getAssocWaitTimeout()
+    {
+        return _assocWaitTimeout;
+    }
+
+    /**
+     * Sets the maximum time (in milliseconds) to wait for an association
+     * attempt with the same OP in progress in another thread; after that
+     * the authentication continues without an association (stateless).
+     * Default: 10000ms.
+     */
+    public void setAssocWaitTimeout(long assocWaitTimeout)
+    {
+        _assocWaitTimeout = assocWaitTimeout;
+    }
+
+    /**
+     * Gets the number of association attempts not performed because an
+     * attempt with the same OP was already in progress.
+     */
+    public long getSuppressedAssocAttempts()
+    {
+        return _suppressedAssocAttempts.get();
+    }
+
+    /**
+     * Gets the number of times the wait for an association attempt in
+     * progress timed out.
+     */
+    public long getAssocWaitTimeouts()
+    {
+        return _assocWaitTimeouts.get();
+    }
+
+    public AssociationRenewer getAssociationRenewer()
+    {
+        return _associationRenewer;
+    }
+
+    /**
+     * Configures the background renewal of the associations established
+     * with OpenID Providers; null (default) disables it.
+     *
+     * @see AssociationRenewer
+     */
+    public void setAssociationRenewer(AssociationRenewer associationRenewer)
+    {
+        if (_associationRenewer != null && _associationRenewer != associationRenewer)
+            _associationRenewer.shutdown();
+
+        _associationRenewer = associationRenewer;
+
+        if (associationRenewer != null)
+            associationRenewer.setConsumerManager(this);
+    }
+
     /**
      * Configures the authentication request mode:
      * checkid_immediate (true) or checkid_setup (false).
@@ -524,8 +621,9 @@ public class ConsumerManager
     }
 
     /**
-     * Does discovery on an identifier. It delegates the call to its
-     * discovery manager.
+     * Does discovery on an identifier. It delegates the call to the
+     * discovery warmer, if one is configured, or else to its discovery
+     * manager.
      *
      * @return      A List of {@link DiscoveryInformation} objects.
      *              The list could be empty if no discovery information can
@@ -535,9 +633,37 @@ public class ConsumerManager
      */
     public List discover(String identifier) throws DiscoveryException
     {
+        DiscoveryWarmer warmer = _discoveryWarmer;
+
+        if (warmer != null)
+            return warmer.discover(identifier);
+
         return _discovery.discover(identifier);
     }
 
+    public DiscoveryWarmer getDiscoveryWarmer()
+    {
+        return _discoveryWarmer;
+    }
+
+    /**
+     * Configures a discovery warmer, which then serves {@link
+     * #discover(String)} with its warmed results and tracks the most used
+     * identifiers; null (default) disables it. The warmer must have been
+     * created for this ConsumerManager; starting and stopping it is left
+     * to the caller.
+     *
+     * @see DiscoveryWarmer
+     */
+    public void setDiscoveryWarmer(DiscoveryWarmer discoveryWarmer)
+    {
+        if (discoveryWarmer != null && discoveryWarmer.getConsumerManager() != this)
+            throw new IllegalArgumentException(
+                    "Discovery warmer created for another ConsumerManager");
+
+        _discoveryWarmer = discoveryWarmer;
+    }
+
     /**
      * Configures a private association store for signing consumer nonces.
      * <p>
@@ -655,7 +781,7 @@ public class ConsumerManager
         while (itr.hasNext() && attemptsLeft > 0)
         {
             discovered = (DiscoveryInformation) itr.next();
-            attemptsLeft -= associate(discovered, attemptsLeft);
+            attemptsLeft -= associate(discovered, attemptsLeft, false);
 
             // check if an association was established
             assoc = _associations.load(discovered.getOPEndpoint().toString());
@@ -689,9 +815,13 @@ public class ConsumerManager
      * that is not near expiration, will not construct new association.
      *
      * @param discovered    DiscoveryInformation obtained during the discovery
+     * @param renew         If true, establishes a new association even if
+     *                      the existing one is not near expiration, and
+     *                      does not record a failed attempt.
      * @return              The number of association attempts performed.
      */
-    private int associate(DiscoveryInformation discovered, int maxAttempts)
+    private int associate(DiscoveryInformation discovered, int maxAttempts,
+                          boolean renew)
     {
         if (_maxAssocAttempts == 0) return 0; // associations disabled
 
@@ -701,15 +831,100 @@ public class ConsumerManager
         _log.info("Trying to associate with " + opEndpoint +
                 " attempts left: " + maxAttempts);
 
+        if (_associationRenewer != null && ! renew)
+            _associationRenewer.recordUse(discovered);
+
         // check if there's an already established association
+        if (! renew && hasUsableAssociation(opEndpoint))
+            return 0;
+
+        // only one association attempt per OP at a time; other threads
+        // wait for its outcome, or go on without an association
+        CountDownLatch attempt = new CountDownLatch(1);
+        CountDownLatch pending = (CountDownLatch)
+                _pendingAssociations.putIfAbsent(opEndpoint, attempt);
+
+        if (pending != null)
+        {
+            _suppressedAssocAttempts.incrementAndGet();
+
+            // keep using the current association while it is renewed;
+            // only wait if there is no valid one at all
+            if (! renew && ! hasValidAssociation(opEndpoint))
+            {
+                if (DEBUG) _log.debug("Association with " + opEndpoint +
+                                      " in progress, waiting for its outcome");
+
+                awaitAssociation(pending, opEndpoint);
+            }
+
+            return 0;
+        }
+
+        try
+        {
+            // may have been established while acquiring the attempt
+            if (! renew && hasUsableAssociation(opEndpoint))
+                return 0;
+
+            return establishAssociation(discovered, maxAttempts, renew);
+        }
+        finally
+        {
+            _pendingAssociations.remove(opEndpoint, attempt);
+            attempt.countDown();
+        }
+    }
+
+    private boolean hasUsableAssociation(String opEndpoint)
+    {
         Association a = _associations.load(opEndpoint);
         if ( a != null &&
                 (Association.FAILED_ASSOC_HANDLE.equals(a.getHandle()) ||
                 a.getExpiry().getTime() - System.currentTimeMillis() > _preExpiryAssocLockInterval * 1000) )
         {
             _log.info("Found an existing association: " + a.getHandle());
-            return 0;
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean hasValidAssociation(String opEndpoint)
+    {
+        Association a = _associations.load(opEndpoint);
+
+        return a != null && ! a.hasExpired() &&
+                ! Association.FAILED_ASSOC_HANDLE.equals(a.getHandle());
+    }
+
+    private void awaitAssociation(CountDownLatch pending, String opEndpoint)
+    {
+        try
+        {
+            if (! pending.await(_assocWaitTimeout, TimeUnit.MILLISECONDS))
+            {
+                _assocWaitTimeouts.incrementAndGet();
+                _log.warn("Timed out waiting for the association with " +
+                          opEndpoint + ", continuing without one");
+            }
         }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Performs the association attempts with the OP.
+     *
+     * @return              The number of association attempts performed.
+     */
+    private int establishAssociation(DiscoveryInformation discovered,
+                                     int maxAttempts, boolean renew)
+    {
+        URL opUrl = discovered.getOPEndpoint();
+        String opEndpoint = opUrl.toString();
 
         String handle = Association.FAILED_ASSOC_HANDLE;
 
@@ -734,43 +949,52 @@ public class ConsumerManager
             requests.put(_prefAssocSessEnc, null);
         }
 
-        // build a stack of Association Request objects
-        // and keep only the allowed by the configured preferences
-        // the most-desirable entry is always at the top of the stack
-        Stack reqStack = new Stack();
+        // build a stack of association types allowed by the configured
+        // preferences; the requests (and DH sessions) are created only when
+        // a type is tried; the most-desirable entry is always at the top
+        Stack typeStack = new Stack();
         Iterator iter = requests.keySet().iterator();
         while(iter.hasNext())
         {
             AssociationSessionType type = (AssociationSessionType) iter.next();
 
-            // create the appropriate Association Request
-            AssociationRequest newReq = createAssociationRequest(type, opUrl);
-            if (newReq != null) reqStack.push(newReq);
+            if (isEligible(type, opUrl))
+                typeStack.push(type);
+            else
+                _log.warn("Could not create association of type: " + type);
         }
 
         // perform the association attempts
         int attemptsLeft = maxAttempts;
         LinkedHashMap alreadyTried = new LinkedHashMap();
-        while (attemptsLeft > 0 && ! reqStack.empty())
+        while (attemptsLeft > 0 && ! typeStack.empty())
         {
             try
             {
-                attemptsLeft--;
-                AssociationRequest assocReq =
-                        (AssociationRequest) reqStack.pop();
+                AssociationSessionType type =
+                        (AssociationSessionType) typeStack.pop();
 
                 if (DEBUG)
-                    _log.debug("Trying association type: " + assocReq.getType());
+                    _log.debug("Trying association type: " + type);
 
                 // was this association / session type attempted already?
-                if (alreadyTried.keySet().contains(assocReq.getType()))
+                if (alreadyTried.keySet().contains(type))
                 {
                     if (DEBUG) _log.debug("Already tried.");
+                    attemptsLeft--;
                     continue;
                 }
 
+                // create the appropriate Association Request
+                AssociationRequest assocReq =
+                        createAssociationRequest(type, opUrl);
+
+                if (assocReq == null) continue;
+
+                attemptsLeft--;
+
                 // mark the current request type as already tried
-                alreadyTried.put(assocReq.getType(), null);
+                alreadyTried.put(type, null);
 
                 ParameterList respParams = new ParameterList();
                 int status = call(opEndpoint, assocReq, respParams);
@@ -793,12 +1017,16 @@ public class ConsumerManager
                             // v1 OPs may return a success no-encryption resp
                             ( ! discovered.isVersion2() &&
                               respType.getHAlgorithm() == null &&
-                              createAssociationRequest(respType,opUrl) != null))
+                              isEligible(respType, opUrl)))
                     {
                         // store the association and do no try alternatives
                         _associations.save(opEndpoint, assoc);
                         _log.info("Associated with " + discovered.getOPEndpoint()
                                 + " handle: " + assoc.getHandle());
+
+                        if (_associationRenewer != null)
+                            _associationRenewer.associated(discovered, assoc);
+
                         break;
                     }
                     else
@@ -822,18 +1050,16 @@ public class ConsumerManager
                     if (alreadyTried.keySet().contains(opType))
                         continue;
 
-                    // create the appropriate Association Request
-                    AssociationRequest newReq =
-                            createAssociationRequest(opType, opUrl);
-
-                    if (newReq != null)
+                    if (isEligible(opType, opUrl))
                     {
                         if (DEBUG) _log.debug("Retrieved association type " +
                                               "from the association error: " +
-                                              newReq.getType());
+                                              opType);
 
-                        reqStack.push(newReq);
+                        typeStack.push(opType);
                     }
+                    else
+                        _log.warn("Could not create association of type: " + opType);
                 }
             }
             catch (OpenIDException e)
@@ -845,13 +1071,68 @@ public class ConsumerManager
         // store OPs with which an association could not be established
         // so that association attempts are not performed with each auth request
         if (Association.FAILED_ASSOC_HANDLE.equals(handle)
-                && _failedAssocExpire > 0)
+                && _failedAssocExpire > 0 && ! renew)
             _associations.save(opEndpoint,
                     Association.getFailedAssociation(_failedAssocExpire));
 
         return maxAttempts - attemptsLeft;
     }
 
+    /**
+     * Establishes a new association with the OP, regardless of the expiry
+     * of the existing one; used for background renewals.
+     *
+     * @return  The new association, or null if none could be established.
+     */
+    Association renewAssociation(DiscoveryInformation discovered)
+    {
+        String opEndpoint = discovered.getOPEndpoint().toString();
+
+        Association before = _associations.load(opEndpoint);
+
+        associate(discovered, _maxAssocAttempts, true);
+
+        Association after = _associations.load(opEndpoint);
+
+        if (after == null ||
+                Association.FAILED_ASSOC_HANDLE.equals(after.getHandle()) ||
+                (before != null && before.getHandle().equals(after.getHandle())))
+            return null;
+
+        return after;
+    }
+
+    /**
+     * Checks if an association of the specified session and association type
+     * can be established with the OP, taking into account the user
+     * preferences (minimum encryption level) and the algorithms supported
+     * by the JCE.
+     *
+     * @param type      The type of the association (session and association)
+     * @param opUrl     The OP with which the association would be established
+     */
+    private boolean isEligible(AssociationSessionType type, URL opUrl)
+    {
+        if (_minAssocSessEnc.isBetter(type))
+            return false;
+
+        if (type.getHAlgorithm() == null && // no-enc sess
+                ! opUrl.getProtocol().equals("https"))
+            return false;
+
+        Boolean supported = (Boolean) _supportedAssocTypes.get(type);
+        if (supported == null)
+        {
+            supported = Boolean.valueOf(
+                    DiffieHellmanSession.isDhSupported(type) &&
+                    Association.isHmacSupported(type.getAssociationType()));
+
+            _supportedAssocTypes.put(type, supported);
+        }
+
+        return supported.booleanValue();
+    }
+
     /**
      * Constructs an Association Request message of the specified session and
      * association type, taking into account the user preferences (encryption
@@ -868,28 +1149,17 @@ public class ConsumerManager
     {
         try
         {
-            if (_minAssocSessEnc.isBetter(type))
-                return null;
-
-            AssociationRequest assocReq = null;
-
-            DiffieHellmanSession dhSess;
-            if (type.getHAlgorithm() != null) // DH session
+            if (! isEligible(type, opUrl))
             {
-                dhSess = DiffieHellmanSession.create(type, _dhParams);
-                if (DiffieHellmanSession.isDhSupported(type)
-                    && Association.isHmacSupported(type.getAssociationType()))
-                    assocReq = AssociationRequest.createAssociationRequest(type, dhSess);
-            }
-
-            else if ( opUrl.getProtocol().equals("https") && // no-enc sess
-                     Association.isHmacSupported(type.getAssociationType()))
-                    assocReq = AssociationRequest.createAssociationRequest(type);
-
-            if (assocReq == null)
                 _log.warn("Could not create association of type: " + type);
+                return null;
+            }
 
-            return assocReq;
+            if (type.getHAlgorithm() != null) // DH session
+                return AssociationRequest.createAssociationRequest(type,
+                        DiffieHellmanSession.create(type, _dhParams));
+            else
+                return AssociationRequest.createAssociationRequest(type);
         }
         catch (OpenIDException e)
         {
@@ -1032,7 +1302,7 @@ public class ConsumerManager
 
         if (assoc == null)
         {
-            associate(discovered, _maxAssocAttempts);
+            associate(discovered, _maxAssocAttempts, false);
             assoc = _associations.load(discovered.getOPEndpoint().toString());
         }
 
@@ -1779,10 +2049,7 @@ public class ConsumerManager
         {
             _log.info("Found association: " + assoc.getHandle() +
                       " verifying signature locally...");
-            String text = authResp.getSignedText();
-            String signature = authResp.getSignature();
-
-            if (assoc.verifySignature(text, signature))
+            if (authResp.verifySignature(assoc))
             {
                 result.setVerifiedId(claimedId);
                 if (DEBUG) _log.debug("Local signature verification succeeded.");
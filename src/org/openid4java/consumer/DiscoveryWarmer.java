@@ -0,0 +1,595 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.Identifier;
+import org.openid4java.discovery.UrlIdentifier;
+import org.openid4java.util.DaemonThreadFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps discovery results and associations for the most used identifiers
+ * and OpenID Provider endpoints fresh, by refreshing them periodically on
+ * a background thread.
+ * <p>
+ * Identifiers are warmed if they were configured explicitly, or if they are
+ * among the top-N most used identifiers seen through
+ * {@link #discover(String)} or {@link #recordUse(String)}. Each refresh
+ * performs discovery through the ConsumerManager's {@link
+ * org.openid4java.discovery.Discovery} and then calls
+ * {@link ConsumerManager#associate(List)}, which renews the association
+ * with the discovered OP if it is about to expire.
+ * <p>
+ * Warmed discovery results are only returned by
+ * {@link #discover(String)}: to have {@link ConsumerManager#discover(String)}
+ * use them, and track the identifiers it is called with, register the
+ * warmer with {@link ConsumerManager#setDiscoveryWarmer(DiscoveryWarmer)}.
+ * Renewed associations benefit all callers, since they are kept in the
+ * ConsumerManager's association store.
+ * <p>
+ * Requests to the same host are spaced at least
+ * {@link #getMinHostInterval()} milliseconds apart; identifiers skipped
+ * because of this limit are refreshed first on the next run.
+ */
+public class DiscoveryWarmer
+{
+    private static Log _log = LogFactory.getLog(DiscoveryWarmer.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    /**
+     * Association requests are rate limited separately from discovery
+     * requests, since identifiers are often hosted by their OP.
+     */
+    private static final String ASSOCIATION_PREFIX = "association:";
+
+    private final ConsumerManager _consumerManager;
+
+    /**
+     * Explicitly configured identifiers, always warmed.
+     */
+    private final Set _identifiers = new CopyOnWriteArraySet();
+
+    /**
+     * Explicitly configured OP endpoints, for which associations are renewed.
+     */
+    private final Set _opEndpoints = new CopyOnWriteArraySet();
+
+    /**
+     * Usage counts for the top-N tracker; normalized identifier -> AtomicLong.
+     */
+    private final Map _useCounts = new ConcurrentHashMap();
+
+    /**
+     * Warmed discovery results; normalized identifier -> WarmedResult.
+     */
+    private final Map _results = new ConcurrentHashMap();
+
+    /**
+     * Last time a request was placed to a host; host -> Long.
+     */
+    private final Map _hostLastContact = new ConcurrentHashMap();
+
+    /**
+     * The identifiers warmed on the last run.
+     */
+    private volatile Set _warmSet = Collections.EMPTY_SET;
+
+    private ScheduledExecutorService _executor;
+
+    /**
+     * Interval (in seconds) between refresh runs. Default: 60s.
+     */
+    private int _interval = 60;
+
+    /**
+     * Number of most used identifiers to warm. Default: 100.
+     */
+    private int _topN = 100;
+
+    /**
+     * Maximum number of identifiers tracked for usage. Default: 10000.
+     */
+    private int _maxTracked = 10000;
+
+    /**
+     * Minimum time (in milliseconds) between two requests to the same host.
+     * Default: 1000ms.
+     */
+    private long _minHostInterval = 1000;
+
+    /**
+     * Maximum age (in seconds) of a warmed result that will still be
+     * returned by {@link #discover(String)}. Default: 300s.
+     */
+    private int _maxResultAge = 300;
+
+    private final AtomicLong _refreshes = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+    private final AtomicLong _skipped = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+
+    public DiscoveryWarmer(ConsumerManager consumerManager)
+    {
+        _consumerManager = consumerManager;
+    }
+
+    public ConsumerManager getConsumerManager()
+    {
+        return _consumerManager;
+    }
+
+    /**
+     * Starts refreshing discovery results and associations in the
+     * background, every {@link #getInterval()} seconds.
+     */
+    public synchronized void start()
+    {
+        if (_executor != null) return;
+
+        _executor = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("DiscoveryWarmer", Thread.MIN_PRIORITY));
+
+        _executor.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    warm();
+                }
+                catch (RuntimeException e)
+                {
+                    _log.error("Error warming discovery results.", e);
+                }
+            }
+        }, 0, _interval, TimeUnit.SECONDS);
+
+        _log.info("Started discovery warmer, interval: " + _interval + "s");
+    }
+
+    /**
+     * Stops the background refresh.
+     */
+    public synchronized void stop()
+    {
+        if (_executor == null) return;
+
+        _executor.shutdownNow();
+        _executor = null;
+
+        _log.info("Stopped discovery warmer.");
+    }
+
+    /**
+     * Performs discovery on an identifier, returning the warmed result if
+     * one is available. The identifier's use is recorded for the top-N
+     * tracker.
+     *
+     * @return      A List of {@link DiscoveryInformation} objects.
+     * @throws DiscoveryException if the discovery process runs into errors.
+     */
+    public List discover(String identifier) throws DiscoveryException
+    {
+        Identifier parsed = _consumerManager.getDiscovery()
+                .parseIdentifier(identifier, true);
+        String key = parsed.getIdentifier();
+
+        recordUse(key);
+
+        WarmedResult warmed = (WarmedResult) _results.get(key);
+        if (warmed != null && System.currentTimeMillis() -
+                warmed.getTimestamp() < 1000L * _maxResultAge)
+        {
+            _hits.incrementAndGet();
+            if (DEBUG) _log.debug("Returning warmed discovery result for: " + key);
+            return new ArrayList(warmed.getDiscoveries());
+        }
+
+        List discoveries = _consumerManager.getDiscovery().discover(parsed);
+
+        if (_warmSet.contains(key))
+            _results.put(key, new WarmedResult(discoveries));
+
+        return discoveries;
+    }
+
+    /**
+     * Records a use of the identifier, for the top-N tracker.
+     */
+    public void recordUse(String identifier)
+    {
+        if (_topN <= 0) return;
+
+        AtomicLong count = (AtomicLong) _useCounts.get(identifier);
+
+        if (count == null)
+        {
+            if (_useCounts.size() >= _maxTracked) return;
+
+            count = new AtomicLong();
+            AtomicLong existing = (AtomicLong) ((ConcurrentHashMap) _useCounts)
+                    .putIfAbsent(identifier, count);
+            if (existing != null) count = existing;
+        }
+
+        count.incrementAndGet();
+    }
+
+    /**
+     * Performs one refresh run: discovery and association for the configured
+     * and the top-N identifiers, and association for the configured
+     * OP endpoints.
+     */
+    public void warm()
+    {
+        Set targets = new LinkedHashSet();
+        Iterator iter = _identifiers.iterator();
+        while (iter.hasNext())
+        {
+            String identifier = (String) iter.next();
+            try
+            {
+                targets.add(_consumerManager.getDiscovery()
+                        .parseIdentifier(identifier, true).getIdentifier());
+            }
+            catch (DiscoveryException e)
+            {
+                _log.warn("Cannot parse identifier to warm: " + identifier);
+            }
+        }
+        targets.addAll(getTopIdentifiers());
+
+        _warmSet = targets;
+        _results.keySet().retainAll(targets);
+
+        if (DEBUG) _log.debug("Warming " + targets.size() + " identifiers.");
+
+        // least recently refreshed first
+        List ordered = new ArrayList(targets);
+        Collections.sort(ordered, new Comparator()
+        {
+            public int compare(Object o1, Object o2)
+            {
+                long t1 = getTimestamp((String) o1);
+                long t2 = getTimestamp((String) o2);
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+
+        iter = ordered.iterator();
+        while (iter.hasNext())
+            refresh((String) iter.next());
+
+        iter = _opEndpoints.iterator();
+        while (iter.hasNext())
+        {
+            String opEndpoint = (String) iter.next();
+            try
+            {
+                URL opUrl = new URL(opEndpoint);
+                if (! acquireHost(ASSOCIATION_PREFIX + opUrl.getHost())) continue;
+
+                List discoveries = new ArrayList();
+                discoveries.add(new DiscoveryInformation(opUrl));
+                _consumerManager.associate(discoveries);
+            }
+            catch (MalformedURLException e)
+            {
+                _log.warn("Invalid OP endpoint to warm: " + opEndpoint);
+            }
+            catch (DiscoveryException e)
+            {
+                _log.warn("Invalid OP endpoint to warm: " + opEndpoint);
+            }
+        }
+
+        decayUseCounts();
+    }
+
+    private void refresh(String identifier)
+    {
+        try
+        {
+            Identifier parsed = _consumerManager.getDiscovery()
+                    .parseIdentifier(identifier, true);
+
+            String host = parsed instanceof UrlIdentifier ?
+                    ((UrlIdentifier) parsed).getUrl().getHost() : "xri";
+            if (! acquireHost(host)) return;
+
+            List discoveries = _consumerManager.getDiscovery().discover(parsed);
+            _results.put(identifier, new WarmedResult(discoveries));
+            _refreshes.incrementAndGet();
+
+            if (discoveries.size() > 0 && acquireHost(ASSOCIATION_PREFIX +
+                    ((DiscoveryInformation) discoveries.get(0)).getOPEndpoint().getHost()))
+                _consumerManager.associate(discoveries);
+        }
+        catch (DiscoveryException e)
+        {
+            _failures.incrementAndGet();
+            _log.warn("Discovery refresh failed for: " + identifier, e);
+        }
+    }
+
+    /**
+     * Claims the host for a request, if the last request to the host
+     * was placed more than {@link #getMinHostInterval()} milliseconds ago.
+     */
+    private boolean acquireHost(String host)
+    {
+        long now = System.currentTimeMillis();
+        Long last = (Long) _hostLastContact.get(host);
+
+        if (last != null && now - last.longValue() < _minHostInterval)
+        {
+            _skipped.incrementAndGet();
+            if (DEBUG) _log.debug("Rate limited, skipping host: " + host);
+            return false;
+        }
+
+        _hostLastContact.put(host, new Long(now));
+        return true;
+    }
+
+    private long getTimestamp(String identifier)
+    {
+        WarmedResult warmed = (WarmedResult) _results.get(identifier);
+        return warmed != null ? warmed.getTimestamp() : 0;
+    }
+
+    private List getTopIdentifiers()
+    {
+        if (_topN <= 0) return Collections.EMPTY_LIST;
+
+        List entries = new ArrayList(_useCounts.entrySet());
+        Collections.sort(entries, new Comparator()
+        {
+            public int compare(Object o1, Object o2)
+            {
+                long c1 = ((AtomicLong) ((Map.Entry) o1).getValue()).get();
+                long c2 = ((AtomicLong) ((Map.Entry) o2).getValue()).get();
+                return c1 > c2 ? -1 : (c1 == c2 ? 0 : 1);
+            }
+        });
+
+        List top = new ArrayList(Math.min(_topN, entries.size()));
+        for (int i = 0; i < entries.size() && i < _topN; i++)
+            top.add(((Map.Entry) entries.get(i)).getKey());
+
+        return top;
+    }
+
+    /**
+     * Halves the usage counts, so that the tracker follows recent usage;
+     * identifiers no longer used are dropped.
+     */
+    private void decayUseCounts()
+    {
+        Iterator iter = _useCounts.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry entry = (Map.Entry) iter.next();
+            AtomicLong count = (AtomicLong) entry.getValue();
+
+            if (count.addAndGet(- (count.get() + 1) / 2) <= 0)
+                iter.remove();
+        }
+
+        long now = System.currentTimeMillis();
+        iter = _hostLastContact.values().iterator();
+        while (iter.hasNext())
+        {
+            if (now - ((Long) iter.next()).longValue() > _minHostInterval)
+                iter.remove();
+        }
+    }
+
+    public void addIdentifier(String identifier)
+    {
+        _identifiers.add(identifier);
+    }
+
+    public void removeIdentifier(String identifier)
+    {
+        _identifiers.remove(identifier);
+    }
+
+    /**
+     * Sets the identifiers that are always warmed, in addition to
+     * the top-N most used ones.
+     */
+    public void setIdentifiers(Collection identifiers)
+    {
+        _identifiers.clear();
+        _identifiers.addAll(identifiers);
+    }
+
+    public Set getIdentifiers()
+    {
+        return Collections.unmodifiableSet(_identifiers);
+    }
+
+    public void addOpEndpoint(String opEndpoint)
+    {
+        _opEndpoints.add(opEndpoint);
+    }
+
+    public void removeOpEndpoint(String opEndpoint)
+    {
+        _opEndpoints.remove(opEndpoint);
+    }
+
+    /**
+     * Sets the OpenID Provider endpoints with which associations are kept
+     * fresh, in addition to the ones discovered from warmed identifiers.
+     */
+    public void setOpEndpoints(Collection opEndpoints)
+    {
+        _opEndpoints.clear();
+        _opEndpoints.addAll(opEndpoints);
+    }
+
+    public Set getOpEndpoints()
+    {
+        return Collections.unmodifiableSet(_opEndpoints);
+    }
+
+    public int getInterval()
+    {
+        return _interval;
+    }
+
+    /**
+     * Sets the interval (in seconds) between refresh runs; takes effect
+     * on the next {@link #start()}. Should be lower than the discovery
+     * cache TTL and the pre-expiry association lock interval.
+     * <p>
+     * Default: 60s.
+     */
+    public void setInterval(int interval)
+    {
+        _interval = interval;
+    }
+
+    public int getTopN()
+    {
+        return _topN;
+    }
+
+    /**
+     * Sets the number of most used identifiers that are warmed;
+     * 0 disables usage tracking.
+     * <p>
+     * Default: 100.
+     */
+    public void setTopN(int topN)
+    {
+        _topN = topN;
+    }
+
+    public int getMaxTracked()
+    {
+        return _maxTracked;
+    }
+
+    /**
+     * Sets the maximum number of distinct identifiers tracked for usage.
+     * <p>
+     * Default: 10000.
+     */
+    public void setMaxTracked(int maxTracked)
+    {
+        _maxTracked = maxTracked;
+    }
+
+    public long getMinHostInterval()
+    {
+        return _minHostInterval;
+    }
+
+    /**
+     * Sets the minimum time (in milliseconds) between two refresh requests
+     * placed to the same host.
+     * <p>
+     * Default: 1000ms.
+     */
+    public void setMinHostInterval(long minHostInterval)
+    {
+        _minHostInterval = minHostInterval;
+    }
+
+    public int getMaxResultAge()
+    {
+        return _maxResultAge;
+    }
+
+    /**
+     * Sets the maximum age (in seconds) of a warmed result that will
+     * be returned by {@link #discover(String)}.
+     * <p>
+     * Default: 300s.
+     */
+    public void setMaxResultAge(int maxResultAge)
+    {
+        _maxResultAge = maxResultAge;
+    }
+
+    /**
+     * Gets the number of successful discovery refreshes.
+     */
+    public long getRefreshCount()
+    {
+        return _refreshes.get();
+    }
+
+    /**
+     * Gets the number of failed discovery refreshes.
+     */
+    public long getFailureCount()
+    {
+        return _failures.get();
+    }
+
+    /**
+     * Gets the number of requests skipped by the per-host rate limit.
+     */
+    public long getSkippedCount()
+    {
+        return _skipped.get();
+    }
+
+    /**
+     * Gets the number of {@link #discover(String)} calls served
+     * from warmed results.
+     */
+    public long getHitCount()
+    {
+        return _hits.get();
+    }
+
+    private static class WarmedResult
+    {
+        private final List _discoveries;
+        private final long _timestamp;
+
+        public WarmedResult(List discoveries)
+        {
+            _discoveries = new ArrayList(discoveries);
+            _timestamp = System.currentTimeMillis();
+        }
+
+        public List getDiscoveries()
+        {
+            return _discoveries;
+        }
+
+        public long getTimestamp()
+        {
+            return _timestamp;
+        }
+    }
+}
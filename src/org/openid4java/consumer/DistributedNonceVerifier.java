@@ -0,0 +1,139 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import org.openid4java.util.InternetDateCodec;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.Date;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * NonceVerifier sharing the seen nonces across the nodes of a cluster,
+ * through a {@link NonceStore}.
+ * <p>
+ * Each nonce is stored under a key made of a prefix and a hash of the OP
+ * URL and nonce, with a time-to-live lasting until the nonce ages past the
+ * maximum age; the nonce is accepted only if the put-if-absent stored the
+ * key. If the store cannot be reached, nonces are rejected.
+ * <p>
+ * Wrapping the store in a {@link BatchingNonceStore} sends the nonces
+ * verified concurrently in batches.
+ */
+public class DistributedNonceVerifier extends AbstractNonceVerifier
+{
+    private static Log _log = LogFactory.getLog(DistributedNonceVerifier.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final NonceStore _store;
+
+    /**
+     * Prefix of the keys in the store. Default: "openid4java:nonce:".
+     */
+    private String _keyPrefix = "openid4java:nonce:";
+
+    public DistributedNonceVerifier(NonceStore store, int maxAge)
+    {
+        super(maxAge);
+
+        _store = store;
+    }
+
+    public NonceStore getStore()
+    {
+        return _store;
+    }
+
+    public String getKeyPrefix()
+    {
+        return _keyPrefix;
+    }
+
+    /**
+     * Sets the prefix of the keys in the store, to keep them apart from
+     * other data in a shared store.
+     */
+    public void setKeyPrefix(String keyPrefix)
+    {
+        _keyPrefix = keyPrefix;
+    }
+
+    protected int seen(Date now, String opUrl, String nonce)
+    {
+        try
+        {
+            return seen(now.getTime(),
+                        InternetDateCodec.parseSeconds(nonce) * 1000, opUrl, nonce);
+        }
+        catch (ParseException e)
+        {
+            _log.error("Error verifying the nonce: " + nonce, e);
+            return INVALID_TIMESTAMP;
+        }
+    }
+
+    protected int seen(long now, long nonceTime, String opUrl, String nonce)
+    {
+        // until the nonce is too old; at least 1s, for future timestamps too
+        long ttl = (nonceTime + 1000L * _maxAgeSeconds - now) / 1000 + 1;
+        if (ttl < 1) ttl = 1;
+
+        try
+        {
+            if (! _store.putIfAbsent(getKey(opUrl, nonce), (int) ttl))
+            {
+                _log.error("Possible replay attack! Already seen nonce: " + nonce);
+                return SEEN;
+            }
+        }
+        catch (IOException e)
+        {
+            _log.error("Error verifying the nonce: " + nonce +
+                       "; nonce store unavailable", e);
+            return SEEN;
+        }
+
+        if (DEBUG) _log.debug("Nonce verified: " + nonce);
+
+        return OK;
+    }
+
+    /**
+     * Gets the store key for a nonce; a hex SHA-256 hash of the OP URL and
+     * nonce, which keeps the keys short and free of special characters.
+     */
+    protected String getKey(String opUrl, String nonce)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(opUrl.getBytes("UTF-8"));
+            digest.update((byte) '\n');
+            byte[] hash = digest.digest(nonce.getBytes("UTF-8"));
+
+            StringBuffer key = new StringBuffer(_keyPrefix);
+            for (int i = 0; i < hash.length; i++)
+                key.append(HEX[(hash[i] >> 4) & 0x0f]).append(HEX[hash[i] & 0x0f]);
+
+            return key.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("UTF-8 not available", e);
+        }
+    }
+}
@@ -42,7 +42,7 @@ public class EhcacheNonceVerifier extends AbstractNonceVerifier
         _cache = cache;
     }
 
-    protected int seen(Date now, String opUrl, String nonce)
+    protected synchronized int seen(Date now, String opUrl, String nonce)
     {
         String pair = opUrl + '#' + nonce;
         Element element = new Element(pair, pair);
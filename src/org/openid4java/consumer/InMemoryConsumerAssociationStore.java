@@ -6,12 +6,25 @@ package org.openid4java.consumer;
 
 import org.openid4java.association.Association;
 
-import java.util.*;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
+ * In-memory ConsumerAssociationStore, safe for concurrent use.
+ * <p>
+ * Associations are kept in concurrent maps, with the latest association
+ * (the one expiring last) of each OP tracked on save, so that
+ * {@link #load(String)} does not scan the OP's associations. Expired
+ * associations are dropped from a delay queue ordered by expiry time,
+ * instead of scanning the whole store on each operation.
+ *
  * @author Marius Scurtescu, Johnny Bufu
  */
 public class InMemoryConsumerAssociationStore implements ConsumerAssociationStore
@@ -19,155 +32,245 @@ public class InMemoryConsumerAssociationStore implements ConsumerAssociationStor
     private static Log _log = LogFactory.getLog(InMemoryConsumerAssociationStore.class);
     private static final boolean DEBUG = _log.isDebugEnabled();
 
-    private Map _opMap = new HashMap();
+    /**
+     * Map of opUrl -> OpAssociations.
+     */
+    private final ConcurrentHashMap _opMap = new ConcurrentHashMap();
 
-    public synchronized void save(String opUrl, Association association)
+    /**
+     * Expiry events for the saved associations.
+     */
+    private final DelayQueue _expiryQueue = new DelayQueue();
+
+    public void save(String opUrl, Association association)
     {
         removeExpired();
 
-        Map handleMap = (Map) _opMap.get(opUrl);
+        if(DEBUG)
+            _log.debug("Adding association to the in-memory store: " +
+                       association.getHandle() + " with OP: " + opUrl);
 
-        if (handleMap == null)
+        while (true)
         {
-            handleMap = new HashMap();
+            OpAssociations op = (OpAssociations) _opMap.get(opUrl);
 
+            if (op == null)
+            {
+                op = new OpAssociations();
+                OpAssociations existing =
+                        (OpAssociations) _opMap.putIfAbsent(opUrl, op);
+                if (existing != null) op = existing;
+            }
 
-            _opMap.put(opUrl, handleMap);
+            // retry if the entry was dropped for being empty meanwhile
+            if (op.add(association))
+                break;
         }
 
-        String handle = association.getHandle();
-
-        if(DEBUG)
-            _log.debug("Adding association to the in-memory store: " + handle +
-                       " with OP: " + opUrl);
-
-        handleMap.put(association.getHandle(), association);
+        _expiryQueue.add(new Expiry(opUrl, association));
     }
 
-    public synchronized Association load(String opUrl, String handle)
+    public Association load(String opUrl, String handle)
     {
         removeExpired();
 
-        if (_opMap.containsKey(opUrl))
-        {
-            Map handleMap = (Map) _opMap.get(opUrl);
+        OpAssociations op = (OpAssociations) _opMap.get(opUrl);
 
-            if (handleMap.containsKey(handle))
-            {
-                return (Association) handleMap.get(handle);
-            }
-        }
+        if (op == null) return null;
+
+        Association association = op.get(handle);
 
-        return null;
+        return association != null && ! association.hasExpired() ?
+                association : null;
     }
 
+    public Association load(String opUrl)
+    {
+        removeExpired();
+
+        OpAssociations op = (OpAssociations) _opMap.get(opUrl);
 
-    public synchronized Association load(String opUrl)
+        return op != null ? op.getLatest() : null;
+    }
+
+    public void remove(String opUrl, String handle)
     {
         removeExpired();
 
-        Association latest = null;
+        OpAssociations op = (OpAssociations) _opMap.get(opUrl);
 
-        if (_opMap.containsKey(opUrl))
+        if (op != null)
         {
-            Map handleMap = (Map) _opMap.get(opUrl);
+            _log.info("Removing association: " + handle + " widh OP: " + opUrl);
 
-            Iterator handles = handleMap.keySet().iterator();
-            while (handles.hasNext())
-            {
-                String handle = (String) handles.next();
+            if (op.remove(handle, null))
+                _opMap.remove(opUrl, op);
+        }
+    }
 
-                Association association = (Association) handleMap.get(handle);
+    private void removeExpired()
+    {
+        Expiry expiry;
+        while ((expiry = (Expiry) _expiryQueue.poll()) != null)
+        {
+            OpAssociations op = (OpAssociations) _opMap.get(expiry.getOpUrl());
 
-                if (latest == null ||
-                        latest.getExpiry().before(association.getExpiry()))
-                    latest = association;
-            }
-        }
+            if (op == null) continue;
 
-        return latest;
+            if (DEBUG) _log.debug("Removing expired association: " +
+                    expiry.getAssociation().getHandle() +
+                    " with OP: " + expiry.getOpUrl());
+
+            if (op.remove(expiry.getAssociation().getHandle(), expiry.getAssociation()))
+                _opMap.remove(expiry.getOpUrl(), op);
+        }
     }
 
-    public synchronized void remove(String opUrl, String handle)
+    protected int size()
     {
         removeExpired();
 
-        if (_opMap.containsKey(opUrl))
+        int total = 0;
+
+        Iterator ops = _opMap.values().iterator();
+        while (ops.hasNext())
+            total += ((OpAssociations) ops.next()).size();
+
+        return total;
+    }
+
+    /**
+     * The associations of an OP; updates are serialized per OP.
+     */
+    private static class OpAssociations
+    {
+        private final Map _handles = new ConcurrentHashMap();
+
+        private volatile Association _latest;
+
+        // set when the entry was dropped from the store for being empty
+        private boolean _removed;
+
+        public synchronized boolean add(Association association)
         {
-            Map handleMap = (Map) _opMap.get(opUrl);
+            if (_removed) return false;
 
-            _log.info("Removing association: " + handle + " widh OP: " + opUrl);
+            _handles.put(association.getHandle(), association);
 
-            handleMap.remove(handle);
+            Association latest = _latest;
+            if (latest == null ||
+                    ! association.getExpiry().before(latest.getExpiry()))
+                _latest = association;
 
-            if (handleMap.size() == 0)
-                _opMap.remove(opUrl);
+            return true;
         }
-    }
 
+        public Association get(String handle)
+        {
+            return (Association) _handles.get(handle);
+        }
 
-    private synchronized void removeExpired()
-    {
-        Set opToRemove = new HashSet();
-        Iterator opUrls = _opMap.keySet().iterator();
-        while (opUrls.hasNext())
+        public Association getLatest()
         {
-            String opUrl = (String) opUrls.next();
+            Association latest = _latest;
 
-            Map handleMap = (Map) _opMap.get(opUrl);
+            if (latest == null || ! latest.hasExpired())
+                return latest;
 
-            Set handleToRemove = new HashSet();
-            Iterator handles = handleMap.keySet().iterator();
-            while (handles.hasNext())
+            synchronized (this)
             {
-                String handle = (String) handles.next();
-
-                Association association = (Association) handleMap.get(handle);
-
-                if (association.hasExpired())
-                {
-                    handleToRemove.add(handle);
-                }
+                updateLatest();
+                return _latest;
             }
+        }
 
-            handles = handleToRemove.iterator();
-            while (handles.hasNext())
-            {
-                String handle = (String) handles.next();
+        /**
+         * Removes the association with the handle, if it is the given
+         * instance (or any instance if null).
+         *
+         * @return  True if the OP has no associations left, and was marked
+         *          for removal from the store.
+         */
+        public synchronized boolean remove(String handle, Association association)
+        {
+            Association removed = (Association) _handles.get(handle);
 
-                _log.info("Removing expired association: " + handle +
-                          " with OP: " + opUrl);
+            if (removed != null && (association == null || removed == association))
+            {
+                _handles.remove(handle);
 
-                handleMap.remove(handle);
+                if (removed == _latest)
+                    updateLatest();
             }
 
-            if (handleMap.size() == 0)
-                opToRemove.add(opUrl);
+            if (_handles.isEmpty())
+                _removed = true;
+
+            return _removed;
+        }
+
+        public int size()
+        {
+            return _handles.size();
         }
 
-        opUrls = opToRemove.iterator();
-        while (opUrls.hasNext())
+        private void updateLatest()
         {
-            String opUrl = (String) opUrls.next();
+            Association latest = null;
 
-            _opMap.remove(opUrl);
+            Iterator iter = _handles.values().iterator();
+            while (iter.hasNext())
+            {
+                Association association = (Association) iter.next();
+
+                if (association.hasExpired())
+                    continue;
+
+                if (latest == null ||
+                        latest.getExpiry().before(association.getExpiry()))
+                    latest = association;
+            }
+
+            _latest = latest;
         }
     }
 
-    protected synchronized int size()
+    private static class Expiry implements Delayed
     {
-        int total = 0;
+        private final String _opUrl;
+        private final Association _association;
+        private final long _time;
 
-        Iterator opUrls = _opMap.keySet().iterator();
-        while (opUrls.hasNext())
+        public Expiry(String opUrl, Association association)
         {
-            String opUrl = (String) opUrls.next();
+            _opUrl = opUrl;
+            _association = association;
 
-            Map handleMap = (Map) _opMap.get(opUrl);
+            // expired once the expiry time has passed
+            _time = association.getExpiry().getTime() + 1;
+        }
 
-            total += handleMap.size();
+        public String getOpUrl()
+        {
+            return _opUrl;
         }
 
-        return total;
+        public Association getAssociation()
+        {
+            return _association;
+        }
+
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(_time - System.currentTimeMillis(),
+                                TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed o)
+        {
+            long other = ((Expiry) o)._time;
+
+            return _time < other ? -1 : (_time == other ? 0 : 1);
+        }
     }
 }
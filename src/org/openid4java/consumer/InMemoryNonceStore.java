@@ -0,0 +1,83 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process NonceStore, the reference implementation of the SPI; useful
+ * for a single node and for tests.
+ * <p>
+ * Expired keys are dropped at most once per second, on put.
+ */
+public class InMemoryNonceStore implements NonceStore
+{
+    /**
+     * Map of key -> Long expiry time, in milliseconds.
+     */
+    private final ConcurrentHashMap _keys = new ConcurrentHashMap();
+
+    private volatile long _lastSweep;
+
+    public boolean putIfAbsent(String key, int ttl)
+    {
+        long now = System.currentTimeMillis();
+
+        removeExpired(now);
+
+        Long expiry = new Long(now + 1000L * ttl);
+
+        while (true)
+        {
+            Long existing = (Long) _keys.putIfAbsent(key, expiry);
+
+            if (existing == null)
+                return true;
+
+            if (existing.longValue() > now)
+                return false;
+
+            // expired; replace unless updated meanwhile
+            if (_keys.replace(key, existing, expiry))
+                return true;
+        }
+    }
+
+    public boolean[] putIfAbsent(String[] keys, int[] ttls)
+    {
+        boolean[] results = new boolean[keys.length];
+
+        for (int i = 0; i < keys.length; i++)
+            results[i] = putIfAbsent(keys[i], ttls[i]);
+
+        return results;
+    }
+
+    private void removeExpired(long now)
+    {
+        if (now - _lastSweep < 1000) return;
+
+        _lastSweep = now;
+
+        Iterator entries = _keys.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            Map.Entry entry = (Map.Entry) entries.next();
+
+            if (((Long) entry.getValue()).longValue() <= now)
+                _keys.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Gets the number of keys held, including expired ones not dropped yet.
+     */
+    public int size()
+    {
+        return _keys.size();
+    }
+}
@@ -4,6 +4,7 @@
 
 package org.openid4java.consumer;
 
+import org.openid4java.util.InternetDateCodec;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -11,6 +12,16 @@ import java.util.*;
 import java.text.ParseException;
 
 /**
+ * In-memory NonceVerifier, safe for concurrent use.
+ * <p>
+ * Seen nonces are kept in buckets keyed by their (already parsed) timestamp,
+ * with one bucket per second. Once a second ages past the maximum age its
+ * whole bucket is dropped, so expiring nonces neither scans the stored
+ * nonces nor parses their timestamps again.
+ * <p>
+ * The buckets are split in lock stripes by OP URL, so that nonces from
+ * different OPs are mostly verified in parallel.
+ *
  * @author Marius Scurtescu, Johnny Bufu
  */
 public class InMemoryNonceVerifier extends AbstractNonceVerifier
@@ -18,7 +29,17 @@ public class InMemoryNonceVerifier extends AbstractNonceVerifier
     private static Log _log = LogFactory.getLog(InMemoryNonceVerifier.class);
     private static final boolean DEBUG = _log.isDebugEnabled();
 
-    private Map _opMap = new HashMap();
+    /**
+     * Default number of lock stripes.
+     */
+    public static final int DEFAULT_STRIPES = 16;
+
+    private final Stripe[] _stripes;
+
+    /**
+     * The second in which all the stripes were last checked for aged buckets.
+     */
+    private volatile long _lastSweep;
 
     public InMemoryNonceVerifier() {
       this(60);
@@ -26,106 +47,176 @@ public class InMemoryNonceVerifier extends AbstractNonceVerifier
 
     public InMemoryNonceVerifier(int maxAge)
     {
-        super(maxAge);
+        this(maxAge, DEFAULT_STRIPES);
     }
 
-    protected synchronized int seen(Date now, String opUrl, String nonce)
+    /**
+     * @param maxAge    maximum token age in seconds
+     * @param stripes   number of lock stripes the OP URLs are spread over
+     */
+    public InMemoryNonceVerifier(int maxAge, int stripes)
     {
-        removeAged(now);
+        super(maxAge);
 
-        Set seenSet = (Set) _opMap.get(opUrl);
+        if (stripes < 1)
+            throw new IllegalArgumentException(
+                    "Invalid number of stripes: " + stripes);
 
-        if (seenSet == null)
-        {
-            seenSet = new HashSet();
+        _stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++)
+            _stripes[i] = new Stripe();
+    }
 
-            _opMap.put(opUrl, seenSet);
+    protected int seen(Date now, String opUrl, String nonce)
+    {
+        try
+        {
+            return seen(now.getTime(),
+                        InternetDateCodec.parseSeconds(nonce) * 1000, opUrl, nonce);
+        }
+        catch (ParseException e)
+        {
+            _log.error("Error verifying the nonce: " + nonce, e);
+            return INVALID_TIMESTAMP;
         }
+    }
+
+    protected int seen(long now, long nonceTime, String opUrl, String nonce)
+    {
+        removeAged(now);
 
-        if (seenSet.contains(nonce))
+        Stripe stripe = _stripes[(opUrl.hashCode() & 0x7fffffff) % _stripes.length];
+
+        if (! stripe.add(now, nonceTime, opUrl, nonce))
         {
             _log.error("Possible replay attack! Already seen nonce: " + nonce);
             return SEEN;
         }
 
-        seenSet.add(nonce);
-
         if (DEBUG) _log.debug("Nonce verified: " + nonce);
 
         return OK;
     }
 
-    private synchronized void removeAged(Date now)
+    /**
+     * Drops the aged buckets of the stripes other OPs are mapped to, once
+     * per second at most.
+     */
+    private void removeAged(long now)
     {
-        Set opToRemove = new HashSet();
-        Iterator opUrls = _opMap.keySet().iterator();
-        while (opUrls.hasNext())
-        {
-            String opUrl = (String) opUrls.next();
+        long second = now / 1000;
 
-            Set seenSet = (Set) _opMap.get(opUrl);
-            Set nonceToRemove = new HashSet();
+        if (second == _lastSweep) return;
 
-            Iterator nonces = seenSet.iterator();
-            while (nonces.hasNext())
-            {
-                String nonce = (String) nonces.next();
+        _lastSweep = second;
 
-                try
-                {
-                    Date nonceDate = _dateFormat.parse(nonce);
+        for (int i = 0; i < _stripes.length; i++)
+            _stripes[i].removeAged(now);
+    }
 
-                    if (isTooOld(now, nonceDate))
-                    {
-                        nonceToRemove.add(nonce);
-                    }
-                }
-                catch (ParseException e)
-                {
-                    nonceToRemove.add(nonce);
-                }
-            }
+    protected int size()
+    {
+        int total = 0;
+
+        for (int i = 0; i < _stripes.length; i++)
+            total += _stripes[i].size();
+
+        return total;
+    }
+
+    /**
+     * The buckets for a subset of the OP URLs.
+     */
+    private class Stripe
+    {
+        /**
+         * Map of second -> Set of "opUrl nonce"; a second's bucket holds the
+         * nonces with timestamps in the millisecond range ending with it.
+         */
+        private final Map _buckets = new HashMap();
+
+        /**
+         * The oldest second that may still have a bucket.
+         */
+        private long _oldest = Long.MAX_VALUE;
+
+        private int _size;
+
+        public synchronized boolean add(long now, long timestamp,
+                                        String opUrl, String nonce)
+        {
+            removeAged(now);
 
-            nonces = nonceToRemove.iterator();
-            while (nonces.hasNext())
+            // rounded up, so that a bucket ages once its last millisecond does
+            Long second = new Long((timestamp + 999) / 1000);
+
+            Set bucket = (Set) _buckets.get(second);
+
+            if (bucket == null)
             {
-                String nonce = (String) nonces.next();
+                bucket = new HashSet();
+                _buckets.put(second, bucket);
 
-                if (DEBUG)
-                    _log.debug("Removing nonce: " + nonce +
-                               " from OP: " + opUrl);
-                seenSet.remove(nonce);
+                if (second.longValue() < _oldest)
+                    _oldest = second.longValue();
             }
 
-            if (seenSet.size() == 0)
-                opToRemove.add(opUrl);
+            if (! bucket.add(opUrl + " " + nonce))
+                return false;
+
+            _size++;
+            return true;
         }
 
-        opUrls = opToRemove.iterator();
-        while (opUrls.hasNext())
+        /**
+         * Drops the buckets of the seconds past the maximum age.
+         */
+        public synchronized void removeAged(long now)
         {
-            String opUrl = (String) opUrls.next();
+            if (_buckets.isEmpty()) return;
 
-            if (DEBUG) _log.debug("Removed all nonces from OP: " + opUrl);
+            // the newest second whose nonces are all too old
+            long aged = (now - _maxAgeSeconds * 1000L - 1) / 1000;
 
-            _opMap.remove(opUrl);
-        }
-    }
+            if (aged < _oldest) return;
 
-    protected synchronized int size()
-    {
-        int total = 0;
+            if (aged - _oldest < _buckets.size())
+            {
+                for (long second = _oldest; second <= aged; second++)
+                    removeBucket(new Long(second));
+            }
+            else
+            {
+                // long idle gap; cheaper to go through the buckets
+                Iterator seconds = new ArrayList(_buckets.keySet()).iterator();
+                while (seconds.hasNext())
+                {
+                    Long second = (Long) seconds.next();
+
+                    if (second.longValue() <= aged)
+                        removeBucket(second);
+                }
+            }
 
-        Iterator opUrls = _opMap.keySet().iterator();
-        while (opUrls.hasNext())
+            _oldest = aged + 1;
+        }
+
+        private void removeBucket(Long second)
         {
-            String opUrl = (String) opUrls.next();
+            Set bucket = (Set) _buckets.remove(second);
 
-            Set seenSet = (Set) _opMap.get(opUrl);
+            if (bucket != null)
+            {
+                if (DEBUG) _log.debug("Removing " + bucket.size() +
+                                      " nonces for second: " + second);
 
-            total += seenSet.size();
+                _size -= bucket.size();
+            }
         }
 
-        return total;
+        public synchronized int size()
+        {
+            return _size;
+        }
     }
 }
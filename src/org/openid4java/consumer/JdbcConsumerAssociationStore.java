@@ -9,6 +9,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openid4java.association.Association;
 import org.openid4java.association.AssociationException;
+import org.openid4java.util.JdbcJanitor;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -16,6 +17,13 @@ import org.springframework.jdbc.core.support.JdbcDaoSupport;
 
 /**
  * 
+ * JDBC implementation of a ConsumerAssociationStore.
+ * <p>
+ * Expired associations are deleted in the background by a
+ * {@link JdbcJanitor}, started with the first saved association and
+ * stopped by {@link #shutdown()}.
+ * </p>
+ * <p>
  * The specified table must have the following structure:
  * <ul>
  * <li>opurl : string </li>
@@ -37,9 +45,10 @@ public class JdbcConsumerAssociationStore
 	private String _tableName ;
 	private String _sqlInsert ;
 	private String _sqlDelete ;
-	private String _sqlCleanup ;
 	private String _sqlSelect ;
 	private String _sqlSelectAlt ;
+	private JdbcJanitor _janitor ;
+	private boolean _shutdown ;
 
 
 	public JdbcConsumerAssociationStore ( )
@@ -56,18 +65,58 @@ public class JdbcConsumerAssociationStore
 		return _tableName ;
 	}
 
-	public void setTableName ( String tableName )
+	public synchronized void setTableName ( String tableName )
 	{
 		this._tableName = tableName ;
 		this._sqlInsert = "INSERT INTO " + _tableName + " VALUES (?,?,?,?,?)" ;
 		this._sqlDelete = "DELETE FROM " + _tableName
 							+ " WHERE opurl=? AND handle=?" ;
-		this._sqlCleanup = "DELETE FROM " + _tableName + " WHERE expdate < ?" ;
 		this._sqlSelect = "SELECT * FROM " + _tableName
 							+ " WHERE opurl=? AND handle=?" ;
 		this._sqlSelectAlt = "SELECT * FROM " + _tableName
 								+ " T1 JOIN (SELECT opurl, max(expdate) AS expdate FROM " + _tableName
 								+ " WHERE opurl=? GROUP BY opurl) T2 ON (T1.expdate = T2.expdate AND T1.opurl = T2.opurl)" ;
+
+		JdbcJanitor janitor = new JdbcJanitor ( tableName, "expdate", new String[]
+			{ "opurl", "handle" } ) ;
+
+		if ( _janitor != null )
+		{
+			janitor.setInterval ( _janitor.getInterval ( ) ) ;
+			janitor.setBatchSize ( _janitor.getBatchSize ( ) ) ;
+			janitor.setMaxBatches ( _janitor.getMaxBatches ( ) ) ;
+			_janitor.shutdown ( ) ;
+		}
+
+		_janitor = janitor ;
+	}
+
+	/**
+	 * Gets the janitor deleting the expired associations from the table, to
+	 * configure it or read its statistics.
+	 */
+	public JdbcJanitor getJanitor ( )
+	{
+		return _janitor ;
+	}
+
+	/**
+	 * Stops the janitor's background thread, which is not restarted by
+	 * later calls; to be called when the store is discarded, e.g. as the
+	 * destroy method of its Spring bean.
+	 */
+	public synchronized void shutdown ( )
+	{
+		_shutdown = true ;
+
+		if ( _janitor != null )
+			_janitor.shutdown ( ) ;
+	}
+
+	private synchronized void startJanitor ( )
+	{
+		if ( _janitor != null && ! _shutdown )
+			_janitor.start ( getDataSource ( ) ) ;
 	}
 
 	public Association load ( String opUrl, String handle )
@@ -222,8 +271,10 @@ public class JdbcConsumerAssociationStore
 
 	public void save ( String opUrl, Association association )
 	{
-		cleanupExpired ( ) ;
-		
+		JdbcJanitor janitor = _janitor ;
+		if ( janitor != null && ! janitor.isStarted ( ) )
+			startJanitor ( ) ;
+
 		try
 		{
 			JdbcTemplate jdbcTemplate = getJdbcTemplate ( ) ;
@@ -245,24 +296,4 @@ public class JdbcConsumerAssociationStore
 		}
 	}
 
-	private void cleanupExpired ( )
-	{
-		try
-		{
-			Date boundary = new Date ( ) ;
-			JdbcTemplate jdbcTemplate = getJdbcTemplate ( ) ;
-			int cnt = jdbcTemplate.update ( _sqlCleanup, new Object[]
-				{ boundary } ) ;
-
-			if ( _log.isDebugEnabled ( ) )
-				_log.debug ( "Client associations cleanup removed " + cnt
-								+ " entries" ) ;
-		}
-		catch ( Exception e )
-		{
-			_log.error ( "Error cleaning up client associations from table: "
-							+ _tableName, e ) ;
-		}
-	}
-
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+/**
+ * Generates the DDL for the tables used by {@link JdbcNonceVerifier}, for
+ * a few common SQL dialects.
+ * <p>
+ * The same statements create the single nonce table and, when the
+ * verifier uses time-partitioned tables, each of the partitions.
+ */
+public class JdbcNonceSchema
+{
+    /**
+     * ANSI SQL; also used for HSQLDB.
+     */
+    public static final JdbcNonceSchema GENERIC =
+            new JdbcNonceSchema("generic", "VARCHAR(255)", "TIMESTAMP", "");
+
+    public static final JdbcNonceSchema HSQLDB =
+            new JdbcNonceSchema("hsqldb", "VARCHAR(255)", "TIMESTAMP", "");
+
+    public static final JdbcNonceSchema H2 =
+            new JdbcNonceSchema("h2", "VARCHAR(255)", "TIMESTAMP", "");
+
+    public static final JdbcNonceSchema MYSQL =
+            new JdbcNonceSchema("mysql", "VARCHAR(255) CHARACTER SET ascii",
+                                "DATETIME", " ENGINE=InnoDB");
+
+    public static final JdbcNonceSchema POSTGRESQL =
+            new JdbcNonceSchema("postgresql", "VARCHAR(255)", "TIMESTAMP", "");
+
+    private static final JdbcNonceSchema[] SCHEMAS =
+            new JdbcNonceSchema[] {GENERIC, HSQLDB, H2, MYSQL, POSTGRESQL};
+
+    private final String _name;
+    private final String _stringType;
+    private final String _dateType;
+    private final String _tableOptions;
+
+    protected JdbcNonceSchema(String name, String stringType,
+                              String dateType, String tableOptions)
+    {
+        _name = name;
+        _stringType = stringType;
+        _dateType = dateType;
+        _tableOptions = tableOptions;
+    }
+
+    /**
+     * Gets the schema for a dialect name: generic, hsqldb, h2, mysql or
+     * postgresql (case insensitive).
+     *
+     * @throws IllegalArgumentException if the dialect is not supported.
+     */
+    public static JdbcNonceSchema forName(String name)
+    {
+        for (int i = 0; i < SCHEMAS.length; i++)
+            if (SCHEMAS[i]._name.equalsIgnoreCase(name))
+                return SCHEMAS[i];
+
+        throw new IllegalArgumentException("Unsupported SQL dialect: " + name);
+    }
+
+    public String getName()
+    {
+        return _name;
+    }
+
+    public String getCreateTableSql(String tableName)
+    {
+        return "CREATE TABLE " + tableName + " (" +
+                "opurl " + _stringType + " NOT NULL, " +
+                "nonce " + _stringType + " NOT NULL, " +
+                "date " + _dateType + ", " +
+                "PRIMARY KEY (opurl, nonce))" + _tableOptions;
+    }
+
+    public String getDropTableSql(String tableName)
+    {
+        return "DROP TABLE " + tableName;
+    }
+
+    public String toString()
+    {
+        return _name;
+    }
+}
@@ -3,11 +3,26 @@ package org.openid4java.consumer ;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openid4java.util.JdbcJanitor;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
 
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 
@@ -33,6 +48,19 @@ import java.util.Date;
  * <li>primary key : opurl, nonce</li>
  * </ul>
  * </p>
+ * <p>
+ * Aged nonces are deleted in the background by a {@link JdbcJanitor},
+ * started with the first nonce check and stopped by {@link #shutdown()}.
+ * </p>
+ * <p>
+ * Alternatively, nonces can be kept in time-partitioned tables, named
+ * <code>tableName_N</code>, where N is the nonce timestamp divided by the
+ * partition interval. Nonces are inserted in their timestamp's partition,
+ * created when first needed (with the {@link JdbcNonceSchema} DDL), and the
+ * janitor drops whole partitions once all their nonces have aged, instead
+ * of deleting rows. Nonces with timestamps beyond the next partition are
+ * rejected.
+ * </p>
  * 
  * @author Andrew Evenson, Graff Haley
  * @created May 19, 2008
@@ -45,8 +73,24 @@ public class JdbcNonceVerifier
 
 	private NonceVerifier _verifier ;
 	private String _tableName ;
-	private String _deleteSQL ;
 	private String _insertSQL ;
+	private JdbcJanitor _janitor ;
+	private boolean _shutdown ;
+
+	/**
+	 * Width of the time partitions in seconds; 0 keeps all nonces in a
+	 * single table. Default: 0.
+	 */
+	private volatile int _partitionInterval = 0 ;
+
+	private JdbcNonceSchema _schema = JdbcNonceSchema.GENERIC ;
+
+	/**
+	 * The partitions known to exist (Long partition numbers).
+	 */
+	private final Set _partitions = Collections.synchronizedSet ( new HashSet ( ) ) ;
+
+	private final AtomicLong _partitionsDropped = new AtomicLong ( ) ;
 
 
 	public JdbcNonceVerifier ( int maxAge )
@@ -72,6 +116,10 @@ public class JdbcNonceVerifier
 
     public int seen ( String opUrl, String nonce )
 	{
+		JdbcJanitor janitor = _janitor ;
+		if ( janitor != null && ! janitor.isStarted ( ) )
+			startJanitor ( ) ;
+
 		return _verifier.seen ( opUrl, nonce ) ;
 	}
 
@@ -80,11 +128,234 @@ public class JdbcNonceVerifier
 		return _tableName ;
 	}
 
-	public void setTableName ( String tableName )
+	public synchronized void setTableName ( String tableName )
 	{
 		this._tableName = tableName ;
-		this._deleteSQL = "DELETE FROM " + tableName + " WHERE date<?" ;
 		this._insertSQL = "INSERT INTO " + tableName + " (opurl, nonce, date) VALUES (?,?,?)" ;
+
+		JdbcJanitor janitor = new JdbcJanitor ( tableName, "date", new String[]
+			{ "opurl", "nonce" } )
+		{
+			protected Date getBoundary ( )
+			{
+				return new Date ( System.currentTimeMillis ( ) - 1000L * getMaxAge ( ) ) ;
+			}
+
+			protected int deleteExpired ( DataSource dataSource )
+			{
+				if ( _partitionInterval == 0 )
+					return super.deleteExpired ( dataSource ) ;
+
+				dropAgedPartitions ( ) ;
+				return 0 ;
+			}
+		} ;
+
+		if ( _janitor != null )
+		{
+			janitor.setInterval ( _janitor.getInterval ( ) ) ;
+			janitor.setBatchSize ( _janitor.getBatchSize ( ) ) ;
+			janitor.setMaxBatches ( _janitor.getMaxBatches ( ) ) ;
+			_janitor.shutdown ( ) ;
+		}
+
+		_janitor = janitor ;
+	}
+
+	/**
+	 * Gets the janitor deleting the aged nonces from the table, to configure
+	 * it or read its statistics.
+	 */
+	public JdbcJanitor getJanitor ( )
+	{
+		return _janitor ;
+	}
+
+	/**
+	 * Stops the janitor's background thread, which is not restarted by
+	 * later calls; to be called when the verifier is discarded, e.g. as the
+	 * destroy method of its Spring bean.
+	 */
+	public synchronized void shutdown ( )
+	{
+		_shutdown = true ;
+
+		if ( _janitor != null )
+			_janitor.shutdown ( ) ;
+	}
+
+	private synchronized void startJanitor ( )
+	{
+		if ( _janitor != null && ! _shutdown )
+			_janitor.start ( getDataSource ( ) ) ;
+	}
+
+	public int getPartitionInterval ( )
+	{
+		return _partitionInterval ;
+	}
+
+	/**
+	 * Sets the width of the time partitions, in seconds; 0 disables the
+	 * partitioning. Should be set before the verifier is used, and be at
+	 * least the janitor's interval, so that the next partition is created
+	 * ahead of time.
+	 */
+	public void setPartitionInterval ( int partitionInterval )
+	{
+		if ( partitionInterval < 0 )
+			throw new IllegalArgumentException ( "Invalid partition interval: " + partitionInterval ) ;
+
+		_partitionInterval = partitionInterval ;
+	}
+
+	public JdbcNonceSchema getSchema ( )
+	{
+		return _schema ;
+	}
+
+	/**
+	 * Sets the dialect used to create the partitions. Default: generic.
+	 */
+	public void setSchema ( JdbcNonceSchema schema )
+	{
+		_schema = schema ;
+	}
+
+	/**
+	 * Gets the number of partitions dropped by the janitor.
+	 */
+	public long getPartitionsDropped ( )
+	{
+		return _partitionsDropped.get ( ) ;
+	}
+
+	/**
+	 * Gets the name of the partition table for a partition number.
+	 */
+	public String getPartitionName ( long partition )
+	{
+		return _tableName + "_" + partition ;
+	}
+
+	private long getPartition ( long time )
+	{
+		return time / ( 1000L * _partitionInterval ) ;
+	}
+
+	/**
+	 * Creates the partition table, unless known to exist.
+	 */
+	private void createPartition ( long partition )
+	{
+		Long key = new Long ( partition ) ;
+
+		if ( _partitions.contains ( key ) ) return ;
+
+		String name = getPartitionName ( partition ) ;
+
+		try
+		{
+			getJdbcTemplate ( ).execute ( _schema.getCreateTableSql ( name ) ) ;
+			_log.info ( "Created nonce partition: " + name ) ;
+		}
+		catch ( DataAccessException e )
+		{
+			// most likely created meanwhile by another node
+			if ( _log.isDebugEnabled ( ) )
+				_log.debug ( "Could not create nonce partition: " + name, e ) ;
+		}
+
+		_partitions.add ( key ) ;
+	}
+
+	/**
+	 * Creates the next partition and drops those whose nonces have all aged.
+	 */
+	private void dropAgedPartitions ( )
+	{
+		long now = System.currentTimeMillis ( ) ;
+		long width = 1000L * _partitionInterval ;
+
+		createPartition ( getPartition ( now ) + 1 ) ;
+
+		Iterator partitions = listPartitions ( ).iterator ( ) ;
+		while ( partitions.hasNext ( ) )
+		{
+			Long partition = (Long) partitions.next ( ) ;
+
+			// the partition's last timestamp is older than the max age
+			if ( ( partition.longValue ( ) + 1 ) * width > now - 1000L * getMaxAge ( ) )
+				continue ;
+
+			String name = getPartitionName ( partition.longValue ( ) ) ;
+
+			_partitions.remove ( partition ) ;
+
+			try
+			{
+				getJdbcTemplate ( ).execute ( _schema.getDropTableSql ( name ) ) ;
+				_partitionsDropped.incrementAndGet ( ) ;
+				_log.info ( "Dropped nonce partition: " + name ) ;
+			}
+			catch ( DataAccessException e )
+			{
+				_log.warn ( "Could not drop nonce partition: " + name, e ) ;
+			}
+		}
+	}
+
+	/**
+	 * Lists the existing partitions, from the database metadata.
+	 */
+	private List listPartitions ( )
+	{
+		final String prefix = _tableName + "_" ;
+
+		return (List) getJdbcTemplate ( ).execute ( new ConnectionCallback ( )
+		{
+			public Object doInConnection ( Connection con ) throws SQLException
+			{
+				DatabaseMetaData metaData = con.getMetaData ( ) ;
+
+				String pattern = prefix ;
+				if ( metaData.storesUpperCaseIdentifiers ( ) )
+					pattern = prefix.toUpperCase ( ) ;
+				else if ( metaData.storesLowerCaseIdentifiers ( ) )
+					pattern = prefix.toLowerCase ( ) ;
+
+				List partitions = new ArrayList ( ) ;
+
+				ResultSet rs = metaData.getTables ( null, null, pattern + "%", new String[]
+					{ "TABLE" } ) ;
+				try
+				{
+					while ( rs.next ( ) )
+					{
+						String name = rs.getString ( "TABLE_NAME" ) ;
+
+						// '_' matches any character in the pattern
+						if ( ! name.regionMatches ( true, 0, prefix, 0, prefix.length ( ) ) )
+							continue ;
+
+						try
+						{
+							partitions.add ( Long.valueOf ( name.substring ( prefix.length ( ) ) ) ) ;
+						}
+						catch ( NumberFormatException e )
+						{
+							// not a partition
+						}
+					}
+				}
+				finally
+				{
+					rs.close ( ) ;
+				}
+
+				return partitions ;
+			}
+		} ) ;
 	}
 
 
@@ -101,7 +372,7 @@ public class JdbcNonceVerifier
 		 * 
 		 * Implementation of the abstract nonce verifier. Uses the primary key
 		 * integrity constraint to evaluate nonces. This prevents a gap
-		 * between check and insert. Also, triggers the cleanup of old nonces.
+		 * between check and insert.
 		 * 
 		 * @param now
 		 * @param opUrl
@@ -110,12 +381,40 @@ public class JdbcNonceVerifier
 		 */
 		protected int seen ( Date now, String opUrl, String nonce )
 		{
-			cleanupAged ( ) ;
+			return insert ( _insertSQL, now, opUrl, nonce ) ;
+		}
+
+		/**
+		 * Inserts the nonce in the partition of its timestamp, if the nonces
+		 * are partitioned.
+		 */
+		protected int seen ( long now, long nonceTime, String opUrl, String nonce )
+		{
+			if ( _partitionInterval == 0 )
+				return super.seen ( now, nonceTime, opUrl, nonce ) ;
+
+			long partition = getPartition ( nonceTime ) ;
+
+			if ( partition > getPartition ( now ) + 1 )
+			{
+				_log.warn ( "Nonce timestamp too far in the future: " + nonce ) ;
+				return INVALID_TIMESTAMP ;
+			}
+
+			createPartition ( partition ) ;
+
+			return insert ( "INSERT INTO " + getPartitionName ( partition )
+							+ " (opurl, nonce, date) VALUES (?,?,?)",
+							new Date ( now ), opUrl, nonce ) ;
+		}
+
+		private int insert ( String sql, Date now, String opUrl, String nonce )
+		{
 			JdbcTemplate jdbcTemplate = getJdbcTemplate ( ) ;
 
 			try
 			{
-				jdbcTemplate.update ( _insertSQL, new Object[]
+				jdbcTemplate.update ( sql, new Object[]
 					{ opUrl, nonce, now } ) ;
 				return OK ;
 			}
@@ -130,22 +429,5 @@ public class JdbcNonceVerifier
 
 			return SEEN ;
 		}
-
-		private void cleanupAged ( )
-		{
-			try
-			{
-				Date boundary = new Date ( System.currentTimeMillis ( ) - 1000L * _maxAgeSeconds ) ;
-				JdbcTemplate jdbcTemplate = getJdbcTemplate ( ) ;
-				int cnt = jdbcTemplate.update ( _deleteSQL, new Object[]
-					{ boundary } ) ;
-
-				if ( _log.isDebugEnabled ( ) ) _log.debug ( "Client nonce cleanup removed " + cnt + " entries" ) ;
-			}
-			catch ( Exception e )
-			{
-				_log.error ( "Error cleaning up client nonces from table: " + _tableName, e ) ;
-			}
-		}
 	}
 }
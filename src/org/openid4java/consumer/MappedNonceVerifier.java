@@ -0,0 +1,354 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import org.openid4java.util.InternetDateCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * NonceVerifier backed by a memory-mapped hash file, which survives
+ * restarts and can be shared by the JVMs running on one host.
+ * <p>
+ * The file is an open-addressing hash table of fixed-size slots, holding
+ * a 128-bit hash of the OP URL and nonce together with the nonce
+ * timestamp. The slots are grouped in stripes; a nonce is only probed for
+ * and stored within the stripe its hash maps to, and a stripe is updated
+ * under a lock on its byte range of the file, so that the JVMs sharing the
+ * file exclude each other. A slot whose nonce has aged past the maximum
+ * age is reused for new nonces, so the file never needs cleaning up.
+ * <p>
+ * If all the slots of a stripe hold live nonces, new nonces mapping to it
+ * are rejected; the capacity should comfortably exceed the number of
+ * nonces received within the maximum age.
+ * <p>
+ * Only one verifier per file should be opened in a JVM.
+ */
+public class MappedNonceVerifier extends AbstractNonceVerifier
+{
+    private static Log _log = LogFactory.getLog(MappedNonceVerifier.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    /**
+     * Default number of slots.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 18;
+
+    private static final int MAGIC = 0x4e4f4e43;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SLOT_SIZE = 24;
+    private static final int STRIPE_SLOTS = 64;
+    private static final int STRIPE_SIZE = STRIPE_SLOTS * SLOT_SIZE;
+
+    private final File _file;
+    private final RandomAccessFile _raf;
+    private final FileChannel _channel;
+    private final MappedByteBuffer _buffer;
+    private final int _stripes;
+    private final Object[] _locks;
+
+    private final AtomicLong _rejected = new AtomicLong();
+
+    public MappedNonceVerifier(File file, int maxAge) throws IOException
+    {
+        this(file, maxAge, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens the hash file, creating it if needed. An existing file keeps
+     * the capacity it was created with.
+     *
+     * @param file      The hash file.
+     * @param maxAge    Maximum token age in seconds.
+     * @param capacity  Number of slots, rounded up to a multiple of 64.
+     */
+    public MappedNonceVerifier(File file, int maxAge, int capacity)
+            throws IOException
+    {
+        super(maxAge);
+
+        if (capacity < 1 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+        _file = file;
+        _raf = new RandomAccessFile(file, "rw");
+        _channel = _raf.getChannel();
+
+        try
+        {
+            _stripes = initHeader((capacity + STRIPE_SLOTS - 1) / STRIPE_SLOTS);
+            _buffer = _channel.map(FileChannel.MapMode.READ_WRITE,
+                    0, HEADER_SIZE + (long) _stripes * STRIPE_SIZE);
+        }
+        catch (IOException e)
+        {
+            _raf.close();
+            throw e;
+        }
+
+        _locks = new Object[_stripes];
+        for (int i = 0; i < _stripes; i++)
+            _locks[i] = new Object();
+
+        if (DEBUG) _log.debug("Opened nonce file: " + file +
+                              " slots: " + getCapacity());
+    }
+
+    /**
+     * Writes the header of a new file, or reads the geometry of an
+     * existing one.
+     *
+     * @return The number of stripes.
+     */
+    private int initHeader(int stripes) throws IOException
+    {
+        FileLock lock = _channel.lock(0, HEADER_SIZE, false);
+        try
+        {
+            if (_raf.length() >= HEADER_SIZE)
+            {
+                _raf.seek(0);
+                int magic = _raf.readInt();
+
+                if (magic == MAGIC)
+                {
+                    int version = _raf.readInt();
+                    int existing = _raf.readInt();
+
+                    if (version != VERSION || existing < 1 ||
+                            _raf.length() < HEADER_SIZE + (long) existing * STRIPE_SIZE)
+                        throw new IOException("Invalid nonce file: " + _file);
+
+                    return existing;
+                }
+
+                if (magic != 0)
+                    throw new IOException("Not a nonce file: " + _file);
+            }
+
+            _raf.setLength(HEADER_SIZE + (long) stripes * STRIPE_SIZE);
+
+            _raf.seek(0);
+            _raf.writeInt(MAGIC);
+            _raf.writeInt(VERSION);
+            _raf.writeInt(stripes);
+
+            _log.info("Created nonce file: " + _file +
+                      " slots: " + stripes * STRIPE_SLOTS);
+
+            return stripes;
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    public File getFile()
+    {
+        return _file;
+    }
+
+    /**
+     * Gets the number of slots in the file.
+     */
+    public int getCapacity()
+    {
+        return _stripes * STRIPE_SLOTS;
+    }
+
+    /**
+     * Gets the number of nonces rejected because their stripe was full.
+     */
+    public long getRejected()
+    {
+        return _rejected.get();
+    }
+
+    protected int seen(Date now, String opUrl, String nonce)
+    {
+        try
+        {
+            return seen(now.getTime(),
+                        InternetDateCodec.parseSeconds(nonce) * 1000, opUrl, nonce);
+        }
+        catch (ParseException e)
+        {
+            _log.error("Error verifying the nonce: " + nonce, e);
+            return INVALID_TIMESTAMP;
+        }
+    }
+
+    protected int seen(long now, long nonceTime, String opUrl, String nonce)
+    {
+        byte[] digest = digest(opUrl, nonce);
+        long hash1 = toLong(digest, 0);
+        long hash2 = toLong(digest, 8);
+
+        int stripe = (int) ((hash1 >>> 1) % _stripes);
+        int start = (int) ((hash2 >>> 1) % STRIPE_SLOTS);
+        int base = HEADER_SIZE + stripe * STRIPE_SIZE;
+
+        synchronized (_locks[stripe])
+        {
+            FileLock lock;
+            try
+            {
+                lock = _channel.lock(base, STRIPE_SIZE, false);
+            }
+            catch (IOException e)
+            {
+                _log.error("Cannot lock nonce file: " + _file, e);
+                return SEEN;
+            }
+
+            try
+            {
+                int free = -1;
+
+                for (int i = 0; i < STRIPE_SLOTS; i++)
+                {
+                    int slot = base + ((start + i) % STRIPE_SLOTS) * SLOT_SIZE;
+                    long timestamp = _buffer.getLong(slot + 16);
+
+                    // never used; nonces are not stored past an empty slot
+                    if (timestamp == 0)
+                    {
+                        if (free < 0) free = slot;
+                        break;
+                    }
+
+                    if (isTooOld(now, timestamp))
+                    {
+                        if (free < 0) free = slot;
+                        continue;
+                    }
+
+                    if (_buffer.getLong(slot) == hash1 &&
+                            _buffer.getLong(slot + 8) == hash2)
+                    {
+                        _log.error("Possible replay attack! Already seen nonce: " + nonce);
+                        return SEEN;
+                    }
+                }
+
+                if (free < 0)
+                {
+                    _rejected.incrementAndGet();
+                    _log.error("Nonce file full, rejecting nonce: " + nonce);
+                    return SEEN;
+                }
+
+                _buffer.putLong(free, hash1);
+                _buffer.putLong(free + 8, hash2);
+                _buffer.putLong(free + 16, nonceTime);
+            }
+            finally
+            {
+                try
+                {
+                    lock.release();
+                }
+                catch (IOException e)
+                {
+                    _log.error("Cannot unlock nonce file: " + _file, e);
+                }
+            }
+        }
+
+        if (DEBUG) _log.debug("Nonce verified: " + nonce);
+
+        return OK;
+    }
+
+    /**
+     * Gets the number of nonces that have not aged yet.
+     */
+    protected int size()
+    {
+        long now = System.currentTimeMillis();
+        int total = 0;
+
+        for (int stripe = 0; stripe < _stripes; stripe++)
+        {
+            synchronized (_locks[stripe])
+            {
+                int base = HEADER_SIZE + stripe * STRIPE_SIZE;
+
+                for (int i = 0; i < STRIPE_SLOTS; i++)
+                {
+                    long timestamp = _buffer.getLong(base + i * SLOT_SIZE + 16);
+
+                    if (timestamp != 0 && ! isTooOld(now, timestamp))
+                        total++;
+                }
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Writes the mapped file to disk; the operating system does so
+     * eventually, but this protects the nonces from a host crash.
+     */
+    public void force()
+    {
+        _buffer.force();
+    }
+
+    /**
+     * Closes the file; the verifier cannot be used afterwards.
+     */
+    public void close() throws IOException
+    {
+        _buffer.force();
+        _raf.close();
+    }
+
+    private static byte[] digest(String opUrl, String nonce)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(opUrl.getBytes("UTF-8"));
+            digest.update((byte) '\n');
+            digest.update(nonce.getBytes("UTF-8"));
+            return digest.digest();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("UTF-8 not available", e);
+        }
+    }
+
+    private static long toLong(byte[] bytes, int offset)
+    {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++)
+            value = (value << 8) | (bytes[i] & 0xff);
+        return value;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * NonceStore adapter for memcached, using the text protocol's
+ * <code>add</code> command, which only stores keys that are absent.
+ * <p>
+ * Keys must not contain spaces or control characters, and are at most
+ * 250 characters long; time-to-lives are at most 30 days.
+ */
+public class MemcachedNonceStore extends SocketNonceStore
+{
+    public static final int DEFAULT_PORT = 11211;
+
+    public MemcachedNonceStore(String host)
+    {
+        this(host, DEFAULT_PORT);
+    }
+
+    public MemcachedNonceStore(String host, int port)
+    {
+        super(host, port);
+    }
+
+    protected void writeRequest(OutputStream out, String key, int ttl)
+            throws IOException
+    {
+        write(out, "add " + key + " 0 " + ttl + " 1\r\n1\r\n");
+    }
+
+    protected boolean readReply(InputStream in) throws IOException
+    {
+        String reply = readLine(in);
+
+        if ("STORED".equals(reply))
+            return true;
+
+        if ("NOT_STORED".equals(reply))
+            return false;
+
+        throw new IOException("Unexpected memcached reply: " + reply);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import java.io.IOException;
+
+/**
+ * Minimal key-value store SPI for {@link DistributedNonceVerifier}: an
+ * atomic put-if-absent of keys that expire after a time-to-live.
+ * <p>
+ * Implementations must be safe for concurrent use, and the put-if-absent
+ * must be atomic across all the nodes sharing the store.
+ */
+public interface NonceStore
+{
+    /**
+     * Stores the key, unless present and not expired.
+     *
+     * @param key   The key.
+     * @param ttl   Time-to-live of the key, in seconds.
+     * @return      True if the key was stored, false if already present.
+     * @throws IOException if the store cannot be reached.
+     */
+    public boolean putIfAbsent(String key, int ttl) throws IOException;
+
+    /**
+     * Stores several keys, as if with {@link #putIfAbsent(String, int)}
+     * for each, in a single round trip where the store allows it.
+     *
+     * @return      For each key, true if it was stored.
+     * @throws IOException if the store cannot be reached; the keys
+     *          may have been stored or not.
+     */
+    public boolean[] putIfAbsent(String[] keys, int[] ttls) throws IOException;
+}
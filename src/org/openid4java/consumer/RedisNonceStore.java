@@ -0,0 +1,59 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * NonceStore adapter for Redis, using <code>SET key 1 NX EX ttl</code>,
+ * which only stores keys that are absent (Redis 2.6.12 or later).
+ * <p>
+ * Keys must be ASCII strings.
+ */
+public class RedisNonceStore extends SocketNonceStore
+{
+    public static final int DEFAULT_PORT = 6379;
+
+    public RedisNonceStore(String host)
+    {
+        this(host, DEFAULT_PORT);
+    }
+
+    public RedisNonceStore(String host, int port)
+    {
+        super(host, port);
+    }
+
+    protected void writeRequest(OutputStream out, String key, int ttl)
+            throws IOException
+    {
+        String[] args = new String[] {"SET", key, "1", "NX", "EX",
+                                      Integer.toString(ttl)};
+
+        StringBuffer request = new StringBuffer();
+        request.append('*').append(args.length).append("\r\n");
+        for (int i = 0; i < args.length; i++)
+            request.append('$').append(args[i].length()).append("\r\n")
+                    .append(args[i]).append("\r\n");
+
+        write(out, request.toString());
+    }
+
+    protected boolean readReply(InputStream in) throws IOException
+    {
+        String reply = readLine(in);
+
+        if ("+OK".equals(reply))
+            return true;
+
+        // null bulk string: not set, the key exists
+        if ("$-1".equals(reply))
+            return false;
+
+        throw new IOException("Unexpected Redis reply: " + reply);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Base for the NonceStore adapters speaking a key-value store's text
+ * protocol over a single socket connection.
+ * <p>
+ * Batches are pipelined: all the requests are written before reading the
+ * replies, so a batch costs one round trip. The connection is opened on
+ * first use and dropped on any I/O error, to be opened again by the next
+ * call.
+ */
+public abstract class SocketNonceStore implements NonceStore
+{
+    private static Log _log = LogFactory.getLog(SocketNonceStore.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    private final String _host;
+    private final int _port;
+
+    /**
+     * Connect timeout, in milliseconds. Default: 1000.
+     */
+    private int _connectTimeout = 1000;
+
+    /**
+     * Read timeout, in milliseconds. Default: 1000.
+     */
+    private int _socketTimeout = 1000;
+
+    private Socket _socket;
+    private InputStream _in;
+    private OutputStream _out;
+
+    protected SocketNonceStore(String host, int port)
+    {
+        _host = host;
+        _port = port;
+    }
+
+    public String getHost()
+    {
+        return _host;
+    }
+
+    public int getPort()
+    {
+        return _port;
+    }
+
+    public int getConnectTimeout()
+    {
+        return _connectTimeout;
+    }
+
+    public synchronized void setConnectTimeout(int connectTimeout)
+    {
+        _connectTimeout = connectTimeout;
+    }
+
+    public int getSocketTimeout()
+    {
+        return _socketTimeout;
+    }
+
+    public synchronized void setSocketTimeout(int socketTimeout)
+    {
+        _socketTimeout = socketTimeout;
+    }
+
+    public boolean putIfAbsent(String key, int ttl) throws IOException
+    {
+        return putIfAbsent(new String[] {key}, new int[] {ttl})[0];
+    }
+
+    public synchronized boolean[] putIfAbsent(String[] keys, int[] ttls)
+            throws IOException
+    {
+        if (_socket == null)
+            connect();
+
+        try
+        {
+            for (int i = 0; i < keys.length; i++)
+                writeRequest(_out, keys[i], ttls[i]);
+
+            _out.flush();
+
+            boolean[] results = new boolean[keys.length];
+            for (int i = 0; i < keys.length; i++)
+                results[i] = readReply(_in);
+
+            return results;
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    private void connect() throws IOException
+    {
+        Socket socket = new Socket();
+
+        try
+        {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(_socketTimeout);
+            socket.connect(new InetSocketAddress(_host, _port), _connectTimeout);
+
+            _in = new BufferedInputStream(socket.getInputStream());
+            _out = new BufferedOutputStream(socket.getOutputStream());
+            _socket = socket;
+        }
+        catch (IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+
+        if (DEBUG) _log.debug("Connected to nonce store: " + _host + ":" + _port);
+    }
+
+    /**
+     * Closes the connection; the next call opens a new one.
+     */
+    public synchronized void close()
+    {
+        if (_socket == null) return;
+
+        try
+        {
+            _socket.close();
+        }
+        catch (IOException e)
+        {
+            _log.warn("Error closing connection to nonce store: " +
+                      _host + ":" + _port, e);
+        }
+
+        _socket = null;
+        _in = null;
+        _out = null;
+    }
+
+    /**
+     * Writes the put-if-absent request for a key.
+     */
+    protected abstract void writeRequest(OutputStream out, String key, int ttl)
+            throws IOException;
+
+    /**
+     * Reads the reply to a put-if-absent request.
+     *
+     * @return True if the key was stored.
+     * @throws IOException on errors, including error replies.
+     */
+    protected abstract boolean readReply(InputStream in) throws IOException;
+
+    protected static void write(OutputStream out, String ascii) throws IOException
+    {
+        for (int i = 0; i < ascii.length(); i++)
+            out.write(ascii.charAt(i));
+    }
+
+    /**
+     * Reads a CRLF terminated line, without the terminator.
+     */
+    protected static String readLine(InputStream in) throws IOException
+    {
+        StringBuffer line = new StringBuffer();
+
+        while (true)
+        {
+            int c = in.read();
+
+            if (c == -1)
+                throw new EOFException("Connection closed by the nonce store");
+
+            if (c == '\n')
+            {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r')
+                    line.setLength(length - 1);
+
+                return line.toString();
+            }
+
+            line.append((char) c);
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Compact, versioned encoding for {@link DiscoveryInformation} and
+ * {@link Identifier} objects.
+ * <p>
+ * Intended for saving the discovered information between the
+ * authentication request and the verification of the response: in a
+ * (replicated) HTTP session, in a cookie or in the return_to URL.
+ * Well-known service types are encoded as single bytes and URL identifiers
+ * as their normalized string, which makes the result several times smaller
+ * than the Java serialization of the same objects.
+ * <p>
+ * When constructed with a key, the encoded data is authenticated with
+ * HMAC-SHA256 and decoding fails if the data was tampered with. Data that
+ * leaves the server (cookies, return_to URLs) MUST be signed.
+ */
+public class DiscoveryInformationCodec
+{
+    private static Log _log = LogFactory.getLog(DiscoveryInformationCodec.class);
+
+    /**
+     * Current version of the encoding; first byte of the encoded data.
+     */
+    public static final int VERSION = 1;
+
+    public static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+
+    private static final int FLAG_CLAIMED   = 0x01;
+    private static final int FLAG_XRI       = 0x02;
+    private static final int FLAG_DELEGATE  = 0x04;
+    private static final int FLAG_TYPES     = 0x08;
+    private static final int FLAG_VERSION   = 0x10;
+
+    private static final int IDENTIFIER_URL = 0;
+    private static final int IDENTIFIER_XRI = 1;
+
+    private static final int TYPE_CUSTOM = 0xFF;
+
+    /**
+     * Well-known service types, encoded by their index.
+     */
+    private static final String[] KNOWN_TYPES = new String[] {
+        DiscoveryInformation.OPENID10,
+        DiscoveryInformation.OPENID11,
+        DiscoveryInformation.OPENID2,
+        DiscoveryInformation.OPENID2_OP,
+        DiscoveryInformation.OPENID2_RP,
+    };
+
+    private final SecretKeySpec _macKey;
+
+    /**
+     * Creates a codec producing unsigned data; suitable only for storage
+     * that is not controlled by the user agent, e.g. the HTTP session.
+     */
+    public DiscoveryInformationCodec()
+    {
+        _macKey = null;
+    }
+
+    /**
+     * Creates a codec that signs the encoded data and verifies
+     * the signature when decoding.
+     *
+     * @param key   Secret key for HMAC-SHA256, at least 16 bytes;
+     *              should be shared by all the nodes of a cluster.
+     */
+    public DiscoveryInformationCodec(byte[] key)
+    {
+        if (key == null || key.length < 16)
+            throw new IllegalArgumentException(
+                    "Signing key must be at least 16 bytes long.");
+
+        _macKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+    }
+
+    public boolean isSigned()
+    {
+        return _macKey != null;
+    }
+
+    /**
+     * Encodes the discovered information into bytes.
+     */
+    public byte[] encode(DiscoveryInformation discovered) throws DiscoveryException
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            int flags = 0;
+            if (discovered.hasClaimedIdentifier())
+                flags |= FLAG_CLAIMED;
+            if (discovered.getClaimedIdentifier() instanceof XriIdentifier)
+                flags |= FLAG_XRI;
+            if (discovered.hasDelegateIdentifier())
+                flags |= FLAG_DELEGATE;
+            if (discovered.getTypes() != null)
+                flags |= FLAG_TYPES;
+            if (discovered.getVersion() != null)
+                flags |= FLAG_VERSION;
+
+            out.writeByte(VERSION);
+            out.writeByte(flags);
+            out.writeUTF(discovered.getOPEndpoint().toExternalForm());
+
+            if (discovered.getVersion() != null)
+                writeType(out, discovered.getVersion());
+
+            if (discovered.hasClaimedIdentifier())
+                writeIdentifier(out, discovered.getClaimedIdentifier());
+
+            if (discovered.hasDelegateIdentifier())
+                out.writeUTF(discovered.getDelegateIdentifier());
+
+            if (discovered.getTypes() != null)
+            {
+                Set types = discovered.getTypes();
+                out.writeShort(types.size());
+                Iterator iter = types.iterator();
+                while (iter.hasNext())
+                    writeType(out, (String) iter.next());
+            }
+
+            out.flush();
+            return sign(bytes.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new DiscoveryException("Cannot encode discovery information", e);
+        }
+    }
+
+    /**
+     * Decodes discovered information encoded with {@link #encode}.
+     *
+     * @throws DiscoveryException if the data is malformed, of an unknown
+     *         version, or its signature is invalid.
+     */
+    public DiscoveryInformation decode(byte[] data) throws DiscoveryException
+    {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(verify(data)));
+
+        try
+        {
+            readVersion(in);
+            int flags = in.readUnsignedByte();
+
+            URL opEndpoint = new URL(in.readUTF());
+
+            String version = (flags & FLAG_VERSION) != 0 ? readType(in) : null;
+
+            Identifier claimed = null;
+            if ((flags & FLAG_CLAIMED) != 0)
+                claimed = readIdentifier(in);
+
+            String delegate = (flags & FLAG_DELEGATE) != 0 ? in.readUTF() : null;
+
+            Set types = null;
+            if ((flags & FLAG_TYPES) != 0)
+            {
+                int count = in.readUnsignedShort();
+                types = new HashSet(count);
+                for (int i = 0; i < count; i++)
+                    types.add(readType(in));
+            }
+
+            if (in.available() > 0)
+                throw new DiscoveryException("Trailing data in encoded discovery information");
+
+            return new DiscoveryInformation(opEndpoint, claimed, delegate, version, types);
+        }
+        catch (MalformedURLException e)
+        {
+            throw new DiscoveryException("Invalid OP endpoint in encoded discovery information", e);
+        }
+        catch (IOException e)
+        {
+            throw new DiscoveryException("Malformed encoded discovery information", e);
+        }
+    }
+
+    /**
+     * Encodes the discovered information into a URL-safe string,
+     * usable as a cookie value or URL parameter without further escaping.
+     */
+    public String encodeToString(DiscoveryInformation discovered) throws DiscoveryException
+    {
+        return toUrlSafeString(encode(discovered));
+    }
+
+    public DiscoveryInformation decodeFromString(String encoded) throws DiscoveryException
+    {
+        return decode(fromUrlSafeString(encoded));
+    }
+
+    /**
+     * Encodes an identifier into bytes.
+     */
+    public byte[] encode(Identifier identifier) throws DiscoveryException
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeByte(VERSION);
+            writeIdentifier(out, identifier);
+
+            out.flush();
+            return sign(bytes.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new DiscoveryException("Cannot encode identifier", e);
+        }
+    }
+
+    /**
+     * Decodes an identifier encoded with {@link #encode(Identifier)}.
+     */
+    public Identifier decodeIdentifier(byte[] data) throws DiscoveryException
+    {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(verify(data)));
+
+        try
+        {
+            readVersion(in);
+            Identifier identifier = readIdentifier(in);
+
+            if (in.available() > 0)
+                throw new DiscoveryException("Trailing data in encoded identifier");
+
+            return identifier;
+        }
+        catch (IOException e)
+        {
+            throw new DiscoveryException("Malformed encoded identifier", e);
+        }
+    }
+
+    public String encodeToString(Identifier identifier) throws DiscoveryException
+    {
+        return toUrlSafeString(encode(identifier));
+    }
+
+    public Identifier decodeIdentifierFromString(String encoded) throws DiscoveryException
+    {
+        return decodeIdentifier(fromUrlSafeString(encoded));
+    }
+
+    private void readVersion(DataInputStream in) throws IOException, DiscoveryException
+    {
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new DiscoveryException("Unsupported encoding version: " + version);
+    }
+
+    private void writeIdentifier(DataOutputStream out, Identifier identifier)
+            throws IOException, DiscoveryException
+    {
+        if (identifier instanceof XriIdentifier)
+        {
+            XriIdentifier xri = (XriIdentifier) identifier;
+            out.writeByte(IDENTIFIER_XRI);
+            out.writeUTF(xri.getIdentifier());
+            writeNullableUTF(out, xri.toIRINormalForm());
+            writeNullableUTF(out, xri.toURINormalForm());
+        }
+        else if (identifier instanceof UrlIdentifier)
+        {
+            out.writeByte(IDENTIFIER_URL);
+            out.writeUTF(identifier.getIdentifier());
+        }
+        else
+            throw new DiscoveryException("Unsupported identifier type: " +
+                    identifier.getClass().getName());
+    }
+
+    private Identifier readIdentifier(DataInputStream in)
+            throws IOException, DiscoveryException
+    {
+        int type = in.readUnsignedByte();
+
+        if (type == IDENTIFIER_URL)
+            // already normalized, normalization is idempotent
+            return new UrlIdentifier(in.readUTF());
+
+        else if (type == IDENTIFIER_XRI)
+            return new XriIdentifier(in.readUTF(),
+                    readNullableUTF(in), readNullableUTF(in));
+
+        else
+            throw new DiscoveryException("Unknown encoded identifier type: " + type);
+    }
+
+    private void writeNullableUTF(DataOutputStream out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private String readNullableUTF(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private void writeType(DataOutputStream out, String type) throws IOException
+    {
+        for (int i = 0; i < KNOWN_TYPES.length; i++)
+        {
+            if (KNOWN_TYPES[i].equals(type))
+            {
+                out.writeByte(i);
+                return;
+            }
+        }
+
+        out.writeByte(TYPE_CUSTOM);
+        out.writeUTF(type);
+    }
+
+    private String readType(DataInputStream in) throws IOException, DiscoveryException
+    {
+        int code = in.readUnsignedByte();
+
+        if (code == TYPE_CUSTOM)
+            return in.readUTF();
+
+        if (code >= KNOWN_TYPES.length)
+            throw new DiscoveryException("Unknown encoded service type: " + code);
+
+        return KNOWN_TYPES[code];
+    }
+
+    private byte[] sign(byte[] payload) throws DiscoveryException
+    {
+        if (_macKey == null) return payload;
+
+        byte[] mac = computeMac(payload, payload.length);
+
+        byte[] signed = new byte[payload.length + mac.length];
+        System.arraycopy(payload, 0, signed, 0, payload.length);
+        System.arraycopy(mac, 0, signed, payload.length, mac.length);
+
+        return signed;
+    }
+
+    private byte[] verify(byte[] data) throws DiscoveryException
+    {
+        if (data == null || data.length == 0)
+            throw new DiscoveryException("No encoded data");
+
+        if (_macKey == null) return data;
+
+        if (data.length <= MAC_LENGTH)
+            throw new DiscoveryException("Encoded data too short to be signed");
+
+        int payloadLength = data.length - MAC_LENGTH;
+        byte[] expected = computeMac(data, payloadLength);
+
+        // constant time comparison
+        int result = 0;
+        for (int i = 0; i < MAC_LENGTH; i++)
+            result |= expected[i] ^ data[payloadLength + i];
+
+        if (result != 0)
+        {
+            _log.warn("Invalid signature on encoded discovery data.");
+            throw new DiscoveryException("Invalid signature on encoded data");
+        }
+
+        byte[] payload = new byte[payloadLength];
+        System.arraycopy(data, 0, payload, 0, payloadLength);
+        return payload;
+    }
+
+    private byte[] computeMac(byte[] data, int length) throws DiscoveryException
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(_macKey);
+            mac.update(data, 0, length);
+            return mac.doFinal();
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new DiscoveryException("Cannot sign encoded data", e);
+        }
+    }
+
+    /**
+     * Base64 encoding with the URL and filename safe alphabet (RFC 4648),
+     * without padding.
+     */
+    private static String toUrlSafeString(byte[] data) throws DiscoveryException
+    {
+        try
+        {
+            String base64 = new String(Base64.encodeBase64(data), "US-ASCII");
+
+            int end = base64.length();
+            while (end > 0 && base64.charAt(end - 1) == '=') end--;
+
+            return base64.substring(0, end).replace('+', '-').replace('/', '_');
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new DiscoveryException("Cannot encode data", e);
+        }
+    }
+
+    private static byte[] fromUrlSafeString(String encoded) throws DiscoveryException
+    {
+        if (encoded == null)
+            throw new DiscoveryException("No encoded data");
+
+        StringBuffer base64 = new StringBuffer(encoded.length() + 2);
+        for (int i = 0; i < encoded.length(); i++)
+        {
+            char c = encoded.charAt(i);
+            if (c == '-') base64.append('+');
+            else if (c == '_') base64.append('/');
+            else if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') ||
+                     (c >= '0' && c <= '9'))
+                base64.append(c);
+            else
+                throw new DiscoveryException("Invalid character in encoded data");
+        }
+        while (base64.length() % 4 != 0) base64.append('=');
+
+        try
+        {
+            return Base64.decodeBase64(base64.toString().getBytes("US-ASCII"));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new DiscoveryException("Cannot decode data", e);
+        }
+    }
+}
@@ -8,9 +8,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.net.*;
-import java.util.Set;
-import java.util.HashSet;
-import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * @author Marius Scurtescu, Johnny Bufu
@@ -20,27 +19,83 @@ public class UrlIdentifier implements Identifier
     private static Log _log = LogFactory.getLog(UrlIdentifier.class);
     private static final boolean DEBUG = _log.isDebugEnabled();
 
-    private static final Set UNRESERVED_CHARACTERS = new HashSet();
+    // character classes, indexed by (ASCII) character
+    private static final int UNRESERVED = 0x01;
+    private static final int PATH       = 0x02;
+    private static final int QUERY      = 0x04;
+    private static final int HEX        = 0x08;
+    private static final int HOST       = 0x10;
+
+    private static final byte[] CHAR_CLASSES = new byte[128];
 
     static
     {
         for (char c = 'a'; c <= 'z'; c++)
-            UNRESERVED_CHARACTERS.add(new Character(c));
+            CHAR_CLASSES[c] |= UNRESERVED | HOST;
 
         for (char c = 'A'; c <= 'Z'; c++)
-            UNRESERVED_CHARACTERS.add(new Character(c));
+            CHAR_CLASSES[c] |= UNRESERVED | HOST;
+
+        for (char c = '0'; c <= '9'; c++)
+            CHAR_CLASSES[c] |= UNRESERVED | HOST | HEX;
+
+        for (char c = 'a'; c <= 'f'; c++)
+            CHAR_CLASSES[c] |= HEX;
 
+        for (char c = 'A'; c <= 'F'; c++)
+            CHAR_CLASSES[c] |= HEX;
+
+        setCharClass("-._~", UNRESERVED);
+        setCharClass("-.", HOST);
+
+        // characters accepted as-is by the fast normalization path;
+        // anything else is left to java.net.URI
+        setCharClass("-._~!$&'()*+,;=:@/", PATH | QUERY);
+        for (char c = 'a'; c <= 'z'; c++)
+            CHAR_CLASSES[c] |= PATH | QUERY;
+        for (char c = 'A'; c <= 'Z'; c++)
+            CHAR_CLASSES[c] |= PATH | QUERY;
         for (char c = '0'; c <= '9'; c++)
-            UNRESERVED_CHARACTERS.add(new Character(c));
+            CHAR_CLASSES[c] |= PATH | QUERY;
+        setCharClass("?", QUERY);
+    }
+
+    private static void setCharClass(String chars, int charClass)
+    {
+        for (int i = 0; i < chars.length(); i++)
+            CHAR_CLASSES[chars.charAt(i)] |= charClass;
+    }
 
-        UNRESERVED_CHARACTERS.add(new Character('-'));
-        UNRESERVED_CHARACTERS.add(new Character('.'));
-        UNRESERVED_CHARACTERS.add(new Character('_'));
-        UNRESERVED_CHARACTERS.add(new Character('~'));
+    private static boolean isCharClass(char c, int charClass)
+    {
+        return c < 128 && (CHAR_CLASSES[c] & charClass) != 0;
     }
 
+    /**
+     * Bounded cache of (fragment flag + identifier text) -> normalized URL.
+     * Disabled (size 0) by default.
+     */
+    private static volatile int _internCacheSize = 0;
+
+    private static final Map _internCache = new LinkedHashMap(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            return size() > _internCacheSize;
+        }
+    };
+
     private final URL _urlIdentifier;
 
+    /**
+     * The normalized identifier string; equality and hash code are based
+     * on it, since the normalized URL components are already lower-cased
+     * and stripped of default ports.
+     */
+    private transient String _externalForm;
+
+    private transient int _hashCode;
+
     public UrlIdentifier(String identifier) throws DiscoveryException
     {
         this(identifier, false);
@@ -60,55 +115,28 @@ public class UrlIdentifier implements Identifier
         if (o == null || getClass() != o.getClass())
             return false;
 
-        final URL thisUrl = _urlIdentifier;
-        final URL thatUrl = ((UrlIdentifier) o)._urlIdentifier;
-
-        if (thisUrl == null || thatUrl == null)
-            return thisUrl == thatUrl;
-        else
-            return stringsEqualIgnoreCase(thisUrl.getProtocol(), thatUrl.getProtocol()) &&
-                   stringsEqualIgnoreCase(thisUrl.getHost(), thatUrl.getHost()) &&
-                   (
-                       (thisUrl.getPort() == -1 ? thisUrl.getDefaultPort() : thisUrl.getPort())
-                        ==
-                       (thatUrl.getPort() == -1 ? thatUrl.getDefaultPort() : thatUrl.getPort())
-                   ) &&
-                   stringsEqual(thisUrl.getFile(), thatUrl.getFile()) &&
-                   stringsEqual(thisUrl.getRef(), thatUrl.getRef());
+        return getIdentifier().equals(((UrlIdentifier) o).getIdentifier());
     }
 
     public int hashCode()
     {
-        int result = 0;
-
-        if (_urlIdentifier.getProtocol() != null)
-            result += _urlIdentifier.getProtocol().hashCode();
-
-        if (_urlIdentifier.getHost() != null)
-            result += _urlIdentifier.getHost().toLowerCase().hashCode();
+        if (_hashCode == 0)
+            _hashCode = getIdentifier().hashCode();
 
-        if (_urlIdentifier.getFile() != null)
-            result += _urlIdentifier.getFile().hashCode();
-
-        if (_urlIdentifier.getPort() == -1)
-            result += _urlIdentifier.getDefaultPort();
-        else
-            result += _urlIdentifier.getPort();
-
-        if (_urlIdentifier.getRef() != null)
-            result += _urlIdentifier.getRef().hashCode();
-
-        return result;
+        return _hashCode;
     }
 
     public String getIdentifier()
     {
-        return _urlIdentifier.toExternalForm();
+        if (_externalForm == null)
+            _externalForm = _urlIdentifier.toExternalForm();
+
+        return _externalForm;
     }
 
     public String toString()
     {
-        return _urlIdentifier.toExternalForm();
+        return getIdentifier();
     }
 
     public URL getUrl()
@@ -116,6 +144,36 @@ public class UrlIdentifier implements Identifier
         return _urlIdentifier;
     }
 
+    /**
+     * Gets the maximum number of normalized identifiers kept
+     * in the intern cache.
+     */
+    public static int getInternCacheSize()
+    {
+        synchronized (_internCache)
+        {
+            return _internCacheSize;
+        }
+    }
+
+    /**
+     * Sets the maximum number of normalized identifiers kept in the intern
+     * cache, so that frequently seen identifiers are normalized only once.
+     * <p>
+     * Default: 0 (disabled).
+     */
+    public static void setInternCacheSize(int internCacheSize)
+    {
+        synchronized (_internCache)
+        {
+            _internCacheSize = internCacheSize;
+            if (internCacheSize <= 0)
+                _internCache.clear();
+            while (_internCache.size() > internCacheSize)
+                _internCache.remove(_internCache.keySet().iterator().next());
+        }
+    }
+
     public static URL normalize(String text) throws DiscoveryException
     {
         return normalize(text, false);
@@ -123,6 +181,215 @@ public class UrlIdentifier implements Identifier
 
     public static URL normalize(String text, boolean removeFragment)
         throws DiscoveryException
+    {
+        String cacheKey = null;
+        if (_internCacheSize > 0)
+        {
+            cacheKey = (removeFragment ? "0" : "1") + text;
+            synchronized (_internCache)
+            {
+                URL cached = (URL) _internCache.get(cacheKey);
+                if (cached != null) return cached;
+            }
+        }
+
+        URL normalized;
+        try
+        {
+            normalized = fastNormalize(text, removeFragment);
+        }
+        catch (MalformedURLException e)
+        {
+            throw new DiscoveryException("Invalid URL identifier", e);
+        }
+
+        if (normalized == null)
+            normalized = uriNormalize(text, removeFragment);
+
+        if (DEBUG) _log.debug("Normalized: " + text + " to: " + normalized);
+
+        if (cacheKey != null)
+        {
+            synchronized (_internCache)
+            {
+                if (_internCacheSize > 0)
+                    _internCache.put(cacheKey, normalized);
+            }
+        }
+
+        return normalized;
+    }
+
+    /**
+     * Normalizes plain http(s) URLs in a single pass over the input.
+     *
+     * @return  The normalized URL, or null if the input contains anything
+     *          (user info, IPv6 literals, dot segments, non-ASCII or
+     *          invalid characters) that needs to be handled by
+     *          {@link #uriNormalize(String, boolean)}.
+     */
+    static URL fastNormalize(String text, boolean removeFragment)
+            throws MalformedURLException
+    {
+        int len = text.length();
+
+        // scheme
+        String protocol;
+        int pos;
+        if (text.regionMatches(true, 0, "http://", 0, 7))
+        {
+            protocol = "http";
+            pos = 7;
+        }
+        else if (text.regionMatches(true, 0, "https://", 0, 8))
+        {
+            protocol = "https";
+            pos = 8;
+        }
+        else
+            return null;
+
+        // host
+        int hostStart = pos;
+        boolean lowerCase = true;
+        char c;
+        while (pos < len && isCharClass(c = text.charAt(pos), HOST))
+        {
+            if (c >= 'A' && c <= 'Z') lowerCase = false;
+            pos++;
+        }
+        if (! isHostname(text, hostStart, pos)) return null;
+
+        String host = text.substring(hostStart, pos);
+        if (! lowerCase) host = host.toLowerCase();
+
+        // port
+        int port = -1;
+        if (pos < len && text.charAt(pos) == ':')
+        {
+            int portStart = ++pos;
+            port = 0;
+            while (pos < len && (c = text.charAt(pos)) >= '0' && c <= '9')
+            {
+                port = port * 10 + (c - '0');
+                pos++;
+            }
+            if (pos == portStart || pos - portStart > 5) return null;
+
+            if (port == ("https".equals(protocol) ? 443 : 80))
+                port = -1;
+        }
+
+        if (pos < len && (c = text.charAt(pos)) != '/' && c != '?' && c != '#')
+            return null;
+
+        // path, query and fragment
+        StringBuffer file = new StringBuffer(len - pos + 1);
+        if (pos == len || text.charAt(pos) != '/')
+            file.append('/');
+
+        // the fragment is validated even if it gets removed
+        int charClass = PATH;
+        boolean fragment = false;
+        int fileEnd = -1;
+        for (; pos < len; pos++)
+        {
+            c = text.charAt(pos);
+
+            if (c == '?' && charClass == PATH)
+            {
+                charClass = QUERY;
+                file.append(c);
+            }
+            else if (c == '#')
+            {
+                if (fragment) return null;
+                fragment = true;
+                charClass = QUERY;
+                if (removeFragment) fileEnd = file.length();
+                file.append(c);
+            }
+            else if (c == '%')
+            {
+                if (pos + 2 >= len ||
+                        ! isCharClass(text.charAt(pos + 1), HEX) ||
+                        ! isCharClass(text.charAt(pos + 2), HEX))
+                    return null;
+
+                char decoded = (char) (Character.digit(text.charAt(pos + 1), 16) * 16 +
+                        Character.digit(text.charAt(pos + 2), 16));
+
+                if (isCharClass(decoded, UNRESERVED))
+                    file.append(decoded);
+                else
+                    file.append('%')
+                        .append(Character.toUpperCase(text.charAt(pos + 1)))
+                        .append(Character.toUpperCase(text.charAt(pos + 2)));
+
+                pos += 2;
+            }
+            else if (isCharClass(c, charClass))
+            {
+                // empty and dot segments need java.net.URI path normalization
+                if (c == '/' && charClass == PATH &&
+                        (isDotSegment(text, pos + 1) || (pos + 1 < len && text.charAt(pos + 1) == '/')))
+                    return null;
+
+                file.append(c);
+            }
+            else
+                return null;
+        }
+
+        if (fileEnd != -1)
+            file.setLength(fileEnd);
+
+        return new URL(protocol, host, port, file.toString());
+    }
+
+    /**
+     * Checks for a plain DNS host name: non-empty labels starting and ending
+     * with an alphanumeric character, the last one starting with a letter.
+     */
+    private static boolean isHostname(String text, int start, int end)
+    {
+        if (start == end) return false;
+
+        int labelStart = start;
+        for (int i = start; i <= end; i++)
+        {
+            if (i < end && text.charAt(i) != '.') continue;
+
+            if (i == labelStart ||
+                    text.charAt(labelStart) == '-' || text.charAt(i - 1) == '-')
+                return false;
+
+            if (i == end && ! Character.isLetter(text.charAt(labelStart)))
+                return false;
+
+            labelStart = i + 1;
+        }
+
+        return true;
+    }
+
+    private static boolean isDotSegment(String text, int start)
+    {
+        int len = text.length();
+        int end = start;
+        while (end < len && end - start < 3 && text.charAt(end) == '.')
+            end++;
+
+        return (end - start == 1 || end - start == 2) &&
+               (end == len || "/?#".indexOf(text.charAt(end)) != -1);
+    }
+
+    /**
+     * Normalizes any URL using java.net.URI; used for the inputs
+     * not handled by {@link #fastNormalize(String, boolean)}.
+     */
+    static URL uriNormalize(String text, boolean removeFragment)
+        throws DiscoveryException
     {
         try
         {
@@ -151,11 +418,7 @@ public class UrlIdentifier implements Identifier
             if (fragment != null && ! removeFragment)
                 file = file + "#" + fragment;
 
-            URL normalized = new URL(protocol, host, port, file);
-
-            if (DEBUG) _log.debug("Normalized: " + text + " to: " + normalized);
-
-            return normalized;
+            return new URL(protocol, host, port, file);
         }
         catch (MalformedURLException e)
         {
@@ -165,15 +428,6 @@ public class UrlIdentifier implements Identifier
         {
             throw new DiscoveryException("Invalid URL identifier", e);
         }
-
-    }
-
-    private static boolean stringsEqual(String s1, String s2) {
-        return s1 == null ? s2 == null : s1.equals(s2);
-    }
-
-    private static boolean stringsEqualIgnoreCase(String s1, String s2) {
-        return s1 == null ? s2 == null : s1.equalsIgnoreCase(s2);
     }
 
     private static String normalizeUrlEncoding(String text)
@@ -190,22 +444,17 @@ public class UrlIdentifier implements Identifier
 
             if (current == '%' && i < len - 2)
             {
-                String percentCode = text.substring(i, i + 3).toUpperCase();
-
-                try
-                {
-                    String str = URLDecoder.decode(percentCode, "ISO-8859-1");
-                    char chr = str.charAt(0);
-
-                    if (UNRESERVED_CHARACTERS.contains(new Character(chr)))
-                        normalized.append(chr);
-                    else
-                        normalized.append(percentCode);
-                }
-                catch (UnsupportedEncodingException e)
-                {
-                    normalized.append(percentCode);
-                }
+                char hi = text.charAt(i + 1);
+                char lo = text.charAt(i + 2);
+                int decoded = Character.digit(hi, 16) * 16 + Character.digit(lo, 16);
+
+                if (Character.digit(hi, 16) >= 0 && Character.digit(lo, 16) >= 0 &&
+                        isCharClass((char) decoded, UNRESERVED))
+                    normalized.append((char) decoded);
+                else
+                    normalized.append('%')
+                        .append(Character.toUpperCase(hi))
+                        .append(Character.toUpperCase(lo));
 
                 i += 2;
             }
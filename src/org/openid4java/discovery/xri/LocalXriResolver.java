@@ -30,6 +30,8 @@ public class LocalXriResolver implements XriResolver
     private static final boolean DEBUG = _log.isDebugEnabled();
 
     private Resolver _openXriResolver;
+
+    private XriResolverCache _cache = new XriResolverCache();
     
 
     public LocalXriResolver()
@@ -49,9 +51,35 @@ public class LocalXriResolver implements XriResolver
     	
     	return _openXriResolver;
     }
+
+    /**
+     * Gets the cache holding XRI resolution results.
+     */
+    public XriResolverCache getCache()
+    {
+        return _cache;
+    }
+
+    /**
+     * Sets the cache used for XRI resolution results; null disables caching.
+     */
+    public void setCache(XriResolverCache cache)
+    {
+        _cache = cache;
+    }
     
     public List discover(XriIdentifier xri) throws DiscoveryException
     {
+        if (_cache != null)
+        {
+            List cached = _cache.get(xri);
+            if (cached != null)
+            {
+                if (DEBUG) _log.debug("Returning cached XRI resolution for " + xri);
+                return cached;
+            }
+        }
+
         try
         {
         	ResolverFlags flags = new ResolverFlags();
@@ -76,7 +104,12 @@ public class LocalXriResolver implements XriResolver
             
             _log.info("XRI resolution succeeded on " + xri.toString());
 
-            return extractDiscoveryInformation(xrds, xri, _openXriResolver);
+            List endpoints = extractDiscoveryInformation(xrds, xri, _openXriResolver);
+
+            if (_cache != null)
+                _cache.put(xri, endpoints, xrd.getExpires());
+
+            return endpoints;
 
         }
         catch (Exception e)
@@ -15,15 +15,20 @@ import org.openid4java.util.HttpFetcher;
 import org.openid4java.util.HttpFetcherFactory;
 import org.openid4java.util.HttpRequestOptions;
 import org.openid4java.util.HttpResponse;
+import org.openid4java.util.InternetDateFormat;
 import org.openid4java.util.OpenID4JavaUtils;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @author jbufu
@@ -35,9 +40,14 @@ public class XriDotNetProxyResolver implements XriResolver
 
     private final HttpFetcher _httpFetcher;
 
+    private XriResolverCache _cache = new XriResolverCache();
+
     private final static String PROXY_URL = "https://xri.net/";
     private static final String XRDS_QUERY = "_xrd_r=application/xrds+xml";
 
+    private static final Pattern XRD_EXPIRES_PATTERN =
+            Pattern.compile("<(?:\\w+:)?Expires>\\s*([^<\\s]+)\\s*</(?:\\w+:)?Expires>");
+
     private static final String XRDS_PARSER_CLASS_NAME_KEY = "discovery.xrds.parser";
     private static final XrdsParser XRDS_PARSER;
     static {
@@ -72,8 +82,34 @@ public class XriDotNetProxyResolver implements XriResolver
       this(new HttpFetcherFactory());
     }
 
+    /**
+     * Gets the cache holding XRI resolution results.
+     */
+    public XriResolverCache getCache()
+    {
+        return _cache;
+    }
+
+    /**
+     * Sets the cache used for XRI resolution results; null disables caching.
+     */
+    public void setCache(XriResolverCache cache)
+    {
+        _cache = cache;
+    }
+
     public List discover(XriIdentifier xri) throws DiscoveryException
     {
+        if (_cache != null)
+        {
+            List cached = _cache.get(xri);
+            if (cached != null)
+            {
+                if (DEBUG) _log.debug("Returning cached XRI resolution for " + xri);
+                return cached;
+            }
+        }
+
         String hxri = PROXY_URL + xri.getIdentifier() + "?" + XRDS_QUERY;
         _log.info("Performing discovery on HXRI: " + hxri);
 
@@ -109,6 +145,10 @@ public class XriDotNetProxyResolver implements XriResolver
                     }
                 }
             }
+
+            if (_cache != null)
+                _cache.put(xri, results, extractExpires(resp.getBody()));
+
             return results;
         }
         catch (IOException e)
@@ -117,6 +157,35 @@ public class XriDotNetProxyResolver implements XriResolver
         }
     }
 
+    /**
+     * Extracts the Expires time of the final XRD in the XRDS document.
+     *
+     * @return  The expiration date, or null if not present or not parsable.
+     */
+    private Date extractExpires(String xrds)
+    {
+        if (xrds == null) return null;
+
+        String expires = null;
+        Matcher matcher = XRD_EXPIRES_PATTERN.matcher(xrds);
+        while (matcher.find())
+            expires = matcher.group(1);
+
+        if (expires == null) return null;
+
+        try
+        {
+            // drop fractional seconds, not supported by the date format
+            return new InternetDateFormat().parse(
+                    expires.replaceFirst("\\.\\d+", ""));
+        }
+        catch (ParseException e)
+        {
+            if (DEBUG) _log.debug("Cannot parse XRD Expires: " + expires);
+            return null;
+        }
+    }
+
     public XriIdentifier parseIdentifier(String identifier) throws DiscoveryException
     {
         // todo: http://code.google.com/p/openid4java/issues/detail?id=63
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery.xri;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openid4java.discovery.XriIdentifier;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size and time bounded cache for XRI resolution results, mapping
+ * {@link XriIdentifier}s to the list of DiscoveryInformation endpoints
+ * (with the CanonicalID as claimed identifier) obtained from resolution.
+ * <p>
+ * An entry is kept for at most the configured time-to-live, or until the
+ * XRD's Expires time if that comes first. When the maximum size is reached
+ * the least recently used entry is evicted.
+ */
+public class XriResolverCache
+{
+    private static Log _log = LogFactory.getLog(XriResolverCache.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    /**
+     * Maximum number of identifiers kept in the cache. Default: 1000.
+     */
+    private int _maxSize = 1000;
+
+    /**
+     * Maximum time (in seconds) a resolution result is kept. Default: 600s.
+     */
+    private int _ttl = 600;
+
+    /**
+     * Map of XriIdentifier -> CacheEntry, in access order.
+     */
+    private final Map _entries = new LinkedHashMap(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            if (size() > _maxSize)
+            {
+                _evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private long _hits;
+    private long _misses;
+    private long _evictions;
+    private long _expirations;
+
+    public XriResolverCache()
+    {
+    }
+
+    public XriResolverCache(int maxSize, int ttl)
+    {
+        setMaxSize(maxSize);
+        setTtl(ttl);
+    }
+
+    /**
+     * Returns a copy of the cached endpoint list for the XRI identifier,
+     * or null if no fresh resolution result is available.
+     */
+    public synchronized List get(XriIdentifier xri)
+    {
+        CacheEntry entry = (CacheEntry) _entries.get(xri);
+
+        if (entry == null)
+        {
+            _misses++;
+            return null;
+        }
+
+        if (entry.getExpiry() <= System.currentTimeMillis())
+        {
+            if (DEBUG) _log.debug("Cached XRI resolution expired for: " + xri);
+            _entries.remove(xri);
+            _expirations++;
+            _misses++;
+            return null;
+        }
+
+        _hits++;
+        return new ArrayList(entry.getEndpoints());
+    }
+
+    /**
+     * Caches the resolution result for the XRI identifier.
+     *
+     * @param xri       The resolved XRI identifier.
+     * @param endpoints List of DiscoveryInformation endpoints.
+     * @param expires   The Expires time of the final XRD, or null if
+     *                  not present.
+     */
+    public synchronized void put(XriIdentifier xri, List endpoints, Date expires)
+    {
+        if (_ttl <= 0 || _maxSize <= 0) return;
+
+        long now = System.currentTimeMillis();
+        long expiry = now + 1000L * _ttl;
+
+        if (expires != null && expires.getTime() < expiry)
+            expiry = expires.getTime();
+
+        if (expiry <= now)
+        {
+            if (DEBUG) _log.debug("XRD already expired, not caching: " + xri);
+            return;
+        }
+
+        _entries.put(xri, new CacheEntry(new ArrayList(endpoints), expiry));
+
+        if (DEBUG) _log.debug("Cached XRI resolution for: " + xri +
+                              " until: " + new Date(expiry));
+    }
+
+    public synchronized void remove(XriIdentifier xri)
+    {
+        _entries.remove(xri);
+    }
+
+    public synchronized void clear()
+    {
+        _entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        return _entries.size();
+    }
+
+    public synchronized int getMaxSize()
+    {
+        return _maxSize;
+    }
+
+    /**
+     * Sets the maximum number of identifiers kept in the cache;
+     * 0 disables caching.
+     */
+    public synchronized void setMaxSize(int maxSize)
+    {
+        _maxSize = maxSize;
+
+        while (_entries.size() > _maxSize)
+        {
+            _entries.remove(_entries.keySet().iterator().next());
+            _evictions++;
+        }
+    }
+
+    public synchronized int getTtl()
+    {
+        return _ttl;
+    }
+
+    /**
+     * Sets the maximum time (in seconds) a resolution result is kept;
+     * 0 disables caching.
+     */
+    public synchronized void setTtl(int ttl)
+    {
+        _ttl = ttl;
+    }
+
+    public synchronized long getHits()
+    {
+        return _hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return _misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return _evictions;
+    }
+
+    public synchronized long getExpirations()
+    {
+        return _expirations;
+    }
+
+    public String toString()
+    {
+        return "XriResolverCache size: " + size() + " hits: " + getHits() +
+               " misses: " + getMisses() + " evictions: " + getEvictions() +
+               " expirations: " + getExpirations();
+    }
+
+    private static class CacheEntry
+    {
+        private final List _endpoints;
+        private final long _expiry;
+
+        public CacheEntry(List endpoints, long expiry)
+        {
+            _endpoints = endpoints;
+            _expiry = expiry;
+        }
+
+        public List getEndpoints()
+        {
+            return _endpoints;
+        }
+
+        public long getExpiry()
+        {
+            return _expiry;
+        }
+    }
+}
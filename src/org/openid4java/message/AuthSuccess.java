@@ -9,7 +9,8 @@ import org.apache.commons.logging.LogFactory;
 import org.openid4java.OpenIDException;
 import org.openid4java.association.Association;
 import org.openid4java.association.AssociationException;
-import org.openid4java.util.InternetDateFormat;
+import org.openid4java.association.KeyValueSigner;
+import org.openid4java.util.InternetDateCodec;
 
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -82,7 +83,7 @@ public class AuthSuccess extends Message
         setHandle(assoc.getHandle());
 
         buildSignedList();
-        setSignature(signNow ? assoc.sign(getSignedText()) : "");
+        setSignature(signNow ? computeSignature(assoc) : "");
     }
 
     protected AuthSuccess(ParameterList params)
@@ -400,6 +401,69 @@ public class AuthSuccess extends Message
         return signedText.toString();
     }
 
+    /**
+     * Feeds the text on which the signature is applied into the signer,
+     * field by field, without building the signed text.
+     */
+    public void writeSignedText(KeyValueSigner signer)
+    {
+        String signList = getParameterValue("openid.signed");
+
+        // same fields as signList.split(","), without trailing empty ones
+        int end = signList.length();
+        while (end > 0 && signList.charAt(end - 1) == ',') end--;
+
+        if (end == 0 && signList.length() > 0)
+            return;
+
+        int start = 0;
+        while (start <= end)
+        {
+            int comma = signList.indexOf(',', start);
+            if (comma == -1 || comma > end) comma = end;
+
+            String key = signList.substring(start, comma);
+            signer.append(key, getParameterValue("openid." + key));
+
+            start = comma + 1;
+        }
+    }
+
+    /**
+     * Computes the signature of this message with the association.
+     */
+    public String computeSignature(Association assoc) throws AssociationException
+    {
+        KeyValueSigner signer = assoc.getSigner();
+        try
+        {
+            writeSignedText(signer);
+            return signer.signBase64();
+        }
+        finally
+        {
+            signer.release();
+        }
+    }
+
+    /**
+     * Verifies the signature of this message with the association,
+     * comparing the canonical encoding in constant time.
+     */
+    public boolean verifySignature(Association assoc) throws AssociationException
+    {
+        KeyValueSigner signer = assoc.getSigner();
+        try
+        {
+            writeSignedText(signer);
+            return signer.verify(getSignature());
+        }
+        finally
+        {
+            signer.release();
+        }
+    }
+
     public void validate() throws MessageException
     {
         super.validate();
@@ -514,10 +578,9 @@ public class AuthSuccess extends Message
             }
 
             // nonce format
-            InternetDateFormat _dateFormat = new InternetDateFormat();
             try
             {
-                _dateFormat.parse(nonce.substring(0, 20));
+                InternetDateCodec.parseSeconds(nonce);
             }
             catch (ParseException e)
             {
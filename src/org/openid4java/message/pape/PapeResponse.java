@@ -7,7 +7,7 @@ package org.openid4java.message.pape;
 import org.openid4java.message.ParameterList;
 import org.openid4java.message.MessageException;
 import org.openid4java.message.Parameter;
-import org.openid4java.util.InternetDateFormat;
+import org.openid4java.util.InternetDateCodec;
 import org.openid4java.OpenIDException;
 
 import java.util.*;
@@ -32,7 +32,6 @@ public class PapeResponse extends PapeMessage
 
     private static final String AUTH_POLICY_NONE = "http://schemas.openid.net/pape/policies/2007/06/none";
 
-    private static InternetDateFormat _dateFormat = new InternetDateFormat();
 
     /**
      * Constructs a Pape Response with an empty parameter list.
@@ -143,7 +142,7 @@ public class PapeResponse extends PapeMessage
      */
     public void setAuthTime(Date timestamp)
     {
-        set("auth_time", _dateFormat.format(timestamp));
+        set("auth_time", InternetDateCodec.format(timestamp));
     }
 
     /**
@@ -180,7 +179,7 @@ public class PapeResponse extends PapeMessage
         {
             try
             {
-                return _dateFormat.parse(authTime);
+                return new Date(InternetDateCodec.parseSeconds(authTime) * 1000);
             }
             catch (ParseException e)
             {
@@ -213,7 +212,7 @@ public class PapeResponse extends PapeMessage
         {
             try
             {
-                _dateFormat.parse(authTime);
+                InternetDateCodec.parseSeconds(authTime);
             }
             catch (ParseException e)
             {
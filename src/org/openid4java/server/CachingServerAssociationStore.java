@@ -0,0 +1,131 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.server;
+
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationCache;
+import org.openid4java.association.AssociationException;
+import org.openid4java.association.AssociationInvalidationListener;
+
+/**
+ * ServerAssociationStore decorator that keeps the decoded associations in
+ * memory, so that loading an association that was recently generated or
+ * loaded does not query the underlying (e.g. JDBC) store.
+ * <p>
+ * Associations are cached for the cache's time-to-live, bounded by their
+ * expiry, and dropped when removed through this store. When several nodes
+ * share the underlying store, removals can be propagated with an
+ * {@link AssociationInvalidationListener} that calls
+ * {@link #invalidate(String)} on the other nodes.
+ */
+public class CachingServerAssociationStore implements ServerAssociationStore
+{
+    private final ServerAssociationStore _store;
+
+    private final AssociationCache _cache;
+
+    // number of removals and invalidations, guarded by _cache
+    private long _removals;
+
+    private AssociationInvalidationListener _invalidationListener;
+
+    public CachingServerAssociationStore(ServerAssociationStore store)
+    {
+        this(store, new AssociationCache());
+    }
+
+    public CachingServerAssociationStore(ServerAssociationStore store,
+                                         AssociationCache cache)
+    {
+        _store = store;
+        _cache = cache;
+    }
+
+    public ServerAssociationStore getStore()
+    {
+        return _store;
+    }
+
+    public AssociationCache getCache()
+    {
+        return _cache;
+    }
+
+    public AssociationInvalidationListener getInvalidationListener()
+    {
+        return _invalidationListener;
+    }
+
+    /**
+     * Sets the listener notified when an association is removed through
+     * this store. Default: null.
+     */
+    public void setInvalidationListener(AssociationInvalidationListener listener)
+    {
+        _invalidationListener = listener;
+    }
+
+    public Association generate(String type, int expiryIn)
+            throws AssociationException
+    {
+        Association association = _store.generate(type, expiryIn);
+
+        _cache.put(association.getHandle(), association);
+
+        return association;
+    }
+
+    public Association load(String handle)
+    {
+        if (handle == null) return null;
+
+        Association association = _cache.get(handle);
+
+        if (association == null)
+        {
+            long removals;
+            synchronized (_cache)
+            {
+                removals = _removals;
+            }
+
+            association = _store.load(handle);
+
+            // an association read before a removal that happened meanwhile
+            // must not be cached, or it would stay loadable for the ttl
+            synchronized (_cache)
+            {
+                if (association != null && removals == _removals)
+                    _cache.put(handle, association);
+            }
+        }
+
+        return association;
+    }
+
+    public void remove(String handle)
+    {
+        _store.remove(handle);
+
+        invalidate(handle);
+
+        AssociationInvalidationListener listener = _invalidationListener;
+        if (listener != null)
+            listener.invalidated(null, handle);
+    }
+
+    /**
+     * Drops the association from the cache only; used to apply removals
+     * done on other nodes, after they were made in the underlying store.
+     */
+    public void invalidate(String handle)
+    {
+        synchronized (_cache)
+        {
+            _removals++;
+            _cache.remove(handle);
+        }
+    }
+}
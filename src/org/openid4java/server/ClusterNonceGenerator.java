@@ -0,0 +1,142 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.server;
+
+import org.openid4java.util.InternetDateCodec;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Lock-free NonceGenerator that produces nonces unique across a cluster of
+ * nodes, without coordination.
+ * <p>
+ * Nonces have the form <code>timestamp nodeId "." counter</code>, e.g.
+ * <code>2008-05-15T17:11:51Z3f9a0c1b72de.12</code>. The formatted timestamp
+ * is cached for the current second and the counter is atomic, restarting
+ * every second. The node id tells apart the nonces generated by different
+ * nodes in the same second; by default it is a random string, picked once
+ * per generator.
+ * <p>
+ * If the clock goes backwards, nonces keep the last timestamp until the
+ * clock catches up, so that no nonce is generated twice.
+ */
+public class ClusterNonceGenerator implements NonceGenerator
+{
+    private static Log _log = LogFactory.getLog(ClusterNonceGenerator.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String _nodeId;
+
+    private final AtomicReference _current = new AtomicReference();
+
+    /**
+     * Creates a generator with a random node id.
+     */
+    public ClusterNonceGenerator()
+    {
+        this(randomNodeId());
+    }
+
+    /**
+     * Creates a generator with the given node id, which must be unique among
+     * the nodes issuing nonces with the same timestamps.
+     *
+     * @param nodeId    Non-empty string of printable ASCII characters
+     *                  (33 to 126), other than '.'.
+     */
+    public ClusterNonceGenerator(String nodeId)
+    {
+        if (nodeId == null || nodeId.length() == 0)
+            throw new IllegalArgumentException("Node id required");
+
+        for (int i = 0; i < nodeId.length(); i++)
+        {
+            char c = nodeId.charAt(i);
+            if (c < 33 || c > 126 || c == '.')
+                throw new IllegalArgumentException("Invalid node id: " + nodeId);
+        }
+
+        _nodeId = nodeId;
+    }
+
+    public String getNodeId()
+    {
+        return _nodeId;
+    }
+
+    public String next()
+    {
+        long now = System.currentTimeMillis() / 1000;
+
+        Second second = (Second) _current.get();
+
+        while (second == null || second.getTime() < now)
+        {
+            Second next = new Second(now, _nodeId);
+
+            if (_current.compareAndSet(second, next))
+            {
+                second = next;
+                break;
+            }
+
+            second = (Second) _current.get();
+        }
+
+        String nonce = second.next();
+
+        if (DEBUG) _log.debug("Generated nonce: " + nonce);
+
+        return nonce;
+    }
+
+    private static String randomNodeId()
+    {
+        byte[] bytes = new byte[6];
+        new SecureRandom().nextBytes(bytes);
+
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[2 * i + 1] = HEX[bytes[i] & 0x0f];
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * The nonce prefix and counter for one second.
+     */
+    private static class Second
+    {
+        private final long _time;
+        private final String _prefix;
+        private final AtomicInteger _counter = new AtomicInteger();
+
+        public Second(long time, String nodeId)
+        {
+            _time = time;
+            _prefix = InternetDateCodec.format(time * 1000) + nodeId + ".";
+        }
+
+        public long getTime()
+        {
+            return _time;
+        }
+
+        public String next()
+        {
+            return _prefix + _counter.getAndIncrement();
+        }
+    }
+}
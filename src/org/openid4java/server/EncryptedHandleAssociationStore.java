@@ -0,0 +1,460 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.server;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ServerAssociationStore that keeps no state: the association handles
+ * carry the association type, expiry and MAC key, encrypted and
+ * authenticated under a master key shared by the OP cluster nodes.
+ * Loading an association is a local decryption, with no store round trip.
+ * <p>
+ * Handle format: <code>keyId.base64(iv | ciphertext | tag)</code>, where
+ * the ciphertext is AES-128-CBC and the tag a truncated HMAC-SHA256 over
+ * the store context, key ID, IV and ciphertext (encrypt-then-MAC). The
+ * encryption and MAC keys are derived from the master secret and the
+ * store context; the shared and private association stores MUST be
+ * created with different contexts, so that their handles are not
+ * interchangeable.
+ * <p>
+ * Key rollover: add the new master key with {@link #addKey} on all the
+ * nodes, then make it active with {@link #setActiveKey}; once the
+ * associations issued under the old key have expired, remove it with
+ * {@link #removeKey}, which also revokes any remaining handles.
+ * <p>
+ * Removed handles are kept on a deny-list until they expire. The deny-list
+ * is local to the store instance; revocations that must apply to the whole
+ * cluster have to be replayed on every node, or done through key removal.
+ */
+public class EncryptedHandleAssociationStore implements ServerAssociationStore
+{
+    private static Log _log = LogFactory.getLog(EncryptedHandleAssociationStore.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    private static final byte VERSION = 1;
+
+    private static final byte TYPE_HMAC_SHA1 = 1;
+    private static final byte TYPE_HMAC_SHA256 = 2;
+
+    private static final String CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String HMAC = "HmacSHA256";
+    private static final int IV_LENGTH = 16;
+    private static final int TAG_LENGTH = 16;
+    private static final int MIN_SECRET_LENGTH = 16;
+    private static final int MAX_KEY_ID_LENGTH = 16;
+
+    private static final SecureRandom _random = new SecureRandom();
+
+    private final byte[] _context;
+
+    /**
+     * Map of key ID -> MasterKey, for the keys accepted when loading.
+     */
+    private final Map _keys = new ConcurrentHashMap();
+
+    /**
+     * Key used for new handles.
+     */
+    private volatile MasterKey _activeKey;
+
+    /**
+     * Map of revoked handle -> expiry time.
+     */
+    private final Map _denied = new ConcurrentHashMap();
+
+    /**
+     * @param context   Name of the store, e.g. "shared" or "private";
+     *                  different contexts produce incompatible handles.
+     * @param keyId     ID of the initial (active) master key.
+     * @param secret    Master key, at least 16 bytes.
+     */
+    public EncryptedHandleAssociationStore(String context, String keyId, byte[] secret)
+    {
+        if (context == null || context.length() == 0)
+            throw new IllegalArgumentException("A store context is required");
+
+        _context = utf8(context);
+
+        addKey(keyId, secret);
+        setActiveKey(keyId);
+    }
+
+    /**
+     * Adds a master key accepted for loading associations.
+     */
+    public void addKey(String keyId, byte[] secret)
+    {
+        if (keyId == null || keyId.length() == 0 ||
+                keyId.length() > MAX_KEY_ID_LENGTH)
+            throw new IllegalArgumentException("Invalid key ID: " + keyId);
+
+        for (int i = 0; i < keyId.length(); i++)
+        {
+            if (! Character.isLetterOrDigit(keyId.charAt(i)) || keyId.charAt(i) > 126)
+                throw new IllegalArgumentException("Invalid key ID: " + keyId);
+        }
+
+        if (secret == null || secret.length < MIN_SECRET_LENGTH)
+            throw new IllegalArgumentException(
+                    "Master key must be at least " + MIN_SECRET_LENGTH + " bytes");
+
+        _keys.put(keyId, new MasterKey(keyId, secret, _context));
+    }
+
+    /**
+     * Makes a previously added master key the one used for new handles.
+     */
+    public void setActiveKey(String keyId)
+    {
+        MasterKey key = (MasterKey) _keys.get(keyId);
+
+        if (key == null)
+            throw new IllegalArgumentException("Unknown key ID: " + keyId);
+
+        _activeKey = key;
+
+        if (DEBUG) _log.debug("Active master key: " + keyId);
+    }
+
+    public String getActiveKeyId()
+    {
+        return _activeKey.getId();
+    }
+
+    /**
+     * Removes a master key; the handles issued under it no longer load.
+     * The active key cannot be removed.
+     */
+    public void removeKey(String keyId)
+    {
+        if (_activeKey.getId().equals(keyId))
+            throw new IllegalArgumentException("Cannot remove the active key: " + keyId);
+
+        _keys.remove(keyId);
+    }
+
+    public Association generate(String type, int expiryIn)
+            throws AssociationException
+    {
+        byte typeCode;
+        byte[] macKey;
+
+        if (Association.TYPE_HMAC_SHA1.equals(type))
+        {
+            typeCode = TYPE_HMAC_SHA1;
+            macKey = new byte[Association.HMAC_SHA1_KEYSIZE / 8];
+        }
+        else if (Association.TYPE_HMAC_SHA256.equals(type))
+        {
+            typeCode = TYPE_HMAC_SHA256;
+            macKey = new byte[Association.HMAC_SHA256_KEYSIZE / 8];
+        }
+        else
+            throw new AssociationException("Unknown association type: " + type);
+
+        _random.nextBytes(macKey);
+
+        Date expiry = new Date(System.currentTimeMillis() + 1000L * expiryIn);
+
+        // version | type | expiry | MAC key
+        byte[] plain = new byte[10 + macKey.length];
+        plain[0] = VERSION;
+        plain[1] = typeCode;
+        writeLong(plain, 2, expiry.getTime());
+        System.arraycopy(macKey, 0, plain, 10, macKey.length);
+
+        MasterKey key = _activeKey;
+        String handle;
+
+        try
+        {
+            byte[] iv = new byte[IV_LENGTH];
+            _random.nextBytes(iv);
+
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, key.getEncryptionKey(),
+                    new IvParameterSpec(iv));
+            byte[] encrypted = cipher.doFinal(plain);
+
+            byte[] data = new byte[IV_LENGTH + encrypted.length + TAG_LENGTH];
+            System.arraycopy(iv, 0, data, 0, IV_LENGTH);
+            System.arraycopy(encrypted, 0, data, IV_LENGTH, encrypted.length);
+
+            byte[] tag = key.tag(data, 0, IV_LENGTH + encrypted.length);
+            System.arraycopy(tag, 0, data, IV_LENGTH + encrypted.length, TAG_LENGTH);
+
+            handle = key.getId() + "." + new String(Base64.encodeBase64(data), "US-ASCII");
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AssociationException("Cannot encrypt association handle", e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new AssociationException("Cannot encode association handle", e);
+        }
+
+        Association association = createAssociation(typeCode, handle, macKey, expiry);
+
+        if (DEBUG) _log.debug("Generated association, handle: " + handle +
+                              " type: " + type +
+                              " expires in: " + expiryIn + " seconds.");
+
+        return association;
+    }
+
+    /**
+     * Decrypts the association from the handle.
+     *
+     * @return  The association, or null if the handle is malformed, was not
+     *          issued under a known master key, has expired or was removed.
+     */
+    public Association load(String handle)
+    {
+        Association association = decrypt(handle);
+
+        if (association == null || association.hasExpired())
+            return null;
+
+        if (! _denied.isEmpty() && _denied.containsKey(handle))
+        {
+            if (DEBUG) _log.debug("Association handle is revoked: " + handle);
+            return null;
+        }
+
+        return association;
+    }
+
+    /**
+     * Revokes the handle, by adding it to the deny-list until it expires.
+     */
+    public void remove(String handle)
+    {
+        Association association = decrypt(handle);
+
+        if (association == null || association.hasExpired())
+            return;
+
+        if (DEBUG) _log.debug("Revoking association, handle: " + handle);
+
+        removeExpiredDenials();
+
+        _denied.put(handle, new Long(association.getExpiry().getTime()));
+    }
+
+    /**
+     * Number of revoked handles that have not expired yet.
+     */
+    public int getDenyListSize()
+    {
+        removeExpiredDenials();
+
+        return _denied.size();
+    }
+
+    private void removeExpiredDenials()
+    {
+        long now = System.currentTimeMillis();
+
+        Iterator iter = _denied.values().iterator();
+        while (iter.hasNext())
+        {
+            if (((Long) iter.next()).longValue() < now)
+                iter.remove();
+        }
+    }
+
+    private Association decrypt(String handle)
+    {
+        if (handle == null)
+            return null;
+
+        int dot = handle.indexOf('.');
+        if (dot <= 0)
+            return null;
+
+        MasterKey key = (MasterKey) _keys.get(handle.substring(0, dot));
+        if (key == null)
+            return null;
+
+        try
+        {
+            String encoded = handle.substring(dot + 1);
+            byte[] data = Base64.decodeBase64(encoded.getBytes("US-ASCII"));
+
+            // the decoder skips characters outside the Base64 alphabet;
+            // only the canonical encoding is accepted, so that a revoked
+            // handle cannot be loaded under a different spelling
+            if (! encoded.equals(new String(Base64.encodeBase64(data), "US-ASCII")))
+            {
+                if (DEBUG) _log.debug("Non-canonical association handle: " + handle);
+                return null;
+            }
+
+            int encryptedLength = data.length - IV_LENGTH - TAG_LENGTH;
+            if (encryptedLength <= 0 || encryptedLength % 16 != 0)
+                return null;
+
+            byte[] tag = key.tag(data, 0, IV_LENGTH + encryptedLength);
+
+            int result = 0;
+            for (int i = 0; i < TAG_LENGTH; i++)
+                result |= tag[i] ^ data[IV_LENGTH + encryptedLength + i];
+
+            if (result != 0)
+            {
+                if (DEBUG) _log.debug("Invalid association handle tag: " + handle);
+                return null;
+            }
+
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key.getEncryptionKey(),
+                    new IvParameterSpec(data, 0, IV_LENGTH));
+            byte[] plain = cipher.doFinal(data, IV_LENGTH, encryptedLength);
+
+            if (plain.length < 10 || plain[0] != VERSION)
+                return null;
+
+            byte[] macKey = new byte[plain.length - 10];
+            System.arraycopy(plain, 10, macKey, 0, macKey.length);
+
+            return createAssociation(plain[1], handle, macKey,
+                    new Date(readLong(plain, 2)));
+        }
+        catch (GeneralSecurityException e)
+        {
+            _log.error("Cannot decrypt association handle: " + handle, e);
+            return null;
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            _log.error("Cannot decode association handle: " + handle, e);
+            return null;
+        }
+    }
+
+    private static Association createAssociation(byte typeCode, String handle,
+                                                 byte[] macKey, Date expiry)
+    {
+        if (typeCode == TYPE_HMAC_SHA1)
+            return Association.createHmacSha1(handle, macKey, expiry);
+        else if (typeCode == TYPE_HMAC_SHA256)
+            return Association.createHmacSha256(handle, macKey, expiry);
+        else
+            return null;
+    }
+
+    private static void writeLong(byte[] data, int offset, long value)
+    {
+        for (int i = 7; i >= 0; i--)
+        {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] data, int offset)
+    {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (data[offset + i] & 0xFF);
+
+        return value;
+    }
+
+    private static byte[] utf8(String s)
+    {
+        try
+        {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("UTF-8 not supported");
+        }
+    }
+
+    private static class MasterKey
+    {
+        private final String _id;
+        private final byte[] _prefix;
+        private final SecretKeySpec _encryptionKey;
+        private final SecretKeySpec _macKey;
+
+        public MasterKey(String id, byte[] secret, byte[] context)
+        {
+            _id = id;
+
+            // authenticated along with the data: context | 0 | key ID | 0
+            byte[] idBytes = utf8(id);
+            _prefix = new byte[context.length + idBytes.length + 2];
+            System.arraycopy(context, 0, _prefix, 0, context.length);
+            System.arraycopy(idBytes, 0, _prefix, context.length + 1, idBytes.length);
+
+            byte[] encKey = derive(secret, context, "enc");
+            byte[] truncated = new byte[16];
+            System.arraycopy(encKey, 0, truncated, 0, 16);
+
+            _encryptionKey = new SecretKeySpec(truncated, "AES");
+            _macKey = new SecretKeySpec(derive(secret, context, "mac"), HMAC);
+        }
+
+        public String getId()
+        {
+            return _id;
+        }
+
+        public SecretKeySpec getEncryptionKey()
+        {
+            return _encryptionKey;
+        }
+
+        public byte[] tag(byte[] data, int offset, int length)
+                throws GeneralSecurityException
+        {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(_macKey);
+            mac.update(_prefix);
+            mac.update(data, offset, length);
+
+            return mac.doFinal();
+        }
+
+        private static byte[] derive(byte[] secret, byte[] context, String label)
+        {
+            try
+            {
+                Mac mac = Mac.getInstance(HMAC);
+                mac.init(new SecretKeySpec(secret, HMAC));
+                mac.update(utf8(label));
+                mac.update((byte) 0);
+                mac.update(context);
+
+                return mac.doFinal();
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException("Cannot derive handle keys: " + e);
+            }
+        }
+    }
+}
@@ -7,12 +7,25 @@ package org.openid4java.server;
 import org.openid4java.association.Association;
 import org.openid4java.association.AssociationException;
 
-import java.util.*;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
+ * In-memory ServerAssociationStore, safe for concurrent use.
+ * <p>
+ * Associations are kept in a concurrent map, so loading and removing them
+ * does not lock the store. Expired associations are dropped when new ones
+ * are generated, from a queue ordered by expiry time, instead of scanning
+ * the whole store; loads never return expired associations.
+ * <p>
+ * The store can be given a maximum capacity, in which case generating an
+ * association beyond it evicts the associations expiring first.
+ *
  * @author Marius Scurtescu, Johnny Bufu
  */
 public class InMemoryServerAssociationStore implements ServerAssociationStore
@@ -20,78 +33,182 @@ public class InMemoryServerAssociationStore implements ServerAssociationStore
     private static Log _log = LogFactory.getLog(InMemoryServerAssociationStore.class);
     private static final boolean DEBUG = _log.isDebugEnabled();
 
-    private String _timestamp;
-    private int _counter;
-    private Map _handleMap;
+    private final String _timestamp;
+    private final AtomicLong _counter = new AtomicLong();
+    private final ConcurrentHashMap _handleMap = new ConcurrentHashMap();
+
+    /**
+     * Saved associations, ordered by expiry time.
+     */
+    private final PriorityBlockingQueue _expiryQueue = new PriorityBlockingQueue();
+
+    /**
+     * Maximum number of associations kept in the store; 0 for unbounded.
+     * Default: 0.
+     */
+    private volatile int _maxCapacity = 0;
+
+    private final AtomicLong _evictions = new AtomicLong();
 
     public InMemoryServerAssociationStore()
     {
         _timestamp = Long.toString(new Date().getTime());
-        _counter   = 0;
-        _handleMap = new HashMap();
     }
 
-    public synchronized Association generate(String type, int expiryIn)
+    public InMemoryServerAssociationStore(int maxCapacity)
+    {
+        this();
+        setMaxCapacity(maxCapacity);
+    }
+
+    public int getMaxCapacity()
+    {
+        return _maxCapacity;
+    }
+
+    /**
+     * Sets the maximum number of associations kept in the store; 0 disables
+     * the limit.
+     */
+    public void setMaxCapacity(int maxCapacity)
+    {
+        if (maxCapacity < 0)
+            throw new IllegalArgumentException(
+                    "Invalid maximum capacity: " + maxCapacity);
+
+        _maxCapacity = maxCapacity;
+    }
+
+    /**
+     * Gets the number of associations evicted because the store was full.
+     */
+    public long getEvictions()
+    {
+        return _evictions.get();
+    }
+
+    public Association generate(String type, int expiryIn)
             throws AssociationException
     {
         removeExpired();
 
-        String handle = _timestamp + "-" + _counter++;
+        String handle = _timestamp + "-" + _counter.getAndIncrement();
 
         Association association = Association.generate(type, handle, expiryIn);
 
         _handleMap.put(handle, association);
+        _expiryQueue.add(new Expiry(association));
 
         if (DEBUG) _log.debug("Generated association, handle: " + handle +
                               " type: " + type +
                               " expires in: " + expiryIn + " seconds.");
 
+        evict();
+
         return association;
     }
 
-    public synchronized Association load(String handle)
+    public Association load(String handle)
     {
-        removeExpired();
+        if (handle == null) return null;
 
-        return (Association) _handleMap.get(handle);
+        Association association = (Association) _handleMap.get(handle);
+
+        return association != null && ! association.hasExpired() ?
+                association : null;
     }
 
-    public synchronized void remove(String handle)
+    public void remove(String handle)
     {
+        if (handle == null) return;
+
         if (DEBUG) _log.debug("Removing association, handle: " + handle);
 
         _handleMap.remove(handle);
-
-        removeExpired();
     }
 
-    private synchronized void removeExpired()
+    private void removeExpired()
     {
-        Set handleToRemove = new HashSet();
-        Iterator handles = _handleMap.keySet().iterator();
-        while (handles.hasNext())
+        long now = System.currentTimeMillis();
+
+        Expiry expiry;
+        while ((expiry = (Expiry) _expiryQueue.peek()) != null &&
+                expiry.getTime() < now)
         {
-            String handle = (String) handles.next();
+            expiry = (Expiry) _expiryQueue.poll();
+
+            if (expiry == null) break;
 
-            Association association = (Association) _handleMap.get(handle);
+            if (expiry.getTime() >= now)
+            {
+                // another thread took the expired head meanwhile
+                _expiryQueue.add(expiry);
+                break;
+            }
 
-            if (association.hasExpired())
-                handleToRemove.add(handle);
+            Association association = expiry.getAssociation();
+
+            if (_handleMap.remove(association.getHandle(), association) && DEBUG)
+                _log.debug("Removing expired association, handle: " +
+                           association.getHandle());
         }
+    }
+
+    private void evict()
+    {
+        int maxCapacity = _maxCapacity;
+
+        if (maxCapacity == 0) return;
 
-        handles = handleToRemove.iterator();
-        while (handles.hasNext())
+        while (_handleMap.size() > maxCapacity)
         {
-            String handle = (String) handles.next();
+            Expiry expiry = (Expiry) _expiryQueue.poll();
+
+            if (expiry == null) break;
 
-            if (DEBUG) _log.debug("Removing expired association, handle: " + handle);
+            Association association = expiry.getAssociation();
 
-            _handleMap.remove(handle);
+            if (_handleMap.remove(association.getHandle(), association))
+            {
+                _evictions.incrementAndGet();
+
+                if (DEBUG) _log.debug("Evicted association, handle: " +
+                                      association.getHandle());
+            }
         }
     }
 
-    protected synchronized int size()
+    protected int size()
     {
         return _handleMap.size();
     }
+
+    private static class Expiry implements Comparable
+    {
+        private final Association _association;
+        private final long _time;
+
+        public Expiry(Association association)
+        {
+            _association = association;
+            _time = association.getExpiry().getTime();
+        }
+
+        public Association getAssociation()
+        {
+            return _association;
+        }
+
+        public long getTime()
+        {
+            return _time;
+        }
+
+        public int compareTo(Object o)
+        {
+            long other = ((Expiry) o)._time;
+
+            return _time < other ? -1 : (_time == other ? 0 : 1);
+        }
+    }
 }
@@ -4,9 +4,7 @@
 
 package org.openid4java.server;
 
-import org.openid4java.util.InternetDateFormat;
-
-import java.util.Date;
+import org.openid4java.util.InternetDateCodec;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -19,8 +17,6 @@ public class IncrementalNonceGenerator implements NonceGenerator
     private static Log _log = LogFactory.getLog(IncrementalNonceGenerator.class);
     private static final boolean DEBUG = _log.isDebugEnabled();
 
-    private static InternetDateFormat _dateFormat = new InternetDateFormat();
-
     private String _timestamp = "";
     private int _counter = 0;
 
@@ -48,8 +44,6 @@ public class IncrementalNonceGenerator implements NonceGenerator
 
     private String getCurrentTimpestamp()
     {
-        Date now = new Date();
-
-        return _dateFormat.format(now);
+        return InternetDateCodec.format(System.currentTimeMillis());
     }
 }
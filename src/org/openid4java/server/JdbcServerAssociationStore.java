@@ -6,6 +6,7 @@ package org.openid4java.server;
 
 import org.openid4java.association.Association;
 import org.openid4java.association.AssociationException;
+import org.openid4java.util.JdbcJanitor;
 
 import java.util.*;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
@@ -31,6 +32,10 @@ import org.apache.commons.logging.LogFactory;
  * <li>mackey : string</li>
  * <li>expdate : date</li>
  * </ul>
+ * <p>
+ * Expired associations are deleted in the background by a
+ * {@link JdbcJanitor}, started with the first generated association and
+ * stopped by {@link #shutdown()}.
  *
  * @author Marius Scurtescu, Johnny Bufu
  */
@@ -42,18 +47,18 @@ public class JdbcServerAssociationStore extends JdbcDaoSupport
 
     private static Random _random = new Random(System.currentTimeMillis());
 
-    private static final int CLEANUP_INTERVAL = 60 * 1000; // 1 min in millis
-    private static long _lastCleanup = 0;
-
     private String _tableName;
 
+    private JdbcJanitor _janitor;
+    private boolean _shutdown;
+
     public JdbcServerAssociationStore()
     {
     }
 
     public JdbcServerAssociationStore(String tableName)
     {
-        _tableName = tableName;
+        setTableName(tableName);
     }
 
     public String getTableName()
@@ -61,16 +66,59 @@ public class JdbcServerAssociationStore extends JdbcDaoSupport
         return _tableName;
     }
 
-    public void setTableName(String tableName)
+    public synchronized void setTableName(String tableName)
     {
         this._tableName = tableName;
+
+        JdbcJanitor janitor = new JdbcJanitor(tableName, "expdate",
+                                              new String[] {"handle"});
+
+        if (_janitor != null)
+        {
+            janitor.setInterval(_janitor.getInterval());
+            janitor.setBatchSize(_janitor.getBatchSize());
+            janitor.setMaxBatches(_janitor.getMaxBatches());
+            _janitor.shutdown();
+        }
+
+        _janitor = janitor;
+    }
+
+    /**
+     * Gets the janitor deleting the expired associations from the table, to
+     * configure it or read its statistics.
+     */
+    public JdbcJanitor getJanitor()
+    {
+        return _janitor;
+    }
+
+    /**
+     * Stops the janitor's background thread, which is not restarted by
+     * later calls; to be called when the store is discarded, e.g. as the
+     * destroy method of its Spring bean.
+     */
+    public synchronized void shutdown()
+    {
+        _shutdown = true;
+
+        if (_janitor != null)
+            _janitor.shutdown();
+    }
+
+    private synchronized void startJanitor()
+    {
+        if (_janitor != null && ! _shutdown)
+            _janitor.start(getDataSource());
     }
 
     public Association generate(String type, int expiryIn)
             throws AssociationException
     {
-        cleanupExpired();
-        
+        JdbcJanitor janitor = _janitor;
+        if (janitor != null && ! janitor.isStarted())
+            startJanitor();
+
         String sql = "INSERT INTO " + _tableName +
                 " (handle, type, mackey, expdate) VALUES (?,?,?,?)";
 
@@ -201,30 +249,5 @@ public class JdbcServerAssociationStore extends JdbcDaoSupport
             _log.error("Error removing association from table: " + _tableName, e);
         }
     }
-
-    private void cleanupExpired()
-    {
-        if (System.currentTimeMillis() - _lastCleanup < CLEANUP_INTERVAL)
-            return;
-
-        try
-    	{
-    		String sql = "DELETE FROM " + _tableName + " WHERE expdate<?";
-
-            JdbcTemplate jdbcTemplate = getJdbcTemplate();
-
-            Date now = new Date ( ) ;
-            int cnt = jdbcTemplate.update(sql, new Object[] { now } );
-
-            _log.debug("Cleaned " + cnt + " expired associations from table: "
-                          + _tableName);
-
-            _lastCleanup = System.currentTimeMillis();
-        }
-    	catch (Exception e)
-        {
-            _log.error("Error removing expired associations from table: " + _tableName, e);
-        }
-    }
 }
 
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.server;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Ring of rotating private associations, used by the OpenID Provider to
+ * sign authentication responses for stateless consumer sites.
+ * <p>
+ * Instead of generating (and storing) a new private association for every
+ * positive assertion, one association per association type is active for
+ * the rotation interval, and is then replaced by a new one. Retired
+ * associations can still be verified during the grace period; they are
+ * generated in the backing store with an expiry of rotation interval +
+ * grace period.
+ * <p>
+ * Since an association signs many responses, it cannot be removed from the
+ * store after a direct verification; instead, the verified signatures are
+ * remembered until the association expires, and a signature is verified
+ * only once. This record is kept in memory: OPs that are load balanced
+ * without session affinity for verification requests should keep
+ * generating one private association per response.
+ * <p>
+ * The signatures are recorded per association and dropped together when
+ * it expires, so the record holds the verifications of the last rotation
+ * interval + grace period: about 40 minutes' worth with the defaults, at
+ * roughly 150 bytes per signature. The record is bounded by
+ * maxVerified; once full, further verifications are denied (and counted
+ * as overflows) until associations expire, since forgetting signatures
+ * would allow them to be replayed. OPs with a high rate of direct
+ * verifications should size maxVerified to rate * (rotation interval +
+ * grace period), or shorten the grace period.
+ *
+ * @see ServerManager#setPrivateAssociationRing(PrivateAssociationRing)
+ */
+public class PrivateAssociationRing
+{
+    private static Log _log = LogFactory.getLog(PrivateAssociationRing.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    private final ServerAssociationStore _store;
+
+    /**
+     * Time (in seconds) an association is used for signing. Default: 600s.
+     */
+    private int _rotationInterval = 600;
+
+    /**
+     * Time (in seconds) a retired association can still be verified.
+     * Default: 1800s.
+     */
+    private int _gracePeriod = 1800;
+
+    /**
+     * Map of association type -> RingEntry.
+     */
+    private final Map _active = new HashMap();
+
+    /**
+     * Associations generated by the ring, by handle, so that verifications
+     * do not need to query the store.
+     */
+    private final Map _associations = new HashMap();
+
+    /**
+     * Maximum number of verified signatures remembered. Default: 100000.
+     */
+    private int _maxVerified = 100000;
+
+    /**
+     * Verified signatures by association handle: handle -> Verified.
+     */
+    private final Map _verified = new HashMap();
+    private int _verifiedCount;
+
+    private long _rotations;
+    private long _replays;
+    private long _overflows;
+
+    /**
+     * @param store     The store where the private associations are kept;
+     *                  must be different from the shared association store.
+     */
+    public PrivateAssociationRing(ServerAssociationStore store)
+    {
+        _store = store;
+    }
+
+    public ServerAssociationStore getStore()
+    {
+        return _store;
+    }
+
+    /**
+     * Gets the active association of the given type, generating a new one
+     * if there is none or if its rotation interval has elapsed.
+     */
+    public synchronized Association getAssociation(String type)
+            throws AssociationException
+    {
+        long now = System.currentTimeMillis();
+
+        RingEntry entry = (RingEntry) _active.get(type);
+
+        if (entry == null || entry.getRotateAt() <= now)
+        {
+            Association assoc = _store.generate(type, _rotationInterval + _gracePeriod);
+
+            entry = new RingEntry(assoc, now + _rotationInterval * 1000L);
+            _active.put(type, entry);
+            _associations.put(assoc.getHandle(), assoc);
+            _rotations++;
+
+            removeExpired();
+
+            if (DEBUG) _log.debug("Rotated private association, type: " + type +
+                                  " new handle: " + assoc.getHandle());
+        }
+
+        return entry.getAssociation();
+    }
+
+    /**
+     * Loads a private association: one generated by the ring, or otherwise
+     * from the store.
+     */
+    public Association load(String handle)
+    {
+        synchronized (this)
+        {
+            Association assoc = (Association) _associations.get(handle);
+
+            if (assoc != null)
+                return assoc.hasExpired() ? null : assoc;
+        }
+
+        return _store.load(handle);
+    }
+
+    /**
+     * Records the successful verification of a signature.
+     *
+     * @return  False if the signature was already verified, in which case
+     *          the verification request must be denied.
+     */
+    public synchronized boolean markVerified(Association assoc, String signature)
+    {
+        long now = System.currentTimeMillis();
+
+        // drop the records of the expired associations
+        Iterator iter = _verified.values().iterator();
+        while (iter.hasNext())
+        {
+            Verified verified = (Verified) iter.next();
+
+            if (verified.getExpiry() <= now)
+            {
+                _verifiedCount -= verified.getSignatures().size();
+                iter.remove();
+            }
+        }
+
+        Verified verified = (Verified) _verified.get(assoc.getHandle());
+
+        if (verified != null && verified.getSignatures().contains(signature))
+        {
+            _replays++;
+            return false;
+        }
+
+        if (_verifiedCount >= _maxVerified)
+        {
+            _overflows++;
+            _log.warn("Verified signature record full (" + _maxVerified +
+                      "), denying verification for association: " +
+                      assoc.getHandle());
+            return false;
+        }
+
+        if (verified == null)
+        {
+            verified = new Verified(assoc.getExpiry().getTime());
+            _verified.put(assoc.getHandle(), verified);
+        }
+
+        verified.getSignatures().add(signature);
+        _verifiedCount++;
+
+        return true;
+    }
+
+    /**
+     * Retires the active associations; new ones are generated when next
+     * needed.
+     */
+    public synchronized void rotate()
+    {
+        _active.clear();
+    }
+
+    private void removeExpired()
+    {
+        Iterator iter = _associations.values().iterator();
+        while (iter.hasNext())
+        {
+            if (((Association) iter.next()).hasExpired())
+                iter.remove();
+        }
+    }
+
+    public synchronized int getRotationInterval()
+    {
+        return _rotationInterval;
+    }
+
+    /**
+     * Sets the time (in seconds) an association is used for signing;
+     * applies to the associations generated from now on.
+     */
+    public synchronized void setRotationInterval(int rotationInterval)
+    {
+        if (rotationInterval <= 0)
+            throw new IllegalArgumentException(
+                    "Invalid rotation interval: " + rotationInterval);
+
+        _rotationInterval = rotationInterval;
+    }
+
+    public synchronized int getGracePeriod()
+    {
+        return _gracePeriod;
+    }
+
+    /**
+     * Sets the time (in seconds) a retired association can still be
+     * verified; applies to the associations generated from now on.
+     */
+    public synchronized void setGracePeriod(int gracePeriod)
+    {
+        if (gracePeriod < 0)
+            throw new IllegalArgumentException("Invalid grace period: " + gracePeriod);
+
+        _gracePeriod = gracePeriod;
+    }
+
+    public synchronized int getMaxVerified()
+    {
+        return _maxVerified;
+    }
+
+    /**
+     * Sets the maximum number of verified signatures remembered; see the
+     * class description for sizing.
+     */
+    public synchronized void setMaxVerified(int maxVerified)
+    {
+        if (maxVerified <= 0)
+            throw new IllegalArgumentException(
+                    "Invalid maximum verified signatures: " + maxVerified);
+
+        _maxVerified = maxVerified;
+    }
+
+    /**
+     * Number of verified signatures currently remembered.
+     */
+    public synchronized int getVerifiedCount()
+    {
+        return _verifiedCount;
+    }
+
+    /**
+     * Number of verifications denied because the verified signature record
+     * was full.
+     */
+    public synchronized long getOverflows()
+    {
+        return _overflows;
+    }
+
+    /**
+     * Number of associations generated by the ring.
+     */
+    public synchronized long getRotations()
+    {
+        return _rotations;
+    }
+
+    /**
+     * Number of verifications denied because the signature was already
+     * verified.
+     */
+    public synchronized long getReplays()
+    {
+        return _replays;
+    }
+
+    public synchronized String toString()
+    {
+        return "PrivateAssociationRing active: " + _active.size() +
+               " associations: " + _associations.size() +
+               " rotations: " + _rotations + " replays: " + _replays +
+               " verified: " + _verifiedCount + " overflows: " + _overflows;
+    }
+
+    private static class RingEntry
+    {
+        private final Association _association;
+        private final long _rotateAt;
+
+        public RingEntry(Association association, long rotateAt)
+        {
+            _association = association;
+            _rotateAt = rotateAt;
+        }
+
+        public Association getAssociation()
+        {
+            return _association;
+        }
+
+        public long getRotateAt()
+        {
+            return _rotateAt;
+        }
+    }
+
+    private static class Verified
+    {
+        private final long _expiry;
+        private final Set _signatures = new HashSet();
+
+        public Verified(long expiry)
+        {
+            _expiry = expiry;
+        }
+
+        public long getExpiry()
+        {
+            return _expiry;
+        }
+
+        public Set getSignatures()
+        {
+            return _signatures;
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.server;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size and time bounded cache of RP discovery results, mapping realms
+ * to the list of return_to endpoints discovered from them.
+ * <p>
+ * Failed discoveries are cached for a (shorter) negative time-to-live, so
+ * that a broken realm does not trigger a Yadis discovery on every request.
+ * Successful results that are requested close to their expiry are refreshed
+ * in the background, while the cached result keeps being served; a failed
+ * background refresh does not replace a cached successful result, and is
+ * retried no sooner than the negative time-to-live later.
+ */
+public class RealmDiscoveryCache
+{
+    private static Log _log = LogFactory.getLog(RealmDiscoveryCache.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    private final YadisResolver _yadisResolver;
+
+    /**
+     * Maximum number of realms kept in the cache. Default: 10000.
+     */
+    private int _maxSize = 10000;
+
+    /**
+     * Time (in seconds) a successful discovery result is kept. Default: 600s.
+     */
+    private int _ttl = 600;
+
+    /**
+     * Time (in seconds) a failed discovery is remembered. Default: 60s.
+     */
+    private int _negativeTtl = 60;
+
+    /**
+     * Time (in seconds) before expiry during which a cache hit triggers
+     * a background refresh of the entry. Default: 120s; 0 disables.
+     */
+    private int _refreshAhead = 120;
+
+    /**
+     * Maximum number of pending background refreshes. Default: 100.
+     */
+    private int _maxPendingRefreshes = 100;
+
+    /**
+     * Map of realm -> CacheEntry, in access order.
+     */
+    private final Map _entries = new LinkedHashMap(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            if (size() > _maxSize)
+            {
+                _evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private ThreadPoolExecutor _refreshExecutor;
+
+    private long _hits;
+    private long _negativeHits;
+    private long _misses;
+    private long _evictions;
+    private long _refreshes;
+    private long _refreshFailures;
+
+    public RealmDiscoveryCache(YadisResolver yadisResolver)
+    {
+        _yadisResolver = yadisResolver;
+    }
+
+    /**
+     * Performs RP discovery on the realm, or returns the cached result.
+     *
+     * @param realm     The realm URL, with no wildcard.
+     * @return          Unmodifiable list of the discovered RP endpoints.
+     * @throws DiscoveryException if the discovery failed, now or within
+     *         the negative time-to-live.
+     */
+    public List discover(String realm) throws DiscoveryException
+    {
+        CacheEntry entry = getEntry(realm);
+
+        if (entry != null)
+        {
+            if (entry.isFailed())
+                throw new DiscoveryException(entry.getErrorMessage(),
+                        entry.getErrorCode());
+
+            return entry.getEndpoints();
+        }
+
+        return load(realm);
+    }
+
+    private synchronized CacheEntry getEntry(String realm)
+    {
+        CacheEntry entry = (CacheEntry) _entries.get(realm);
+
+        long now = System.currentTimeMillis();
+
+        if (entry == null || entry.getExpiry() <= now)
+        {
+            if (entry != null) _entries.remove(realm);
+            _misses++;
+            return null;
+        }
+
+        if (entry.isFailed())
+        {
+            _negativeHits++;
+            return entry;
+        }
+
+        _hits++;
+
+        if (_refreshAhead > 0 && ! entry.isRefreshing() &&
+                entry.getExpiry() - now <= 1000L * _refreshAhead &&
+                entry.getRetryAt() <= now)
+            scheduleRefresh(realm, entry);
+
+        return entry;
+    }
+
+    private List load(String realm) throws DiscoveryException
+    {
+        try
+        {
+            List endpoints = Collections.unmodifiableList(
+                    new ArrayList(Discovery.rpDiscovery(realm, _yadisResolver)));
+
+            put(realm, new CacheEntry(endpoints, _ttl));
+
+            return endpoints;
+        }
+        catch (DiscoveryException e)
+        {
+            put(realm, new CacheEntry(e, _negativeTtl));
+
+            throw e;
+        }
+    }
+
+    private synchronized void put(String realm, CacheEntry entry)
+    {
+        if (_maxSize <= 0 || entry.getExpiry() <= System.currentTimeMillis())
+            return;
+
+        _entries.put(realm, entry);
+
+        if (DEBUG) _log.debug("Cached RP discovery " +
+                (entry.isFailed() ? "failure" : "result") + " for realm: " +
+                realm + " until: " + new Date(entry.getExpiry()));
+    }
+
+    private void scheduleRefresh(final String realm, final CacheEntry entry)
+    {
+        entry.setRefreshing(true);
+
+        try
+        {
+            getRefreshExecutor().execute(new Runnable()
+            {
+                public void run()
+                {
+                    refresh(realm, entry);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            if (DEBUG) _log.debug("Too many pending refreshes, " +
+                                  "not refreshing realm: " + realm);
+            entry.setRefreshing(false);
+        }
+    }
+
+    private void refresh(String realm, CacheEntry entry)
+    {
+        try
+        {
+            List endpoints = Collections.unmodifiableList(
+                    new ArrayList(Discovery.rpDiscovery(realm, _yadisResolver)));
+
+            put(realm, new CacheEntry(endpoints, _ttl));
+
+            synchronized (this)
+            {
+                _refreshes++;
+            }
+        }
+        catch (Throwable t)
+        {
+            // keep serving the cached result until it expires
+            _log.warn("Background RP discovery failed on realm: " + realm, t);
+
+            synchronized (this)
+            {
+                // back off instead of retrying on every hit
+                entry.setRetryAt(System.currentTimeMillis() + 1000L * _negativeTtl);
+                entry.setRefreshing(false);
+
+                _refreshFailures++;
+            }
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getRefreshExecutor()
+    {
+        if (_refreshExecutor == null)
+            _refreshExecutor = new ThreadPoolExecutor(1, 1,
+                    0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue(_maxPendingRefreshes),
+                    new DaemonThreadFactory("realm-discovery-refresh",
+                            Thread.MIN_PRIORITY));
+
+        return _refreshExecutor;
+    }
+
+    /**
+     * Stops the background refresh thread; it is restarted on demand.
+     */
+    public synchronized void shutdown()
+    {
+        if (_refreshExecutor != null)
+        {
+            _refreshExecutor.shutdownNow();
+            _refreshExecutor = null;
+        }
+    }
+
+    public synchronized void remove(String realm)
+    {
+        _entries.remove(realm);
+    }
+
+    public synchronized void clear()
+    {
+        _entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        return _entries.size();
+    }
+
+    public synchronized int getMaxSize()
+    {
+        return _maxSize;
+    }
+
+    /**
+     * Sets the maximum number of realms kept in the cache;
+     * 0 disables caching.
+     */
+    public synchronized void setMaxSize(int maxSize)
+    {
+        _maxSize = maxSize;
+
+        while (_entries.size() > _maxSize)
+        {
+            _entries.remove(_entries.keySet().iterator().next());
+            _evictions++;
+        }
+    }
+
+    public synchronized int getTtl()
+    {
+        return _ttl;
+    }
+
+    /**
+     * Sets the time (in seconds) a successful discovery result is kept;
+     * 0 disables caching of successful results.
+     */
+    public synchronized void setTtl(int ttl)
+    {
+        _ttl = ttl;
+    }
+
+    public synchronized int getNegativeTtl()
+    {
+        return _negativeTtl;
+    }
+
+    /**
+     * Sets the time (in seconds) a failed discovery is remembered;
+     * 0 disables negative caching.
+     */
+    public synchronized void setNegativeTtl(int negativeTtl)
+    {
+        _negativeTtl = negativeTtl;
+    }
+
+    public synchronized int getRefreshAhead()
+    {
+        return _refreshAhead;
+    }
+
+    /**
+     * Sets the time (in seconds) before expiry during which a cache hit
+     * triggers a background refresh; 0 disables background refresh.
+     */
+    public synchronized void setRefreshAhead(int refreshAhead)
+    {
+        _refreshAhead = refreshAhead;
+    }
+
+    public synchronized int getMaxPendingRefreshes()
+    {
+        return _maxPendingRefreshes;
+    }
+
+    /**
+     * Sets the maximum number of queued background refreshes; further
+     * refreshes are skipped until the queue drains. Takes effect when the
+     * refresh thread is (re)started.
+     */
+    public synchronized void setMaxPendingRefreshes(int maxPendingRefreshes)
+    {
+        _maxPendingRefreshes = maxPendingRefreshes;
+    }
+
+    public synchronized long getHits()
+    {
+        return _hits;
+    }
+
+    public synchronized long getNegativeHits()
+    {
+        return _negativeHits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return _misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return _evictions;
+    }
+
+    public synchronized long getRefreshes()
+    {
+        return _refreshes;
+    }
+
+    public synchronized long getRefreshFailures()
+    {
+        return _refreshFailures;
+    }
+
+    public String toString()
+    {
+        return "RealmDiscoveryCache size: " + size() + " hits: " + getHits() +
+               " negative hits: " + getNegativeHits() +
+               " misses: " + getMisses() + " evictions: " + getEvictions() +
+               " refreshes: " + getRefreshes() +
+               " refresh failures: " + getRefreshFailures();
+    }
+
+    private static class CacheEntry
+    {
+        private final List _endpoints;
+        private final String _errorMessage;
+        private final int _errorCode;
+        private final long _expiry;
+        private volatile boolean _refreshing;
+        private volatile long _retryAt;
+
+        public CacheEntry(List endpoints, int ttl)
+        {
+            _endpoints = endpoints;
+            _errorMessage = null;
+            _errorCode = 0;
+            _expiry = System.currentTimeMillis() + 1000L * ttl;
+        }
+
+        public CacheEntry(DiscoveryException failure, int ttl)
+        {
+            _endpoints = null;
+            _errorMessage = failure.getMessage();
+            _errorCode = failure.getErrorCode();
+            _expiry = System.currentTimeMillis() + 1000L * ttl;
+        }
+
+        public boolean isFailed()
+        {
+            return _endpoints == null;
+        }
+
+        public List getEndpoints()
+        {
+            return _endpoints;
+        }
+
+        public String getErrorMessage()
+        {
+            return _errorMessage;
+        }
+
+        public int getErrorCode()
+        {
+            return _errorCode;
+        }
+
+        public long getExpiry()
+        {
+            return _expiry;
+        }
+
+        public boolean isRefreshing()
+        {
+            return _refreshing;
+        }
+
+        public void setRefreshing(boolean refreshing)
+        {
+            _refreshing = refreshing;
+        }
+
+        /**
+         * Time before which no background refresh is attempted, after a
+         * failed one.
+         */
+        public long getRetryAt()
+        {
+            return _retryAt;
+        }
+
+        public void setRetryAt(long retryAt)
+        {
+            _retryAt = retryAt;
+        }
+    }
+}
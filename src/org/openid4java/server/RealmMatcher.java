@@ -0,0 +1,168 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.server;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Immutable, pre-parsed form of a realm, used by {@link RealmVerifier}
+ * to match return_to URLs without parsing the realm again.
+ * <p>
+ * A realm that is malformed, denied or has a fragment is compiled into
+ * a matcher that always returns the corresponding error code.
+ */
+final class RealmMatcher
+{
+    private static Log _log = LogFactory.getLog(RealmMatcher.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    private final String _realm;
+
+    // error found while compiling, reported before parsing the return_to URL
+    private final int _realmError;
+
+    private final boolean _hasFragment;
+
+    private final String _protocol;
+
+    // lower case host, or the lower case ".domain" for wildcard realms
+    private final String _domain;
+    private final boolean _wildcard;
+
+    private final int _port;
+
+    // path, always ending with a '/'
+    private final String _pathPrefix;
+
+    /**
+     * Creates a matcher for a realm that failed validation.
+     */
+    RealmMatcher(String realm, int realmError)
+    {
+        _realm = realm;
+        _realmError = realmError;
+        _hasFragment = false;
+        _protocol = null;
+        _domain = null;
+        _wildcard = false;
+        _port = -1;
+        _pathPrefix = null;
+    }
+
+    /**
+     * Creates a matcher for a parsed, non-denied realm.
+     */
+    RealmMatcher(String realm, URL realmUrl)
+    {
+        _realm = realm;
+        _realmError = RealmVerifier.OK;
+        _hasFragment = realmUrl.getRef() != null;
+        _protocol = realmUrl.getProtocol();
+
+        String host = realmUrl.getHost();
+        _wildcard = host.startsWith("*.");
+        _domain = _wildcard ? host.substring(1).toLowerCase() : host.toLowerCase();
+
+        _port = realmUrl.getPort() != -1 ?
+                realmUrl.getPort() : realmUrl.getDefaultPort();
+
+        String path = realmUrl.getPath();
+        _pathPrefix = path.endsWith("/") ? path : path + "/";
+    }
+
+    String getRealm()
+    {
+        return _realm;
+    }
+
+    /**
+     * Matches the return_to URL against the realm.
+     *
+     * @return  RealmVerifier.OK or one of the RealmVerifier error codes.
+     */
+    int match(String returnTo)
+    {
+        if (_realmError != RealmVerifier.OK)
+            return _realmError;
+
+        URL returnToUrl;
+        try
+        {
+            returnToUrl = new URL(returnTo);
+        }
+        catch (MalformedURLException e)
+        {
+            _log.error("Invalid return URL: " + returnTo);
+            return RealmVerifier.MALFORMED_RETURN_TO_URL;
+        }
+
+        if (_hasFragment)
+        {
+            if (DEBUG) _log.debug("Realm verification failed: " +
+                                  "URL fragments are not allowed.");
+            return RealmVerifier.FRAGMENT_NOT_ALLOWED;
+        }
+
+        if (!_protocol.equalsIgnoreCase(returnToUrl.getProtocol()))
+        {
+            if (DEBUG) _log.debug("Realm verification failed: " +
+                                  "protocol mismatch.");
+            return RealmVerifier.PROTOCOL_MISMATCH;
+        }
+
+        if (!domainMatch(returnToUrl.getHost()))
+        {
+            if (DEBUG) _log.debug("Realm verification failed: " +
+                                  "domain mismatch.");
+            return RealmVerifier.DOMAIN_MISMATCH;
+        }
+
+        int returnToPort = returnToUrl.getPort() != -1 ?
+                returnToUrl.getPort() : returnToUrl.getDefaultPort();
+
+        if (_port != returnToPort)
+        {
+            if (DEBUG) _log.debug("Realm verification failed: " +
+                                  "port mismatch.");
+            return RealmVerifier.PORT_MISMATCH;
+        }
+
+        if (!pathMatch(returnToUrl.getPath()))
+        {
+            if (DEBUG) _log.debug("Realm verification failed: " +
+                                  "path mismatch.");
+            return RealmVerifier.PATH_MISMATCH;
+        }
+
+        return RealmVerifier.OK;
+    }
+
+    private boolean domainMatch(String returnToDomain)
+    {
+        if (_wildcard)
+            return ("." + returnToDomain.toLowerCase()).endsWith(_domain);
+        else
+            return _domain.equalsIgnoreCase(returnToDomain);
+    }
+
+    /**
+     * Is the return_to path equal to or a sub-directory of the realm's path.
+     */
+    private boolean pathMatch(String returnToPath)
+    {
+        if (returnToPath.endsWith("/"))
+            return returnToPath.startsWith(_pathPrefix);
+
+        // returnToPath + "/" starts with the prefix
+        return returnToPath.length() + 1 >= _pathPrefix.length() &&
+               returnToPath.regionMatches(0, _pathPrefix, 0, _pathPrefix.length() - 1) &&
+               (returnToPath.length() + 1 == _pathPrefix.length() ||
+                returnToPath.charAt(_pathPrefix.length() - 1) == '/');
+    }
+}
@@ -14,6 +14,8 @@ import org.openid4java.discovery.yadis.YadisResolver;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 import java.net.URL;
 import java.net.MalformedURLException;
@@ -44,9 +46,23 @@ public class RealmVerifier
     // yadis resolver used for RP discovery
     private YadisResolver _yadisResolver;
 
+    // cache of RP discovery results; null disables caching
+    private RealmDiscoveryCache _rpDiscoveryCache;
+
     private boolean _enforceRpId;
     private boolean _isOP;
 
+    private volatile int _matcherCacheSize = 1000;
+
+    // realm -> RealmMatcher, in access order
+    private final Map _matchers = new LinkedHashMap(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            return size() > _matcherCacheSize;
+        }
+    };
+
     /**
      * Non-public constructor. Use a {@link RealmVerifierFactory} to
      * create a {@link RealmVerifier}.
@@ -59,6 +75,7 @@ public class RealmVerifier
         addDeniedRealmDomain("\\*\\.[a-z]{2}\\.[a-z]{2}");
 
         _yadisResolver = yadisResolver;
+        _rpDiscoveryCache = new RealmDiscoveryCache(yadisResolver);
 
         _enforceRpId = true;
         _isOP = isOP;
@@ -96,6 +113,8 @@ public class RealmVerifier
 
             _deniedRealmRegExps.add(deniedRealmPattern);
         }
+
+        clearMatchCache();
     }
 
 
@@ -111,6 +130,23 @@ public class RealmVerifier
             _log.warn("RP discovery / realm validation disabled; ");
     }
 
+    /**
+     * Gets the cache used for the results of RP discovery.
+     */
+    public RealmDiscoveryCache getRpDiscoveryCache()
+    {
+        return _rpDiscoveryCache;
+    }
+
+    /**
+     * Sets the cache used for the results of RP discovery;
+     * null disables caching.
+     */
+    public void setRpDiscoveryCache(RealmDiscoveryCache rpDiscoveryCache)
+    {
+        this._rpDiscoveryCache = rpDiscoveryCache;
+    }
+
     public int validate(String realm, String returnTo)
     {
         // assume OpenID 2.0 / compatibility mode = false
@@ -166,7 +202,9 @@ public class RealmVerifier
             if (realmUrl.getAuthority().startsWith("*."))
                 realm = realm.replaceFirst("\\*\\.", "www.");
 
-            List endpoints = Discovery.rpDiscovery(realm, _yadisResolver);
+            List endpoints = _rpDiscoveryCache != null ?
+                    _rpDiscoveryCache.discover(realm) :
+                    Discovery.rpDiscovery(realm, _yadisResolver);
             DiscoveryInformation endpoint;
             String endpointUrl;
             Iterator iter = endpoints.iterator();
@@ -214,135 +252,102 @@ public class RealmVerifier
         if (DEBUG) _log.debug("Verifying realm: " + realm +
                               " on return URL: " + returnTo);
 
-        URL realmUrl;
-        try
-        {
-            realmUrl = new URL(realm);
-        }
-        catch (MalformedURLException e)
-        {
-            _log.error("Invalid realm URL: " + realm, e);
-            return MALFORMED_REALM;
-        }
+        if (realm == null || returnTo == null)
+            return compile(realm).match(returnTo);
 
-        String realmDomain = realmUrl.getHost();
+        int result = getMatcher(realm).match(returnTo);
 
-        if (isDeniedRealmDomain(realmDomain))
-        {
-            _log.warn("Blacklisted realm domain: " + realmDomain);
-            return DENIED_REALM;
-        }
+        if (OK == result)
+            _log.info("Return URL: " + returnTo + " matches realm: " + realm);
 
-        URL returnToUrl;
-        try
-        {
-            returnToUrl = new URL(returnTo);
-        }
-        catch (MalformedURLException e)
-        {
-            _log.error("Invalid return URL: " + returnTo);
-            return MALFORMED_RETURN_TO_URL;
-        }
+        return result;
+    }
 
-        if (realmUrl.getRef() != null)
+    /**
+     * Gets the compiled matcher for the realm, from the cache if available.
+     */
+    private RealmMatcher getMatcher(String realm)
+    {
+        RealmMatcher matcher;
+        synchronized (_matchers)
         {
-            if (DEBUG) _log.debug("Realm verification failed: " +
-                                  "URL fragments are not allowed.");
-            return FRAGMENT_NOT_ALLOWED;
+            matcher = (RealmMatcher) _matchers.get(realm);
         }
 
-        if (!realmUrl.getProtocol().equalsIgnoreCase(returnToUrl.getProtocol()))
+        if (matcher == null)
         {
-            if (DEBUG) _log.debug("Realm verification failed: " +
-                                  "protocol mismatch.");
-            return PROTOCOL_MISMATCH;
+            matcher = compile(realm);
+
+            synchronized (_matchers)
+            {
+                if (_matcherCacheSize > 0)
+                    _matchers.put(realm, matcher);
+            }
         }
 
-        if (!domainMatch(realmDomain, returnToUrl.getHost()))
+        return matcher;
+    }
+
+    private RealmMatcher compile(String realm)
+    {
+        URL realmUrl;
+        try
         {
-            if (DEBUG) _log.debug("Realm verification failed: " +
-                                  "domain mismatch.");
-            return DOMAIN_MISMATCH;
+            realmUrl = new URL(realm);
         }
-
-        if (!portMatch(realmUrl, returnToUrl))
+        catch (MalformedURLException e)
         {
-            if (DEBUG) _log.debug("Realm verification failed: " +
-                                  "port mismatch.");
-            return PORT_MISMATCH;
+            _log.error("Invalid realm URL: " + realm, e);
+            return new RealmMatcher(realm, MALFORMED_REALM);
         }
 
-        if (!pathMatch(realmUrl, returnToUrl))
+        String realmDomain = realmUrl.getHost();
+
+        if (isDeniedRealmDomain(realmDomain))
         {
-            if (DEBUG) _log.debug("Realm verification failed: " +
-                                  "path mismatch.");
-            return PATH_MISMATCH;
+            _log.warn("Blacklisted realm domain: " + realmDomain);
+            return new RealmMatcher(realm, DENIED_REALM);
         }
 
-        _log.info("Return URL: " + returnTo + " matches realm: " + realm);
-
-        return OK;
+        return new RealmMatcher(realm, realmUrl);
     }
 
-    private boolean isDeniedRealmDomain(String realmDomain)
+    /**
+     * Discards the compiled realms.
+     */
+    public void clearMatchCache()
     {
-        for (int i = 0; i < _deniedRealmRegExps.size(); i++)
+        synchronized (_matchers)
         {
-            Pattern realmPattern = (Pattern) _deniedRealmRegExps.get(i);
-
-            if (realmPattern.matcher(realmDomain).matches())
-                return true;
+            _matchers.clear();
         }
-
-        return false;
     }
 
-    private boolean portMatch(URL realmUrl, URL returnToUrl)
+    public int getMatcherCacheSize()
     {
-        int realmPort = realmUrl.getPort();
-        int returnToPort  = returnToUrl.getPort();
-
-        if (realmPort == -1)
-            realmPort = realmUrl.getDefaultPort();
-
-        if (returnToPort == -1)
-            returnToPort = returnToUrl.getDefaultPort();
-
-        return realmPort == returnToPort;
+        return _matcherCacheSize;
     }
 
     /**
-     * Does the URL's path equal to or a sub-directory of the realm's path.
-     *
-     * @param realmUrl
-     * @param returnToUrl
-     * @return If equals or a sub-direcotory return true.
+     * Sets the maximum number of compiled realms kept;
+     * 0 disables the cache. Default: 1000.
      */
-    private boolean pathMatch(URL realmUrl, URL returnToUrl)
+    public void setMatcherCacheSize(int matcherCacheSize)
     {
-        String realmPath = realmUrl.getPath();
-        String returnToPath  = returnToUrl.getPath();
-
-        if (!realmPath.endsWith("/"))
-            realmPath += "/";
-
-        if (!returnToPath.endsWith("/"))
-            returnToPath += "/";
-
-        // return realmPath.startsWith(returnToPath);
-        return returnToPath.startsWith(realmPath);
+        _matcherCacheSize = matcherCacheSize;
+        clearMatchCache();
     }
 
-    private boolean domainMatch(String realmDomain, String returnToDomain)
+    private boolean isDeniedRealmDomain(String realmDomain)
     {
-        if (realmDomain.startsWith("*."))
+        for (int i = 0; i < _deniedRealmRegExps.size(); i++)
         {
-            realmDomain = realmDomain.substring(1).toLowerCase();
-            returnToDomain  = "." + returnToDomain.toLowerCase();
+            Pattern realmPattern = (Pattern) _deniedRealmRegExps.get(i);
 
-            return returnToDomain.endsWith(realmDomain);
+            if (realmPattern.matcher(realmDomain).matches())
+                return true;
         }
-        else
-            return realmDomain.equalsIgnoreCase(returnToDomain);
+
+        return false;
     }
 }
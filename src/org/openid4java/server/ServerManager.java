@@ -46,6 +46,13 @@ public class ServerManager
      */
     private ServerAssociationStore _privateAssociations = new InMemoryServerAssociationStore();
 
+    /**
+     * Optional ring of rotating private associations; if set, stateless
+     * responses are signed with its active association instead of a new
+     * private association for each response. Default: null.
+     */
+    private PrivateAssociationRing _privateAssociationRing;
+
     /**
      * Flag for checking that shared associations are not accepted as or mixed with
      * the private ones.
@@ -59,7 +66,7 @@ public class ServerManager
     /**
      * Nonce generator implementation.
      */
-    private NonceGenerator _nonceGenerator = new IncrementalNonceGenerator();
+    private NonceGenerator _nonceGenerator = new ClusterNonceGenerator();
 
     // --- association preferences ---
 
@@ -167,6 +174,27 @@ public class ServerManager
         _privateAssociations = privateAssociations;
     }
 
+    public PrivateAssociationRing getPrivateAssociationRing()
+    {
+        return _privateAssociationRing;
+    }
+
+    /**
+     * Sets the ring of rotating private associations used for signing
+     * responses to stateless consumer sites, and uses its store as the
+     * private association store; null (default) generates a private
+     * association for each response.
+     *
+     * @see PrivateAssociationRing
+     */
+    public void setPrivateAssociationRing(PrivateAssociationRing privateAssociationRing)
+    {
+        _privateAssociationRing = privateAssociationRing;
+
+        if (privateAssociationRing != null)
+            _privateAssociations = privateAssociationRing.getStore();
+    }
+
     /**
      * Gets the _checkPrivateSharedAssociations flag.
      *
@@ -770,7 +798,15 @@ public class ServerManager
                         _log.info("Loaded shared association; handle: " + handle);
                 }
 
-                if (assoc == null)
+                if (assoc == null && _privateAssociationRing != null)
+                {
+                    assoc = _privateAssociationRing.getAssociation(
+                            _prefAssocSessEnc.getAssociationType());
+
+                    if (DEBUG) _log.debug("Using private association; handle: "
+                                          + assoc.getHandle());
+                }
+                else if (assoc == null)
                 {
                     assoc = _privateAssociations.generate(
                             _prefAssocSessEnc.getAssociationType(),
@@ -793,7 +829,7 @@ public class ServerManager
                     response.setSignExtensions(_signExtensions);
 
                 if (signNow)
-                    response.setSignature(assoc.sign(response.getSignedText()));
+                    response.setSignature(response.computeSignature(assoc));
 
                 _log.info("Returning positive assertion for " +
                           response.getReturnTo());
@@ -866,12 +902,19 @@ public class ServerManager
         Association assoc = _sharedAssociations.load(handle);
 
         if (assoc == null)
-            assoc = _privateAssociations.load(handle);
+            assoc = loadPrivateAssociation(handle);
 
         if (assoc == null) throw new ServerException(
                 "No association found for handle: " + handle);
 
-        authSuccess.setSignature(assoc.sign(authSuccess.getSignedText()));
+        authSuccess.setSignature(authSuccess.computeSignature(assoc));
+    }
+
+    private Association loadPrivateAssociation(String handle)
+    {
+        return _privateAssociationRing != null ?
+                _privateAssociationRing.load(handle) :
+                _privateAssociations.load(handle);
     }
 
     /**
@@ -897,7 +940,7 @@ public class ServerManager
 
             boolean verified = false;
 
-            Association assoc = _privateAssociations.load(handle);
+            Association assoc = loadPrivateAssociation(handle);
 
             if (_checkPrivateSharedAssociations && _sharedAssociations.load(handle) != null)
             {
@@ -910,13 +953,21 @@ public class ServerManager
                 // verify the signature
                 _log.info("Loaded private association; handle: " + handle);
 
-                verified = assoc.verifySignature(
-                        vrfyReq.getSignedText(),
-                        vrfyReq.getSignature());
+                verified = vrfyReq.verifySignature(assoc);
 
-                // remove the association so that the request
-                // cannot be verified more than once
-                _privateAssociations.remove(handle);
+                // make sure that the request cannot be verified more than
+                // once: ring associations sign many responses, and are kept
+                if (_privateAssociationRing != null)
+                {
+                    if (verified && ! _privateAssociationRing.markVerified(
+                            assoc, vrfyReq.getSignature()))
+                    {
+                        _log.warn("Signature already verified, handle: " + handle);
+                        verified = false;
+                    }
+                }
+                else
+                    _privateAssociations.remove(handle);
             }
 
             VerifyResponse vrfyResp =
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ThreadFactory for the library's background maintenance tasks.
+ * <p>
+ * Threads are named after the owning component and created as daemon
+ * threads, so that they never keep the JVM from shutting down.
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+    private final String _namePrefix;
+    private final int _priority;
+    private final AtomicInteger _threadCount = new AtomicInteger();
+
+    public DaemonThreadFactory(String name)
+    {
+        this(name, Thread.NORM_PRIORITY);
+    }
+
+    public DaemonThreadFactory(String name, int priority)
+    {
+        _namePrefix = name + "-";
+        _priority = priority;
+    }
+
+    public Thread newThread(Runnable runnable)
+    {
+        Thread thread = new Thread(runnable,
+                _namePrefix + _threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(_priority);
+        return thread;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * Thread-safe codec for the fixed <code>yyyy-MM-dd'T'HH:mm:ss'Z'</code>
+ * timestamps at the beginning of OpenID nonces, in the GMT time zone.
+ * <p>
+ * Unlike {@link InternetDateFormat}, the codec keeps no state, so it can be
+ * shared between threads without locking, and it parses timestamps
+ * straight to epoch seconds, without going through Date or Calendar
+ * objects. Parsing is strict: the timestamp must have exactly the format
+ * above (the 'T' and 'Z' separators are case insensitive) and valid field
+ * values; a leap second (60) rolls over into the next minute. Any
+ * characters following the timestamp are ignored, as they are by
+ * {@link InternetDateFormat#parse(String)}.
+ * <p>
+ * Dates are computed in the proleptic Gregorian calendar, for years
+ * 0000 to 9999.
+ *
+ * @see <a href="http://www.ietf.org/rfc/rfc3339.txt">RFC 3339: section 5.6</a>
+ */
+public final class InternetDateCodec
+{
+    /**
+     * Length of a formatted timestamp.
+     */
+    public static final int LENGTH = 20;
+
+    private static final int[] DAYS_IN_MONTH =
+            {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    private InternetDateCodec()
+    {
+    }
+
+    /**
+     * Parses the timestamp at the beginning of the source string.
+     *
+     * @return      The number of seconds since the epoch.
+     * @throws ParseException if the source does not start with a valid
+     *          timestamp.
+     */
+    public static long parseSeconds(String source) throws ParseException
+    {
+        if (source == null || source.length() < LENGTH)
+            throw new ParseException("Timestamp too short: " + source, 0);
+
+        int year   = digits(source, 0, 4);
+        expect(source, 4, '-', '-');
+        int month  = digits(source, 5, 2);
+        expect(source, 7, '-', '-');
+        int day    = digits(source, 8, 2);
+        expect(source, 10, 'T', 't');
+        int hour   = digits(source, 11, 2);
+        expect(source, 13, ':', ':');
+        int minute = digits(source, 14, 2);
+        expect(source, 16, ':', ':');
+        int second = digits(source, 17, 2);
+        expect(source, 19, 'Z', 'z');
+
+        if (month < 1 || month > 12)
+            throw new ParseException("Invalid month: " + source, 5);
+
+        if (day < 1 || day > DAYS_IN_MONTH[month - 1] ||
+                (month == 2 && day == 29 && ! isLeapYear(year)))
+            throw new ParseException("Invalid day: " + source, 8);
+
+        if (hour > 23)
+            throw new ParseException("Invalid hour: " + source, 11);
+
+        if (minute > 59)
+            throw new ParseException("Invalid minute: " + source, 14);
+
+        if (second > 60)
+            throw new ParseException("Invalid second: " + source, 17);
+
+        return toEpochDay(year, month, day) * 86400L +
+                hour * 3600 + minute * 60 + second;
+    }
+
+    /**
+     * Formats a date as a timestamp.
+     */
+    public static String format(Date date)
+    {
+        return format(date.getTime());
+    }
+
+    /**
+     * Formats a time, in milliseconds since the epoch, as a timestamp.
+     * Milliseconds are truncated.
+     */
+    public static String format(long millis)
+    {
+        long seconds = millis / 1000;
+        if (millis % 1000 < 0) seconds--;
+
+        long days = seconds / 86400;
+        int secondOfDay = (int) (seconds % 86400);
+        if (secondOfDay < 0)
+        {
+            days--;
+            secondOfDay += 86400;
+        }
+
+        // civil date from the day number, in 400 year eras starting March 1
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+                - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra -
+                (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        if (year < 0 || year > 9999)
+            throw new IllegalArgumentException(
+                    "Year out of range: " + year);
+
+        char[] buf = new char[LENGTH];
+        put(buf, 0, (int) year, 4);
+        buf[4] = '-';
+        put(buf, 5, month, 2);
+        buf[7] = '-';
+        put(buf, 8, day, 2);
+        buf[10] = 'T';
+        put(buf, 11, secondOfDay / 3600, 2);
+        buf[13] = ':';
+        put(buf, 14, secondOfDay / 60 % 60, 2);
+        buf[16] = ':';
+        put(buf, 17, secondOfDay % 60, 2);
+        buf[19] = 'Z';
+
+        return new String(buf);
+    }
+
+    private static long toEpochDay(int year, int month, int day)
+    {
+        // years starting March 1, so that the leap day is the last one
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = (int) (y - era * 400);
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+                + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+                + dayOfYear;
+
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static boolean isLeapYear(int year)
+    {
+        return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    private static int digits(String source, int offset, int count)
+            throws ParseException
+    {
+        int value = 0;
+
+        for (int i = offset; i < offset + count; i++)
+        {
+            char c = source.charAt(i);
+
+            if (c < '0' || c > '9')
+                throw new ParseException("Digit expected: " + source, i);
+
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+
+    private static void expect(String source, int offset, char c1, char c2)
+            throws ParseException
+    {
+        char c = source.charAt(offset);
+
+        if (c != c1 && c != c2)
+            throw new ParseException("'" + c1 + "' expected: " + source, offset);
+    }
+
+    private static void put(char[] buf, int offset, int value, int count)
+    {
+        for (int i = offset + count - 1; i >= offset; i--)
+        {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
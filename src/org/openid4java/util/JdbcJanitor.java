@@ -0,0 +1,375 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background cleanup of the expired rows of a JDBC store table, so that
+ * the store's request path does not run the range deletes.
+ * <p>
+ * On every run the janitor deletes the rows whose date column is before
+ * {@link #getBoundary()}, in batches: the keys of at most batchSize
+ * expired rows are selected and the rows are deleted by key, until a
+ * batch comes back short or the maximum number of batches per run is
+ * reached. Keeping each statement small keeps it from contending with
+ * the store's inserts on the same index.
+ * <p>
+ * Runs are scheduled on a daemon thread once the janitor is started, and
+ * can also be triggered with {@link #purge()}. Runs that delete rows are
+ * logged at INFO with the number of rows and the duration; both are also
+ * kept as counters. The owning store stops the janitor's thread when it
+ * is shut down.
+ */
+public class JdbcJanitor
+{
+    private static Log _log = LogFactory.getLog(JdbcJanitor.class);
+    private static final boolean DEBUG = _log.isDebugEnabled();
+
+    private final String _tableName;
+    private final String[] _keyColumns;
+    private final String _selectSql;
+    private final String _deleteSql;
+
+    /**
+     * Interval between runs, in seconds. Default: 60.
+     */
+    private volatile int _interval = 60;
+
+    /**
+     * Maximum number of rows deleted by one batch. Default: 1000.
+     */
+    private volatile int _batchSize = 1000;
+
+    /**
+     * Maximum number of batches in one run. Default: 100.
+     */
+    private volatile int _maxBatches = 100;
+
+    private volatile DataSource _dataSource;
+
+    private ScheduledThreadPoolExecutor _executor;
+    private ScheduledFuture _task;
+
+    private final Object _purgeLock = new Object();
+
+    private final AtomicLong _runs = new AtomicLong();
+    private final AtomicLong _rowsPurged = new AtomicLong();
+    private volatile int _lastRowsPurged;
+    private volatile long _lastDuration;
+
+    /**
+     * @param tableName     The table to clean up.
+     * @param dateColumn    The column compared against the boundary.
+     * @param keyColumns    The columns making up the table's primary key.
+     */
+    public JdbcJanitor(String tableName, String dateColumn, String[] keyColumns)
+    {
+        _tableName = tableName;
+        _keyColumns = keyColumns;
+
+        StringBuffer select = new StringBuffer("SELECT ");
+        StringBuffer delete = new StringBuffer("DELETE FROM ")
+                .append(tableName).append(" WHERE ");
+
+        for (int i = 0; i < keyColumns.length; i++)
+        {
+            if (i > 0)
+            {
+                select.append(", ");
+                delete.append(" AND ");
+            }
+
+            select.append(keyColumns[i]);
+            delete.append(keyColumns[i]).append("=?");
+        }
+
+        select.append(" FROM ").append(tableName)
+                .append(" WHERE ").append(dateColumn).append("<?");
+
+        _selectSql = select.toString();
+        _deleteSql = delete.toString();
+    }
+
+    /**
+     * Gets the date before which rows are expired; the current time by
+     * default.
+     */
+    protected Date getBoundary()
+    {
+        return new Date();
+    }
+
+    public String getTableName()
+    {
+        return _tableName;
+    }
+
+    public int getInterval()
+    {
+        return _interval;
+    }
+
+    /**
+     * Sets the interval between runs, in seconds; 0 disables the scheduled
+     * runs, leaving the cleanup to explicit {@link #purge()} calls.
+     */
+    public synchronized void setInterval(int interval)
+    {
+        if (interval < 0)
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+
+        _interval = interval;
+
+        if (_dataSource != null)
+            schedule();
+    }
+
+    public int getBatchSize()
+    {
+        return _batchSize;
+    }
+
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+
+        _batchSize = batchSize;
+    }
+
+    public int getMaxBatches()
+    {
+        return _maxBatches;
+    }
+
+    /**
+     * Sets the maximum number of batches in one run; the remaining rows
+     * are left for the next run.
+     */
+    public void setMaxBatches(int maxBatches)
+    {
+        if (maxBatches < 1)
+            throw new IllegalArgumentException("Invalid maximum batches: " + maxBatches);
+
+        _maxBatches = maxBatches;
+    }
+
+    public boolean isStarted()
+    {
+        return _dataSource != null;
+    }
+
+    /**
+     * Starts the scheduled runs against the given data source; does
+     * nothing if the janitor was already started.
+     */
+    public synchronized void start(DataSource dataSource)
+    {
+        if (_dataSource != null) return;
+
+        _dataSource = dataSource;
+
+        schedule();
+    }
+
+    /**
+     * Stops the scheduled runs; the janitor can be started again.
+     */
+    public synchronized void shutdown()
+    {
+        if (_executor != null)
+        {
+            _executor.shutdownNow();
+            _executor = null;
+        }
+
+        _task = null;
+        _dataSource = null;
+    }
+
+    private void schedule()
+    {
+        if (_task != null)
+        {
+            _task.cancel(false);
+            _task = null;
+        }
+
+        if (_interval == 0) return;
+
+        if (_executor == null)
+            _executor = new ScheduledThreadPoolExecutor(1,
+                    new DaemonThreadFactory("JdbcJanitor-" + _tableName,
+                                            Thread.MIN_PRIORITY));
+
+        _task = _executor.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    purge();
+                }
+                catch (Exception e)
+                {
+                    _log.error("Error cleaning up expired rows from table: "
+                               + _tableName, e);
+                }
+            }
+        }, _interval, _interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Deletes the expired rows, in batches.
+     *
+     * @return The number of rows deleted.
+     */
+    public int purge()
+    {
+        DataSource dataSource = _dataSource;
+
+        if (dataSource == null)
+            throw new IllegalStateException("Janitor not started for table: "
+                                            + _tableName);
+
+        synchronized (_purgeLock)
+        {
+            long start = System.currentTimeMillis();
+
+            int total = deleteExpired(dataSource);
+
+            long duration = System.currentTimeMillis() - start;
+
+            _runs.incrementAndGet();
+            _rowsPurged.addAndGet(total);
+            _lastRowsPurged = total;
+            _lastDuration = duration;
+
+            if (total > 0)
+                _log.info("Cleaned " + total + " expired rows from table: "
+                          + _tableName + " in " + duration + " ms");
+            else if (DEBUG)
+                _log.debug("No expired rows in table: " + _tableName +
+                           ", checked in " + duration + " ms");
+
+            return total;
+        }
+    }
+
+    /**
+     * Deletes the expired rows in batches; subclasses with a different
+     * table layout can override it.
+     *
+     * @return The number of rows deleted.
+     */
+    protected int deleteExpired(DataSource dataSource)
+    {
+        int batchSize = _batchSize;
+        int maxBatches = _maxBatches;
+
+        JdbcTemplate selectTemplate = new JdbcTemplate(dataSource);
+        selectTemplate.setMaxRows(batchSize);
+        JdbcTemplate deleteTemplate = new JdbcTemplate(dataSource);
+
+        Object[] boundary = new Object[] { getBoundary() };
+
+        int total = 0;
+
+        for (int batch = 0; batch < maxBatches; batch++)
+        {
+            final List keys = selectTemplate.query(
+                    _selectSql, boundary, new KeyMapper());
+
+            if (keys.isEmpty()) break;
+
+            int[] counts = deleteTemplate.batchUpdate(_deleteSql,
+                    new BatchPreparedStatementSetter()
+            {
+                public void setValues(PreparedStatement ps, int i)
+                        throws SQLException
+                {
+                    Object[] key = (Object[]) keys.get(i);
+
+                    for (int k = 0; k < key.length; k++)
+                        ps.setObject(k + 1, key[k]);
+                }
+
+                public int getBatchSize()
+                {
+                    return keys.size();
+                }
+            });
+
+            for (int i = 0; i < counts.length; i++)
+                // some drivers only report success without a count
+                total += counts[i] >= 0 ? counts[i] : 1;
+
+            if (keys.size() < batchSize) break;
+        }
+
+        return total;
+    }
+
+    /**
+     * Gets the number of completed runs.
+     */
+    public long getRuns()
+    {
+        return _runs.get();
+    }
+
+    /**
+     * Gets the total number of rows deleted.
+     */
+    public long getRowsPurged()
+    {
+        return _rowsPurged.get();
+    }
+
+    /**
+     * Gets the number of rows deleted by the last run.
+     */
+    public int getLastRowsPurged()
+    {
+        return _lastRowsPurged;
+    }
+
+    /**
+     * Gets the duration of the last run, in milliseconds.
+     */
+    public long getLastDuration()
+    {
+        return _lastDuration;
+    }
+
+    private class KeyMapper implements RowMapper
+    {
+        public Object mapRow(ResultSet rs, int rowNum) throws SQLException
+        {
+            Object[] key = new Object[_keyColumns.length];
+
+            for (int i = 0; i < key.length; i++)
+                key[i] = rs.getObject(i + 1);
+
+            return key;
+        }
+    }
+}
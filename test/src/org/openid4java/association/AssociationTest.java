@@ -8,11 +8,22 @@ import junit.framework.Test;
 import junit.framework.TestSuite;
 import junit.framework.TestCase;
 
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 /**
  * @author Marius Scurtescu, Johnny Bufu
  */
@@ -76,6 +87,171 @@ public class AssociationTest extends TestCase
         assertTrue(association.verifySignature(text, signature));
     }
 
+    public void testSignMatchesFreshMac() throws Exception
+    {
+        Association association = Association.generate(Association.TYPE_HMAC_SHA1, "test", 100);
+
+        Mac mac = Mac.getInstance(Association.HMAC_SHA1_ALGORITHM);
+        mac.init(association.getMacKey());
+
+        for (int i = 0; i < 20; i++)
+        {
+            String text = "key:value" + i + "\n";
+            String expected = new String(Base64.encodeBase64(
+                    mac.doFinal(text.getBytes("utf-8"))), "utf-8");
+
+            assertEquals(expected, association.sign(text));
+        }
+    }
+
+    public void testConcurrentSign() throws Exception
+    {
+        final Association association = Association.generate(Association.TYPE_HMAC_SHA1, "test", 100);
+        final String text = "key1:value1\nkey2:value2\n";
+        final String expected = association.sign(text);
+        final List failures = Collections.synchronizedList(new ArrayList());
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++)
+        {
+            final int id = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        String own = "thread:" + id + "\n";
+                        String ownSignature = association.sign(own);
+
+                        for (int i = 0; i < 1000; i++)
+                        {
+                            if (! expected.equals(association.sign(text)) ||
+                                    ! association.verifySignature(own, ownSignature))
+                                failures.add("Signature mismatch in thread " + id);
+                        }
+                    }
+                    catch (AssociationException e)
+                    {
+                        failures.add(e.getMessage());
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        for (int t = 0; t < threads.length; t++)
+            threads[t].join();
+
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    public void testSignAfterSerialization() throws Exception
+    {
+        Association association = Association.generate(Association.TYPE_HMAC_SHA256, "test", 100);
+        String text = "key1:value1\nkey2:value2\n";
+        String signature = association.sign(text);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(association);
+        out.close();
+
+        Association copy = (Association) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(signature, copy.sign(text));
+        assertTrue(copy.verifySignature(text, signature));
+    }
+
+    public void testSignerEncoding() throws Exception
+    {
+        Association association = Association.generate(Association.TYPE_HMAC_SHA1, "test", 100);
+
+        Mac mac = Mac.getInstance(Association.HMAC_SHA1_ALGORITHM);
+        mac.init(association.getMacKey());
+
+        Random random = new Random(42);
+        char[] alphabet = new char[] {'a', ':', '\n', '\u00e9', '\u07ff',
+                '\u0800', '\u20ac', '\uffff', '\ud834', '\udd1e'};
+
+        for (int i = 0; i < 500; i++)
+        {
+            StringBuffer key = new StringBuffer();
+            StringBuffer value = new StringBuffer();
+            for (int j = random.nextInt(400); j > 0; j--)
+                value.append(alphabet[random.nextInt(alphabet.length)]);
+            for (int j = random.nextInt(10); j > 0; j--)
+                key.append(alphabet[random.nextInt(alphabet.length)]);
+
+            String text = key + ":" + value + "\n";
+            byte[] expected = mac.doFinal(text.getBytes("utf-8"));
+
+            byte[] signature = association.getSigner()
+                    .append(key.toString(), value.toString()).sign();
+
+            assertTrue(Arrays.equals(expected, signature));
+        }
+    }
+
+    public void testVerifyRejectsNonCanonicalSignature() throws Exception
+    {
+        Association association = Association.generate(Association.TYPE_HMAC_SHA1, "test", 100);
+        String text = "key1:value1\nkey2:value2\n";
+        String signature = association.sign(text);
+
+        assertTrue(association.verifySignature(text, signature));
+        assertFalse(association.verifySignature(text, " " + signature));
+        assertFalse(association.verifySignature(text, signature + "\n"));
+        assertFalse(association.verifySignature(text, ""));
+        assertFalse(association.verifySignature(text, null));
+
+        // the last character of a 20-byte MAC carries two unused bits;
+        // flipping them decodes to the same bytes
+        char last = signature.charAt(signature.length() - 2);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        int index = alphabet.indexOf(last);
+        for (int bits = 1; bits < 4; bits++)
+        {
+            String malleated = signature.substring(0, signature.length() - 2) +
+                    alphabet.charAt(index ^ bits) + "=";
+            assertFalse(malleated, association.verifySignature(text, malleated));
+        }
+    }
+
+    public void testReleasedSignerCannotBeUsed() throws Exception
+    {
+        Association association = Association.generate(Association.TYPE_HMAC_SHA1, "test", 100);
+
+        KeyValueSigner signer = association.getSigner();
+        signer.append("key", "value").sign();
+
+        try
+        {
+            signer.append("key", "value");
+            fail("Released signer should not be usable");
+        }
+        catch (IllegalStateException expected) { }
+    }
+
+    public void testStaleReleaseIsHarmless() throws Exception
+    {
+        Association association = Association.generate(Association.TYPE_HMAC_SHA1, "test", 100);
+        String expected = association.sign("key:value\n");
+
+        KeyValueSigner first = association.getSigner();
+        first.append("other", "value").sign();
+
+        // may share the pooled state of the first signer
+        KeyValueSigner second = association.getSigner();
+        second.append("key", "value");
+
+        first.release();
+
+        assertEquals(expected, second.signBase64());
+        assertEquals(expected, association.sign("key:value\n"));
+    }
+
     public static Test suite()
     {
         return new TestSuite(AssociationTest.class);
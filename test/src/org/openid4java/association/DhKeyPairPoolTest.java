@@ -0,0 +1,150 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.association;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.crypto.spec.DHParameterSpec;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class DhKeyPairPoolTest extends TestCase
+{
+    private DhKeyPairPool _pool;
+    private DHParameterSpec _defaultSpec;
+
+    public DhKeyPairPoolTest(String name)
+    {
+        super(name);
+    }
+
+    public void setUp() throws Exception
+    {
+        _pool = new DhKeyPairPool(4);
+        _pool.shutdown();
+        _defaultSpec = DiffieHellmanSession.getDefaultParameter();
+    }
+
+    public void tearDown() throws Exception
+    {
+        DiffieHellmanSession.setKeyPairPool(null);
+        _pool.shutdown();
+    }
+
+    public void testFillAndTake() throws Exception
+    {
+        _pool.fill();
+        assertEquals(4, _pool.getSize(_defaultSpec));
+
+        Set publicKeys = new HashSet();
+        for (int i = 0; i < 4; i++)
+        {
+            KeyPair keyPair = _pool.getKeyPair(_defaultSpec);
+            assertNotNull(keyPair);
+            assertTrue(publicKeys.add(keyPair.getPublic()));
+        }
+
+        assertEquals(4, _pool.getHits());
+        assertEquals(0, _pool.getMisses());
+    }
+
+    public void testUnregisteredParameter() throws Exception
+    {
+        DHParameterSpec spec = DiffieHellmanSession.generateRandomParameter(512, 256);
+
+        assertEquals(-1, _pool.getSize(spec));
+        assertNotNull(_pool.getKeyPair(spec));
+        assertEquals(1, _pool.getMisses());
+    }
+
+    public void testBackgroundRefill() throws Exception
+    {
+        _pool.fill();
+
+        for (int i = 0; i < 3; i++)
+            _pool.getKeyPair(_defaultSpec);
+
+        // refilled once at the low water mark (2), possibly before the
+        // third key pair was taken
+        for (int i = 0; i < 100 && _pool.getGenerated() < 6; i++)
+            Thread.sleep(50);
+        Thread.sleep(200);
+
+        assertTrue(_pool.getSize(_defaultSpec) > _pool.getLowWaterMark());
+        assertTrue(_pool.getGenerated() >= 6);
+    }
+
+    public void testRefillWhenEmpty() throws Exception
+    {
+        _pool.setLowWaterMark(0);
+        _pool.fill();
+
+        for (int i = 0; i < 3; i++)
+            _pool.getKeyPair(_defaultSpec);
+
+        Thread.sleep(200);
+        assertEquals(1, _pool.getSize(_defaultSpec));
+
+        _pool.getKeyPair(_defaultSpec);
+
+        for (int i = 0; i < 100 && _pool.getSize(_defaultSpec) < 4; i++)
+            Thread.sleep(50);
+
+        assertEquals(4, _pool.getSize(_defaultSpec));
+    }
+
+    public void testSingleSlotPool() throws Exception
+    {
+        DhKeyPairPool pool = new DhKeyPairPool(1);
+        try
+        {
+            assertEquals(0, pool.getLowWaterMark());
+
+            for (int round = 0; round < 3; round++)
+            {
+                for (int i = 0; i < 100 && pool.getSize(_defaultSpec) < 1; i++)
+                    Thread.sleep(50);
+
+                assertEquals(1, pool.getSize(_defaultSpec));
+                assertNotNull(pool.getKeyPair(_defaultSpec));
+            }
+
+            assertEquals(3, pool.getHits());
+            assertEquals(0, pool.getMisses());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    public void testSessionsUsePool() throws Exception
+    {
+        _pool.fill();
+        DiffieHellmanSession.setKeyPairPool(_pool);
+
+        DiffieHellmanSession consumer = DiffieHellmanSession.create(
+                AssociationSessionType.DH_SHA1, _defaultSpec);
+        DiffieHellmanSession server = DiffieHellmanSession.create(
+                AssociationSessionType.DH_SHA1, _defaultSpec);
+
+        assertEquals(2, _pool.getHits());
+
+        byte[] macKey = Association.generateMacSha1Key().getEncoded();
+        String encMacKey = server.encryptMacKey(macKey, consumer.getPublicKey());
+
+        assertTrue(Arrays.equals(macKey,
+                consumer.decryptMacKey(encMacKey, server.getPublicKey())));
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(DhKeyPairPoolTest.class);
+    }
+}
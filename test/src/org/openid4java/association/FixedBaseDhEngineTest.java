@@ -0,0 +1,173 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.association;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.codec.binary.Base64;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+import javax.servlet.ServletException;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+
+public class FixedBaseDhEngineTest extends TestCase
+{
+    private static final String TEST_DATA_FILE = "DiffieHellmanSessionTestData.xml";
+
+    private String _testDataPath;
+    private FixedBaseDhEngine _engine;
+
+    public FixedBaseDhEngineTest(String name) throws ServletException
+    {
+        super(name);
+
+        _testDataPath = System.getProperty("TEST_DATA");
+
+        if (_testDataPath == null)
+            throw new ServletException("TEST_DATA path not initialized");
+    }
+
+    public void setUp() throws Exception
+    {
+        _engine = new FixedBaseDhEngine();
+    }
+
+    public void tearDown() throws Exception
+    {
+        DiffieHellmanSession.setEngine(null);
+    }
+
+    private static BigInteger decode(Element test, String attribute)
+    {
+        return new BigInteger(
+                Base64.decodeBase64(test.getAttributeValue(attribute).getBytes()));
+    }
+
+    /**
+     * The public keys in the test vectors must be reproduced from the
+     * private keys, for the default and for random parameters.
+     */
+    public void testXmlFile() throws Exception
+    {
+        InputStream in = new BufferedInputStream(new FileInputStream(
+                _testDataPath + "/association/" + TEST_DATA_FILE));
+
+        SAXBuilder saxBuilder = new SAXBuilder();
+        Document document = saxBuilder.build(in);
+        List tests = document.getRootElement().getChildren("test");
+
+        assertTrue(tests.size() > 0);
+
+        for (int i = 0; i < tests.size(); i++)
+        {
+            Element test = (Element) tests.get(i);
+
+            DHParameterSpec dhSpec = new DHParameterSpec(
+                    decode(test, "dh_modulus"), decode(test, "dh_gen"));
+
+            _engine.addParameter(dhSpec);
+
+            assertEquals(decode(test, "dh_consumer_public"),
+                    _engine.pow(dhSpec, decode(test, "dh_consumer_private")));
+            assertEquals(decode(test, "dh_server_public"),
+                    _engine.pow(dhSpec, decode(test, "dh_server_private")));
+        }
+    }
+
+    public void testMatchesModPow() throws Exception
+    {
+        DHParameterSpec dhSpec = DiffieHellmanSession.getDefaultParameter();
+        BigInteger p = dhSpec.getP();
+        BigInteger g = dhSpec.getG();
+
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < 50; i++)
+        {
+            BigInteger x = new BigInteger(p.bitLength() - 1, random);
+            assertEquals(g.modPow(x, p), _engine.pow(dhSpec, x));
+        }
+
+        // edge cases, and exponents that do not fit the table
+        BigInteger[] exponents = new BigInteger[] {
+                BigInteger.ZERO, BigInteger.ONE, p.subtract(BigInteger.ONE),
+                p, p.shiftLeft(3).add(BigInteger.TEN) };
+
+        for (int i = 0; i < exponents.length; i++)
+            assertEquals(g.modPow(exponents[i], p), _engine.pow(dhSpec, exponents[i]));
+    }
+
+    public void testWindowSizes() throws Exception
+    {
+        DHParameterSpec dhSpec = DiffieHellmanSession.generateRandomParameter(512, 256);
+        BigInteger x = new BigInteger(255, new SecureRandom());
+        BigInteger expected = dhSpec.getG().modPow(x, dhSpec.getP());
+
+        for (int w = 1; w <= 8; w++)
+        {
+            FixedBaseDhEngine engine = new FixedBaseDhEngine(w);
+            engine.addParameter(dhSpec);
+
+            assertEquals(expected, engine.pow(dhSpec, x));
+        }
+    }
+
+    public void testGenerateKeyPair() throws Exception
+    {
+        DHParameterSpec dhSpec = DiffieHellmanSession.getDefaultParameter();
+
+        KeyPair keyPair = _engine.generateKeyPair(dhSpec);
+        assertNotNull(keyPair);
+
+        BigInteger x = ((DHPrivateKey) keyPair.getPrivate()).getX();
+        BigInteger y = ((DHPublicKey) keyPair.getPublic()).getY();
+
+        assertEquals(dhSpec.getG().modPow(x, dhSpec.getP()), y);
+
+        DHParameterSpec unregistered =
+                DiffieHellmanSession.generateRandomParameter(512, 256);
+        assertNull(_engine.generateKeyPair(unregistered));
+    }
+
+    public void testSessionsUseEngine() throws Exception
+    {
+        DiffieHellmanSession.setEngine(_engine);
+
+        DHParameterSpec dhSpec = DiffieHellmanSession.getDefaultParameter();
+
+        DiffieHellmanSession consumer = DiffieHellmanSession.create(
+                AssociationSessionType.DH_SHA256, dhSpec);
+        DiffieHellmanSession server = DiffieHellmanSession.create(
+                AssociationSessionType.DH_SHA256, dhSpec);
+
+        byte[] macKey = Association.generateMacSha256Key().getEncoded();
+        String encMacKey = server.encryptMacKey(macKey, consumer.getPublicKey());
+
+        assertTrue(Arrays.equals(macKey,
+                consumer.decryptMacKey(encMacKey, server.getPublicKey())));
+
+        // unregistered parameters fall back to the JCE generator
+        DHParameterSpec random = DiffieHellmanSession.generateRandomParameter(512, 256);
+        assertNotNull(DiffieHellmanSession.generateKeyPair(random));
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(FixedBaseDhEngineTest.class);
+    }
+}
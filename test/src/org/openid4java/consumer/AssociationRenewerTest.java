@@ -0,0 +1,181 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.openid4java.association.Association;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.server.RealmVerifierFactory;
+import org.openid4java.server.ServerManager;
+import org.openid4java.util.HttpFetcherFactory;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AssociationRenewerTest extends TestCase
+{
+    private static final String OP_ENDPOINT = "http://op.example.com/server";
+
+    private ServerManager _server;
+    private InProcessOpFetcher _fetcher;
+    private ConsumerManager _manager;
+    private AssociationRenewer _renewer;
+
+    public AssociationRenewerTest(String name)
+    {
+        super(name);
+    }
+
+    public void setUp() throws Exception
+    {
+        _server = new ServerManager();
+        _server.setOPEndpointUrl(OP_ENDPOINT);
+        // the consumer sees expires_in rounded down, 3s
+        _server.setExpireIn(4);
+
+        _fetcher = new InProcessOpFetcher(_server);
+
+        _manager = new ConsumerManager(
+                new RealmVerifierFactory(new YadisResolver(new HttpFetcherFactory())),
+                new Discovery(), _fetcher.getFactory());
+        _manager.setPreExpiryAssocLockInterval(1);
+
+        // renewals due 1 - 2 seconds after the association is established
+        _renewer = new AssociationRenewer();
+        _renewer.setJitterWindow(1);
+        _renewer.setRetryInterval(1);
+        _manager.setAssociationRenewer(_renewer);
+    }
+
+    public void tearDown() throws Exception
+    {
+        _renewer.shutdown();
+    }
+
+    private List discoveries() throws Exception
+    {
+        List discoveries = new ArrayList();
+        discoveries.add(new DiscoveryInformation(new URL(OP_ENDPOINT)));
+        return discoveries;
+    }
+
+    private Association current()
+    {
+        return _manager.getAssociations().load(OP_ENDPOINT);
+    }
+
+    private void waitFor(long count, boolean failures) throws InterruptedException
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            if ((failures ? _renewer.getFailureCount() :
+                    _renewer.getRenewalCount()) >= count)
+                return;
+
+            Thread.sleep(50);
+        }
+    }
+
+    public void testRenewedBeforeLockInterval() throws Exception
+    {
+        _manager.associate(discoveries());
+        Association first = current();
+        assertNotNull(first);
+        assertEquals(1, _fetcher.getRequestCount());
+        assertEquals(1, _renewer.getTrackedCount());
+
+        waitFor(1, false);
+        assertEquals(1, _renewer.getRenewalCount());
+
+        Association renewed = current();
+        assertFalse(first.getHandle().equals(renewed.getHandle()));
+
+        // the old association is still around for pending responses
+        assertNotNull(_manager.getAssociations().load(OP_ENDPOINT, first.getHandle()));
+
+        // logins use the renewed association, without a round trip
+        _manager.associate(discoveries());
+        assertEquals(2, _fetcher.getRequestCount());
+    }
+
+    public void testIdleOpNotRenewed() throws Exception
+    {
+        _renewer.setIdleTimeout(0);
+
+        _manager.associate(discoveries());
+        Association first = current();
+
+        for (int i = 0; i < 100 && _renewer.getIdleCount() == 0; i++)
+            Thread.sleep(50);
+
+        assertEquals(1, _renewer.getIdleCount());
+        assertEquals(0, _renewer.getRenewalCount());
+        assertEquals(0, _renewer.getTrackedCount());
+        assertEquals(1, _fetcher.getRequestCount());
+        assertEquals(first.getHandle(), current().getHandle());
+    }
+
+    public void testIdleShortLivedOpDropped() throws Exception
+    {
+        // each association lasts less than the idle timeout plus the
+        // pre-expiry interval; background renewals must not keep it alive
+        _renewer.setIdleTimeout(3);
+
+        _manager.associate(discoveries());
+
+        for (int i = 0; i < 200 && _renewer.getIdleCount() == 0; i++)
+            Thread.sleep(50);
+
+        assertEquals(1, _renewer.getIdleCount());
+        assertEquals(0, _renewer.getTrackedCount());
+        assertTrue(_renewer.getRenewalCount() >= 1);
+
+        long requests = _fetcher.getRequestCount();
+        Thread.sleep(3000);
+        assertEquals(requests, _fetcher.getRequestCount());
+    }
+
+    public void testShortLivedAssociationNotTracked() throws Exception
+    {
+        // the association expires within the lock interval plus the jitter
+        _manager.setPreExpiryAssocLockInterval(3);
+
+        _manager.associate(discoveries());
+        assertNotNull(current());
+        assertEquals(0, _renewer.getTrackedCount());
+
+        Thread.sleep(1500);
+        assertEquals(1, _fetcher.getRequestCount());
+        assertEquals(0, _renewer.getRenewalCount());
+    }
+
+    public void testFailedRenewalKeepsAssociation() throws Exception
+    {
+        _manager.associate(discoveries());
+        Association first = current();
+
+        // no retry within the test
+        _renewer.setRetryInterval(10);
+
+        _fetcher.setFailing(true);
+
+        waitFor(1, true);
+        assertEquals(1, _renewer.getFailureCount());
+
+        // no failed-association marker replacing the usable association
+        assertEquals(first.getHandle(), current().getHandle());
+        assertEquals(1, _renewer.getTrackedCount());
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(AssociationRenewerTest.class);
+    }
+}
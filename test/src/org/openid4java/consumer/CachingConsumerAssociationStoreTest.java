@@ -0,0 +1,193 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationInvalidationListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class CachingConsumerAssociationStoreTest extends ConsumerAssociationStoreTest
+{
+    private static final String OP = "http://example.com";
+
+    private CountingStore _backend;
+
+    public CachingConsumerAssociationStoreTest(String name)
+    {
+        super(name);
+    }
+
+    protected ConsumerAssociationStore createStore()
+    {
+        _backend = new CountingStore();
+        return new CachingConsumerAssociationStore(_backend);
+    }
+
+    public void testLoadsServedFromCache()
+    {
+        Association a = Association.generateHmacSha1("a", 60);
+        _associationStore.save(OP, a);
+
+        for (int i = 0; i < 5; i++)
+            assertSame(a, _associationStore.load(OP, "a"));
+        assertEquals(0, _backend.getLoads());
+
+        // latest association cached on save
+        assertSame(a, _associationStore.load(OP));
+        assertEquals(0, _backend.getLoads());
+
+        // or loaded once from the store
+        ((CachingConsumerAssociationStore) _associationStore).getLatestCache().clear();
+        assertSame(a, _associationStore.load(OP));
+        assertSame(a, _associationStore.load(OP));
+        assertEquals(1, _backend.getLoads());
+    }
+
+    public void testLoadRacingSave() throws InterruptedException
+    {
+        final BlockingStore backend = new BlockingStore();
+        final CachingConsumerAssociationStore store =
+                new CachingConsumerAssociationStore(backend);
+
+        backend.save(OP, Association.generateHmacSha1("a", 60));
+
+        // reads "a" from the store, and caches it after "b" was saved
+        Thread loader = new Thread()
+        {
+            public void run()
+            {
+                store.load(OP);
+            }
+        };
+        loader.start();
+        backend.awaitLoad();
+
+        store.save(OP, Association.generateHmacSha1("b", 120));
+
+        backend.releaseLoad();
+        loader.join();
+
+        assertEquals("b", store.load(OP).getHandle());
+    }
+
+    public void testLatestFollowsSaves()
+    {
+        _associationStore.save(OP, Association.generateHmacSha1("a", 60));
+        assertEquals("a", _associationStore.load(OP).getHandle());
+
+        _associationStore.save(OP, Association.generateHmacSha1("b", 120));
+        assertEquals("b", _associationStore.load(OP).getHandle());
+
+        // an association expiring earlier does not become the latest
+        _associationStore.save(OP, Association.getFailedAssociation(30));
+        assertEquals("b", _associationStore.load(OP).getHandle());
+
+        _associationStore.remove(OP, "b");
+        assertEquals("a", _associationStore.load(OP).getHandle());
+    }
+
+    public void testExpiryBoundsTtl() throws InterruptedException
+    {
+        _associationStore.save(OP, Association.generateHmacSha1("a", 1));
+        assertNotNull(_associationStore.load(OP, "a"));
+
+        Thread.sleep(1100);
+
+        assertNull(_associationStore.load(OP, "a"));
+    }
+
+    public void testInvalidation()
+    {
+        final List removed = new ArrayList();
+        CachingConsumerAssociationStore store =
+                (CachingConsumerAssociationStore) _associationStore;
+        store.setInvalidationListener(new AssociationInvalidationListener()
+        {
+            public void invalidated(String opUrl, String handle)
+            {
+                removed.add(opUrl + " " + handle);
+            }
+        });
+
+        store.save(OP, Association.generateHmacSha1("a", 60));
+        store.remove(OP, "a");
+        assertEquals(1, removed.size());
+        assertEquals(OP + " a", removed.get(0));
+
+        // removal on another node sharing the backend
+        store.save(OP, Association.generateHmacSha1("b", 60));
+        assertNotNull(store.load(OP, "b"));
+        _backend.remove(OP, "b");
+        assertNotNull(store.load(OP, "b"));
+
+        store.invalidate(OP, "b");
+        assertNull(store.load(OP, "b"));
+    }
+
+    private static class CountingStore extends InMemoryConsumerAssociationStore
+    {
+        private int _loads;
+
+        public synchronized Association load(String opUrl, String handle)
+        {
+            _loads++;
+            return super.load(opUrl, handle);
+        }
+
+        public synchronized Association load(String opUrl)
+        {
+            _loads++;
+            return super.load(opUrl);
+        }
+
+        public synchronized int getLoads()
+        {
+            return _loads;
+        }
+    }
+
+    private static class BlockingStore extends InMemoryConsumerAssociationStore
+    {
+        private final CountDownLatch _loading = new CountDownLatch(1);
+        private final CountDownLatch _release = new CountDownLatch(1);
+
+        public Association load(String opUrl)
+        {
+            Association association = super.load(opUrl);
+
+            _loading.countDown();
+            try
+            {
+                _release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            return association;
+        }
+
+        public void awaitLoad() throws InterruptedException
+        {
+            _loading.await();
+        }
+
+        public void releaseLoad()
+        {
+            _release.countDown();
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(CachingConsumerAssociationStoreTest.class);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationSessionType;
+import org.openid4java.association.DhKeyPairPool;
+import org.openid4java.association.DiffieHellmanSession;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.server.RealmVerifierFactory;
+import org.openid4java.server.ServerManager;
+import org.openid4java.util.HttpFetcherFactory;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class ConsumerAssociationTest extends TestCase
+{
+    private static final String OP_ENDPOINT = "http://op.example.com/server";
+
+    private ServerManager _server;
+    private InProcessOpFetcher _fetcher;
+    private ConsumerManager _manager;
+    private DhKeyPairPool _keyPairs;
+
+    public ConsumerAssociationTest(String name)
+    {
+        super(name);
+    }
+
+    public void setUp() throws Exception
+    {
+        _server = new ServerManager();
+        _server.setOPEndpointUrl(OP_ENDPOINT);
+
+        _fetcher = new InProcessOpFetcher(_server);
+
+        _manager = new ConsumerManager(
+                new RealmVerifierFactory(new YadisResolver(new HttpFetcherFactory())),
+                new Discovery(), _fetcher.getFactory());
+
+        // counts the DH key pairs generated by both parties
+        _keyPairs = new DhKeyPairPool(1);
+        _keyPairs.shutdown();
+        _keyPairs.removeParameter(DiffieHellmanSession.getDefaultParameter());
+        DiffieHellmanSession.setKeyPairPool(_keyPairs);
+    }
+
+    public void tearDown() throws Exception
+    {
+        DiffieHellmanSession.setKeyPairPool(null);
+    }
+
+    private List discoveries() throws Exception
+    {
+        List discoveries = new ArrayList();
+        discoveries.add(new DiscoveryInformation(new URL(OP_ENDPOINT)));
+        return discoveries;
+    }
+
+    private long keyPairCount()
+    {
+        return _keyPairs.getHits() + _keyPairs.getMisses();
+    }
+
+    public void testOnlyTriedSessionIsCreated() throws Exception
+    {
+        _manager.setPrefAssocSessEnc(AssociationSessionType.DH_SHA1);
+
+        _manager.associate(discoveries());
+
+        assertEquals(1, _fetcher.getRequestCount());
+        assertEquals("DH-SHA1", _fetcher.getSessionTypes().get(0));
+
+        // one key pair for the RP, one for the OP
+        assertEquals(2, keyPairCount());
+    }
+
+    public void testFallbackToOpSessionType() throws Exception
+    {
+        if (! DiffieHellmanSession.isDhSha256Supported()) return;
+
+        _manager.setPrefAssocSessEnc(AssociationSessionType.DH_SHA1);
+        _server.setMinAssocSessEnc(AssociationSessionType.DH_SHA256);
+        _server.setPrefAssocSessEnc(AssociationSessionType.DH_SHA256);
+
+        _manager.associate(discoveries());
+
+        assertEquals(2, _fetcher.getRequestCount());
+        assertEquals("DH-SHA1", _fetcher.getSessionTypes().get(0));
+        assertEquals("DH-SHA256", _fetcher.getSessionTypes().get(1));
+
+        // two attempts by the RP, one association created by the OP
+        assertEquals(3, keyPairCount());
+    }
+
+    public void testNoEncryptionNotEligibleOverHttp() throws Exception
+    {
+        _manager.setPrefAssocSessEnc(AssociationSessionType.NO_ENCRYPTION_SHA256MAC);
+        _manager.setMinAssocSessEnc(AssociationSessionType.NO_ENCRYPTION_SHA1MAC);
+
+        _manager.associate(discoveries());
+
+        assertFalse(_fetcher.getSessionTypes().contains("no-encryption"));
+    }
+
+    public void testConcurrentAssociationsSingleFlight() throws Exception
+    {
+        _fetcher.setDelay(500);
+
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Set handles = Collections.synchronizedSet(new HashSet());
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            workers[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        DiscoveryInformation discovered =
+                                _manager.associate(discoveries());
+                        Association assoc = _manager.getAssociations().load(
+                                discovered.getOPEndpoint().toString());
+                        handles.add(assoc != null ? assoc.getHandle() : null);
+                    }
+                    catch (Exception e)
+                    {
+                        handles.add(e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+
+        start.countDown();
+        for (int i = 0; i < threads; i++)
+            workers[i].join();
+
+        assertEquals(1, _fetcher.getRequestCount());
+        assertEquals(threads - 1, _manager.getSuppressedAssocAttempts());
+
+        // every thread sees the single association
+        assertEquals(1, handles.size());
+        assertNotNull(handles.iterator().next());
+        assertTrue(handles.iterator().next() instanceof String);
+    }
+
+    public void testWaitTimeout() throws Exception
+    {
+        _fetcher.setDelay(1000);
+        _manager.setAssocWaitTimeout(100);
+
+        Thread first = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    _manager.associate(discoveries());
+                }
+                catch (Exception e)
+                {
+                }
+            }
+        };
+        first.start();
+
+        while (_fetcher.getRequestCount() == 0)
+            Thread.sleep(10);
+
+        long start = System.currentTimeMillis();
+        _manager.associate(discoveries());
+        assertTrue(System.currentTimeMillis() - start < 900);
+
+        assertEquals(1, _manager.getSuppressedAssocAttempts());
+        assertEquals(1, _manager.getAssocWaitTimeouts());
+
+        first.join();
+        assertEquals(1, _fetcher.getRequestCount());
+    }
+
+    public void testNoWaitWhileRenewing() throws Exception
+    {
+        _manager.associate(discoveries());
+        final String handle = _manager.getAssociations().load(OP_ENDPOINT).getHandle();
+
+        // the current association is within the pre-expiry interval
+        _manager.setPreExpiryAssocLockInterval(Integer.MAX_VALUE / 1000);
+        _fetcher.setDelay(1000);
+
+        Thread renewal = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    _manager.associate(discoveries());
+                }
+                catch (Exception e)
+                {
+                }
+            }
+        };
+        renewal.start();
+
+        while (_fetcher.getRequestCount() < 2)
+            Thread.sleep(10);
+
+        long start = System.currentTimeMillis();
+        _manager.associate(discoveries());
+        assertTrue(System.currentTimeMillis() - start < 500);
+
+        assertEquals(handle, _manager.getAssociations().load(OP_ENDPOINT).getHandle());
+        assertEquals(1, _manager.getSuppressedAssocAttempts());
+        assertEquals(0, _manager.getAssocWaitTimeouts());
+
+        renewal.join();
+        assertEquals(2, _fetcher.getRequestCount());
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(ConsumerAssociationTest.class);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.openid4java.association.Association;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.Identifier;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.server.RealmVerifierFactory;
+import org.openid4java.server.ServerManager;
+import org.openid4java.util.HttpFetcherFactory;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DiscoveryWarmerTest extends TestCase
+{
+    private CountingDiscovery _discovery;
+    private DiscoveryWarmer _warmer;
+
+    public DiscoveryWarmerTest(String name)
+    {
+        super(name);
+    }
+
+    public void setUp() throws Exception
+    {
+        _discovery = new CountingDiscovery();
+
+        ConsumerManager manager = new ConsumerManager();
+        manager.setMaxAssocAttempts(0);
+        manager.setDiscovery(_discovery);
+
+        _warmer = new DiscoveryWarmer(manager);
+        _warmer.setMinHostInterval(0);
+    }
+
+    public void tearDown() throws Exception
+    {
+        _warmer.stop();
+    }
+
+    public void testConfiguredIdentifierIsWarmed() throws Exception
+    {
+        _warmer.addIdentifier("http://example.com/alice");
+
+        _warmer.warm();
+        assertEquals(1, _discovery.getCount("http://example.com/alice"));
+        assertEquals(1, _warmer.getRefreshCount());
+
+        List discoveries = _warmer.discover("HTTP://EXAMPLE.COM/alice");
+        assertEquals(1, discoveries.size());
+        assertEquals(1, _discovery.getCount("http://example.com/alice"));
+        assertEquals(1, _warmer.getHitCount());
+    }
+
+    public void testTopIdentifiersAreWarmed() throws Exception
+    {
+        _warmer.setTopN(1);
+
+        _warmer.discover("http://example.com/alice");
+        _warmer.discover("http://example.com/alice");
+        _warmer.discover("http://example.com/bob");
+        assertEquals(2, _discovery.getCount("http://example.com/alice"));
+
+        _warmer.warm();
+        assertEquals(3, _discovery.getCount("http://example.com/alice"));
+        assertEquals(1, _discovery.getCount("http://example.com/bob"));
+
+        _warmer.discover("http://example.com/alice");
+        assertEquals(3, _discovery.getCount("http://example.com/alice"));
+
+        _warmer.discover("http://example.com/bob");
+        assertEquals(2, _discovery.getCount("http://example.com/bob"));
+    }
+
+    public void testHostRateLimit() throws Exception
+    {
+        _warmer.setMinHostInterval(60000);
+        _warmer.addIdentifier("http://example.com/alice");
+        _warmer.addIdentifier("http://example.com/bob");
+        _warmer.addIdentifier("http://example.org/carol");
+
+        _warmer.warm();
+
+        assertEquals(2, _warmer.getRefreshCount());
+        assertEquals(1, _discovery.getCount("http://example.com/alice"));
+        assertEquals(0, _discovery.getCount("http://example.com/bob"));
+        assertEquals(1, _discovery.getCount("http://example.org/carol"));
+        assertTrue(_warmer.getSkippedCount() > 0);
+    }
+
+    public void testFailedRefresh() throws Exception
+    {
+        _warmer.addIdentifier("http://fail.example.com/");
+
+        _warmer.warm();
+
+        assertEquals(0, _warmer.getRefreshCount());
+        assertEquals(1, _warmer.getFailureCount());
+    }
+
+    public void testConsumerManagerUsesWarmer() throws Exception
+    {
+        ConsumerManager manager = _warmer.getConsumerManager();
+        manager.setDiscoveryWarmer(_warmer);
+
+        _warmer.addIdentifier("http://example.com/alice");
+        _warmer.warm();
+
+        assertEquals(1, manager.discover("http://example.com/alice").size());
+        assertEquals(1, _discovery.getCount("http://example.com/alice"));
+        assertEquals(1, _warmer.getHitCount());
+
+        try
+        {
+            manager.setDiscoveryWarmer(new DiscoveryWarmer(new ConsumerManager()));
+            fail("Warmer of another ConsumerManager should be rejected");
+        }
+        catch (IllegalArgumentException expected) { }
+    }
+
+    public void testAssociationRefresh() throws Exception
+    {
+        ServerManager server = new ServerManager();
+        server.setOPEndpointUrl(CountingDiscovery.OP_ENDPOINT);
+        InProcessOpFetcher fetcher = new InProcessOpFetcher(server);
+
+        ConsumerManager manager = new ConsumerManager(
+                new RealmVerifierFactory(new YadisResolver(new HttpFetcherFactory())),
+                _discovery, fetcher.getFactory());
+
+        DiscoveryWarmer warmer = new DiscoveryWarmer(manager);
+        warmer.setMinHostInterval(0);
+        warmer.addIdentifier("http://example.com/alice");
+
+        warmer.warm();
+        Association first = manager.getAssociations().load(CountingDiscovery.OP_ENDPOINT);
+        assertNotNull(first);
+        assertEquals(1, fetcher.getRequestCount());
+
+        // still fresh: not renewed
+        warmer.warm();
+        assertEquals(1, fetcher.getRequestCount());
+
+        // within the pre-expiry interval: renewed by the next run
+        manager.setPreExpiryAssocLockInterval(Integer.MAX_VALUE / 1000);
+        warmer.warm();
+        assertEquals(2, fetcher.getRequestCount());
+        assertFalse(first.getHandle().equals(manager.getAssociations()
+                .load(CountingDiscovery.OP_ENDPOINT).getHandle()));
+    }
+
+    private static class CountingDiscovery extends Discovery
+    {
+        static final String OP_ENDPOINT = "https://op.example.com/server";
+
+        private final Map _counts = new HashMap();
+
+        public CountingDiscovery()
+        {
+            super(null, null, null);
+        }
+
+        public synchronized List discover(Identifier identifier)
+                throws DiscoveryException
+        {
+            String id = identifier.getIdentifier();
+            Integer count = (Integer) _counts.get(id);
+            _counts.put(id, new Integer(count == null ? 1 : count.intValue() + 1));
+
+            if (id.startsWith("http://fail."))
+                throw new DiscoveryException("Discovery failed: " + id);
+
+            try
+            {
+                List result = new ArrayList();
+                result.add(new DiscoveryInformation(
+                        new URL(OP_ENDPOINT), identifier));
+                return result;
+            }
+            catch (java.net.MalformedURLException e)
+            {
+                throw new DiscoveryException(e.getMessage());
+            }
+        }
+
+        public synchronized int getCount(String identifier)
+        {
+            Integer count = (Integer) _counts.get(identifier);
+            return count == null ? 0 : count.intValue();
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(DiscoveryWarmerTest.class);
+    }
+}
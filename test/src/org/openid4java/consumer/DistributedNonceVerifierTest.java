@@ -0,0 +1,186 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+public class DistributedNonceVerifierTest extends AbstractNonceVerifierTest
+{
+    public DistributedNonceVerifierTest(String name)
+    {
+        super(name);
+    }
+
+    public NonceVerifier createVerifier(int maxAge)
+    {
+        return new DistributedNonceVerifier(
+                new BatchingNonceStore(new InMemoryNonceStore()), maxAge);
+    }
+
+    public void testSharedAcrossNodes()
+    {
+        InMemoryNonceStore store = new InMemoryNonceStore();
+        NonceVerifier node1 = new DistributedNonceVerifier(store, MAX_AGE);
+        NonceVerifier node2 = new DistributedNonceVerifier(store, MAX_AGE);
+
+        String nonce = _dateFormat.format(new Date()) + "abc";
+
+        assertEquals(NonceVerifier.OK, node1.seen("op1", nonce));
+        assertEquals(NonceVerifier.SEEN, node2.seen("op1", nonce));
+        assertEquals(NonceVerifier.OK, node2.seen("op2", nonce));
+    }
+
+    public void testTtl() throws InterruptedException
+    {
+        InMemoryNonceStore store = new InMemoryNonceStore();
+        DistributedNonceVerifier verifier = new DistributedNonceVerifier(store, 1);
+
+        long now = System.currentTimeMillis();
+
+        // kept while the nonce is within the max age
+        assertEquals(NonceVerifier.OK, verifier.seen(now, now, "op1", "abc"));
+        assertFalse(store.putIfAbsent(verifier.getKey("op1", "abc"), 1));
+
+        Thread.sleep(2100);
+
+        assertTrue(store.putIfAbsent(verifier.getKey("op1", "abc"), 1));
+    }
+
+    public void testStoreUnavailable()
+    {
+        NonceVerifier verifier = new DistributedNonceVerifier(new NonceStore()
+        {
+            public boolean putIfAbsent(String key, int ttl) throws IOException
+            {
+                throw new IOException("unavailable");
+            }
+
+            public boolean[] putIfAbsent(String[] keys, int[] ttls) throws IOException
+            {
+                throw new IOException("unavailable");
+            }
+        }, MAX_AGE);
+
+        String nonce = _dateFormat.format(new Date()) + "abc";
+
+        assertEquals(NonceVerifier.SEEN, verifier.seen("op1", nonce));
+    }
+
+    public void testConcurrentBatching() throws InterruptedException
+    {
+        final BatchingNonceStore store = (BatchingNonceStore)
+                ((DistributedNonceVerifier) _nonceVerifier).getStore();
+        final String timestamp = _dateFormat.format(new Date());
+        final List accepted = Collections.synchronizedList(new ArrayList());
+
+        // every thread verifies the same nonces
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    for (int j = 0; j < 500; j++)
+                        if (_nonceVerifier.seen("op1", timestamp + j) == NonceVerifier.OK)
+                            accepted.add(new Integer(j));
+                }
+            };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        assertEquals(500, accepted.size());
+        assertEquals(8 * 500, store.getRequests());
+        assertTrue(store.getBatches() <= store.getRequests());
+    }
+
+    public void testBatchCompletedOnError() throws InterruptedException
+    {
+        final BatchingNonceStore store = new BatchingNonceStore(new NonceStore()
+        {
+            private int _calls;
+
+            public boolean putIfAbsent(String key, int ttl)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            public boolean[] putIfAbsent(String[] keys, int[] ttls)
+            {
+                // the other calls queue up while the first batch is sent
+                if (_calls++ == 0)
+                {
+                    try
+                    {
+                        Thread.sleep(300);
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+
+                    return new boolean[keys.length];
+                }
+
+                throw new Error("store failure");
+            }
+        });
+
+        final List outcomes = Collections.synchronizedList(new ArrayList());
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int id = i;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        store.putIfAbsent("key" + id, 60);
+                        outcomes.add("done");
+                    }
+                    catch (IOException e)
+                    {
+                        outcomes.add("failed");
+                    }
+                    catch (Error e)
+                    {
+                        outcomes.add("error");
+                    }
+                }
+            };
+            threads[i].start();
+
+            if (i == 0) Thread.sleep(100);
+        }
+
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i].join(5000);
+            assertFalse("Caller hung", threads[i].isAlive());
+        }
+
+        assertEquals(2, store.getBatches());
+        assertTrue(outcomes.contains("done"));
+        assertTrue(outcomes.contains("error"));
+        assertEquals(2, Collections.frequency(outcomes, "failed"));
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(DistributedNonceVerifierTest.class);
+    }
+}
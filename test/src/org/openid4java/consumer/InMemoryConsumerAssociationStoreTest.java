@@ -6,6 +6,11 @@ package org.openid4java.consumer;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import org.openid4java.association.Association;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author Marius Scurtescu
@@ -30,6 +35,83 @@ public class InMemoryConsumerAssociationStoreTest extends ConsumerAssociationSto
         assertEquals(1, inMemoryAssociationStore.size());
     }
 
+    public void testLatestAssociation() throws InterruptedException
+    {
+        _associationStore.save("http://example.com", Association.generateHmacSha1("a", 60));
+        _associationStore.save("http://example.com", Association.generateHmacSha1("b", 1));
+        assertEquals("a", _associationStore.load("http://example.com").getHandle());
+
+        _associationStore.save("http://example.com", Association.generateHmacSha1("c", 120));
+        assertEquals("c", _associationStore.load("http://example.com").getHandle());
+
+        _associationStore.remove("http://example.com", "c");
+        assertEquals("a", _associationStore.load("http://example.com").getHandle());
+
+        _associationStore.remove("http://example.com", "a");
+        Thread.sleep(1100);
+        assertNull(_associationStore.load("http://example.com"));
+        assertNull(_associationStore.load("http://example.com", "b"));
+    }
+
+    /**
+     * Threads saving, loading and removing associations of their own OPs,
+     * while reading the other threads' OPs.
+     */
+    public void testConcurrentAccess() throws InterruptedException
+    {
+        final int threads = 8;
+        final int ops = 50;
+        final List errors = Collections.synchronizedList(new ArrayList());
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            workers[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int round = 0; round < 20; round++)
+                        {
+                            for (int i = 0; i < ops; i++)
+                            {
+                                String op = "http://op" + thread + "-" + i + ".example.com";
+                                String handle = "h" + round;
+
+                                _associationStore.save(op,
+                                        Association.generateHmacSha1(handle, 60 + round));
+
+                                Association latest = _associationStore.load(op);
+                                if (latest == null || ! handle.equals(latest.getHandle()))
+                                    errors.add("latest for " + op + ": " + latest);
+
+                                if (round > 0)
+                                    _associationStore.remove(op, "h" + (round - 1));
+
+                                _associationStore.load("http://op" + ((thread + 1) % threads)
+                                        + "-" + i + ".example.com", handle);
+                            }
+                        }
+                    }
+                    catch (RuntimeException e)
+                    {
+                        errors.add(e);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+
+        for (int t = 0; t < threads; t++)
+            workers[t].join();
+
+        assertEquals(errors.toString(), 0, errors.size());
+        assertEquals(threads * ops,
+                ((InMemoryConsumerAssociationStore) _associationStore).size());
+    }
+
     public static Test suite()
     {
         return new TestSuite(InMemoryConsumerAssociationStoreTest.class);
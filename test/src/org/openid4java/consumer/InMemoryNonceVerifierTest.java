@@ -7,6 +7,11 @@ package org.openid4java.consumer;
 import junit.framework.Test;
 import junit.framework.TestSuite;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
 /**
  * @author Marius Scurtescu, Johnny Bufu
  */
@@ -31,6 +36,62 @@ public class InMemoryNonceVerifierTest extends AbstractNonceVerifierTest
         assertEquals(1, inMemoryVerifier.size());
     }
 
+    public void testBucketExpiry()
+    {
+        InMemoryNonceVerifier verifier = new InMemoryNonceVerifier(10, 4);
+        long start = 1000000000000L;
+
+        for (int i = 0; i < 5; i++)
+            assertEquals(NonceVerifier.OK, verifier.seen(start, start,
+                    "http://op" + i + ".example.com", "abc"));
+        assertEquals(NonceVerifier.SEEN, verifier.seen(start + 9000, start,
+                "http://op0.example.com", "abc"));
+        assertEquals(5, verifier.size());
+
+        // still within the maximum age
+        verifier.seen(start + 10000, start + 10000,
+                "http://other.example.com", "abc");
+        assertEquals(6, verifier.size());
+
+        // the whole second is dropped once it ages, for all OPs
+        verifier.seen(start + 11000, start + 11000,
+                "http://other.example.com", "def");
+        assertEquals(2, verifier.size());
+    }
+
+    public void testConcurrentSeen() throws Exception
+    {
+        final InMemoryNonceVerifier verifier = (InMemoryNonceVerifier) _nonceVerifier;
+        final String nonce = _dateFormat.format(new Date());
+        final List accepted = Collections.synchronizedList(new ArrayList());
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    for (int j = 0; j < 500; j++)
+                    {
+                        String opUrl = "http://op" + (j % 50) + ".example.com";
+
+                        if (verifier.seen(opUrl, nonce + j) == NonceVerifier.OK)
+                            accepted.add(opUrl + nonce + j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        // every nonce is accepted exactly once
+        assertEquals(500, accepted.size());
+        assertEquals(500, verifier.size());
+    }
+
     public static Test suite()
     {
         return new TestSuite(InMemoryNonceVerifierTest.class);
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-JVM stand-in for memcached or Redis, answering the put-if-absent
+ * commands used by the nonce store adapters from an InMemoryNonceStore.
+ */
+public class InProcessKeyValueServer
+{
+    public static final int MEMCACHED = 0;
+    public static final int REDIS = 1;
+
+    private final int _protocol;
+    private final ServerSocket _serverSocket;
+    private final InMemoryNonceStore _store = new InMemoryNonceStore();
+    private final List _sockets = new ArrayList();
+
+    private int _connections;
+    private int _commands;
+    private volatile boolean _failing;
+
+    public InProcessKeyValueServer(int protocol) throws IOException
+    {
+        _protocol = protocol;
+        _serverSocket = new ServerSocket(0);
+
+        Thread acceptor = new Thread("InProcessKeyValueServer")
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        final Socket socket = _serverSocket.accept();
+                        synchronized (InProcessKeyValueServer.this)
+                        {
+                            _connections++;
+                            _sockets.add(socket);
+                        }
+
+                        Thread handler = new Thread()
+                        {
+                            public void run()
+                            {
+                                serve(socket);
+                            }
+                        };
+                        handler.setDaemon(true);
+                        handler.start();
+                    }
+                    catch (IOException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort()
+    {
+        return _serverSocket.getLocalPort();
+    }
+
+    public synchronized int getConnections()
+    {
+        return _connections;
+    }
+
+    public synchronized int getCommands()
+    {
+        return _commands;
+    }
+
+    /**
+     * Makes the server answer with error replies.
+     */
+    public void setFailing(boolean failing)
+    {
+        _failing = failing;
+    }
+
+    /**
+     * Closes the open connections, as if the server restarted.
+     */
+    public synchronized void dropConnections() throws IOException
+    {
+        for (int i = 0; i < _sockets.size(); i++)
+            ((Socket) _sockets.get(i)).close();
+
+        _sockets.clear();
+    }
+
+    public void close() throws IOException
+    {
+        _serverSocket.close();
+        dropConnections();
+    }
+
+    private void serve(Socket socket)
+    {
+        try
+        {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            while (true)
+            {
+                String key;
+                int ttl;
+
+                if (_protocol == MEMCACHED)
+                {
+                    // add <key> <flags> <exptime> <bytes>
+                    String[] command = SocketNonceStore.readLine(in).split(" ");
+                    SocketNonceStore.readLine(in);
+
+                    key = command[1];
+                    ttl = Integer.parseInt(command[3]);
+                }
+                else
+                {
+                    // *6 $3 SET $n key $1 1 $2 NX $2 EX $n ttl
+                    String[] args = new String[6];
+                    SocketNonceStore.readLine(in);
+                    for (int i = 0; i < args.length; i++)
+                    {
+                        SocketNonceStore.readLine(in);
+                        args[i] = SocketNonceStore.readLine(in);
+                    }
+
+                    key = args[1];
+                    ttl = Integer.parseInt(args[5]);
+                }
+
+                synchronized (this)
+                {
+                    _commands++;
+                }
+
+                String reply;
+                if (_failing)
+                    reply = _protocol == MEMCACHED ? "SERVER_ERROR out of memory" : "-ERR failing";
+                else if (_store.putIfAbsent(key, ttl))
+                    reply = _protocol == MEMCACHED ? "STORED" : "+OK";
+                else
+                    reply = _protocol == MEMCACHED ? "NOT_STORED" : "$-1";
+
+                SocketNonceStore.write(out, reply + "\r\n");
+
+                // replies to pipelined commands go out together
+                if (in.available() == 0)
+                    out.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            // connection closed
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import com.google.inject.Provider;
+import org.apache.http.Header;
+import org.openid4java.message.AssociationError;
+import org.openid4java.message.Message;
+import org.openid4java.message.ParameterList;
+import org.openid4java.server.ServerManager;
+import org.openid4java.util.AbstractHttpFetcher;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpFetcherFactory;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HttpFetcher that answers association requests (direct POSTs) with
+ * an in-process ServerManager, for testing association negotiation
+ * without a web server.
+ */
+public class InProcessOpFetcher extends AbstractHttpFetcher
+{
+    private final ServerManager _server;
+
+    // openid.session_type values of the received requests
+    private final List _sessionTypes = Collections.synchronizedList(new ArrayList());
+
+    private volatile long _delay;
+    private volatile boolean _failing;
+
+    public InProcessOpFetcher(ServerManager server)
+    {
+        _server = server;
+    }
+
+    public HttpFetcherFactory getFactory()
+    {
+        return new HttpFetcherFactory(new Provider<HttpFetcher>()
+        {
+            public HttpFetcher get()
+            {
+                return InProcessOpFetcher.this;
+            }
+        });
+    }
+
+    public List getSessionTypes()
+    {
+        return _sessionTypes;
+    }
+
+    public int getRequestCount()
+    {
+        return _sessionTypes.size();
+    }
+
+    /**
+     * Sets a delay (in milliseconds) applied to each request.
+     */
+    public void setDelay(long delay)
+    {
+        _delay = delay;
+    }
+
+    /**
+     * Makes the requests fail with an IOException, as if the OP were down.
+     */
+    public void setFailing(boolean failing)
+    {
+        _failing = failing;
+    }
+
+    public HttpResponse post(String url, Map<String, String> parameters,
+                             HttpRequestOptions requestOptions) throws IOException
+    {
+        if (_failing)
+            throw new IOException("OP unavailable: " + url);
+
+        ParameterList request = new ParameterList(parameters);
+        _sessionTypes.add(request.getParameterValue("openid.session_type"));
+
+        if (_delay > 0)
+        {
+            try
+            {
+                Thread.sleep(_delay);
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException("Interrupted");
+            }
+        }
+
+        Message response = _server.associationResponse(request);
+
+        return new Response(response instanceof AssociationError ? 400 : 200,
+                response.keyValueFormEncoding());
+    }
+
+    public HttpResponse get(String url, HttpRequestOptions requestOptions)
+            throws IOException
+    {
+        throw new IOException("GET not supported: " + url);
+    }
+
+    public HttpResponse head(String url, HttpRequestOptions requestOptions)
+            throws IOException
+    {
+        throw new IOException("HEAD not supported: " + url);
+    }
+
+    private static class Response implements HttpResponse
+    {
+        private final int _status;
+        private final String _body;
+
+        public Response(int status, String body)
+        {
+            _status = status;
+            _body = body;
+        }
+
+        public int getStatusCode()
+        {
+            return _status;
+        }
+
+        public String getFinalUri()
+        {
+            return null;
+        }
+
+        public Header getResponseHeader(String headerName)
+        {
+            return null;
+        }
+
+        public Header[] getResponseHeaders(String headerName)
+        {
+            return new Header[0];
+        }
+
+        public String getBody()
+        {
+            return _body;
+        }
+
+        public boolean isBodySizeExceeded()
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class JdbcNonceSchemaTest extends TestCase
+{
+    public JdbcNonceSchemaTest(String name)
+    {
+        super(name);
+    }
+
+    public void testForName()
+    {
+        assertSame(JdbcNonceSchema.MYSQL, JdbcNonceSchema.forName("MySQL"));
+        assertSame(JdbcNonceSchema.POSTGRESQL, JdbcNonceSchema.forName("postgresql"));
+        assertSame(JdbcNonceSchema.H2, JdbcNonceSchema.forName("h2"));
+
+        try
+        {
+            JdbcNonceSchema.forName("xyz");
+            fail("Should reject unknown dialects");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+
+    public void testCreateTable()
+    {
+        assertEquals("CREATE TABLE openid_nonce_123 (" +
+                     "opurl VARCHAR(255) NOT NULL, " +
+                     "nonce VARCHAR(255) NOT NULL, " +
+                     "date TIMESTAMP, PRIMARY KEY (opurl, nonce))",
+                     JdbcNonceSchema.HSQLDB.getCreateTableSql("openid_nonce_123"));
+
+        String mysql = JdbcNonceSchema.MYSQL.getCreateTableSql("openid_nonce");
+        assertTrue(mysql, mysql.indexOf("date DATETIME") > 0);
+        assertTrue(mysql, mysql.endsWith("ENGINE=InnoDB"));
+
+        assertEquals("DROP TABLE openid_nonce_123",
+                     JdbcNonceSchema.GENERIC.getDropTableSql("openid_nonce_123"));
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(JdbcNonceSchemaTest.class);
+    }
+}
@@ -7,8 +7,12 @@ import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 
 import javax.sql.DataSource;
 
+import org.openid4java.util.JdbcJanitor;
+
 public class JdbcNonceVerifierTest extends AbstractNonceVerifierTest {
 
+	private SimpleJdbcTemplate _jdbcTemplate;
+
 	public JdbcNonceVerifierTest(String name) {
 		super(name);
 	}
@@ -19,6 +23,7 @@ public class JdbcNonceVerifierTest extends AbstractNonceVerifierTest {
 				"org.hsqldb.jdbcDriver",
 				"jdbc:hsqldb:mem:saasstore_security_client", "sa", "", true);
 		SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+		_jdbcTemplate = jdbcTemplate;
 		jdbcTemplate.getJdbcOperations().execute(
 				"DROP TABLE IF EXISTS openid_nonce;");
 		jdbcTemplate
@@ -34,6 +39,51 @@ public class JdbcNonceVerifierTest extends AbstractNonceVerifierTest {
 		return jdbcNonceVerifier;
 	}
 
+	public void testJanitor() {
+		JdbcNonceVerifier verifier = (JdbcNonceVerifier) _nonceVerifier;
+		JdbcJanitor janitor = verifier.getJanitor();
+		janitor.setInterval(0);
+		janitor.setBatchSize(2);
+
+		String timestamp = _dateFormat.format(new java.util.Date());
+		for (int i = 0; i < 5; i++)
+			assertEquals(NonceVerifier.OK,
+					verifier.seen("http://example.com", timestamp + i));
+
+		// nothing aged yet
+		assertEquals(0, janitor.purge());
+
+		_jdbcTemplate.update("UPDATE openid_nonce SET date=?",
+				new Object[] { new java.util.Date(
+						System.currentTimeMillis() - 1000L * (MAX_AGE + 1)) });
+		assertEquals(NonceVerifier.OK,
+				verifier.seen("http://example.com", timestamp + "x"));
+
+		// deleted in batches of two, newer nonce kept
+		assertEquals(5, janitor.purge());
+		assertEquals(2, janitor.getRuns());
+		assertEquals(5, janitor.getRowsPurged());
+		assertEquals(1, _jdbcTemplate.queryForInt(
+				"SELECT COUNT(*) FROM openid_nonce"));
+	}
+
+	public void testShutdown() {
+		JdbcNonceVerifier verifier = (JdbcNonceVerifier) _nonceVerifier;
+		String timestamp = _dateFormat.format(new java.util.Date());
+
+		assertEquals(NonceVerifier.OK,
+				verifier.seen("http://example.com", timestamp + "a"));
+		assertTrue(verifier.getJanitor().isStarted());
+
+		verifier.shutdown();
+		assertFalse(verifier.getJanitor().isStarted());
+
+		// not restarted by later checks
+		assertEquals(NonceVerifier.OK,
+				verifier.seen("http://example.com", timestamp + "b"));
+		assertFalse(verifier.getJanitor().isStarted());
+	}
+
 	public static Test suite() {
 		return new TestSuite(JdbcNonceVerifierTest.class);
 	}
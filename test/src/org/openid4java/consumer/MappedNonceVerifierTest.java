@@ -0,0 +1,114 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+public class MappedNonceVerifierTest extends AbstractNonceVerifierTest
+{
+    private File _file;
+
+    public MappedNonceVerifierTest(String name)
+    {
+        super(name);
+    }
+
+    public NonceVerifier createVerifier(int maxAge)
+    {
+        try
+        {
+            close();
+
+            _file = File.createTempFile("nonces", ".map");
+            _file.delete();
+
+            return new MappedNonceVerifier(_file, maxAge, 1024);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void tearDown() throws Exception
+    {
+        close();
+
+        super.tearDown();
+    }
+
+    private void close() throws IOException
+    {
+        if (_nonceVerifier != null)
+            ((MappedNonceVerifier) _nonceVerifier).close();
+
+        if (_file != null)
+            _file.delete();
+    }
+
+    public void testNonceCleanup() throws Exception
+    {
+        super.testNonceCleanup();
+
+        MappedNonceVerifier mappedVerifier = (MappedNonceVerifier) _nonceVerifier;
+
+        assertEquals(1, mappedVerifier.size());
+    }
+
+    public void testRestart() throws IOException
+    {
+        String nonce = _dateFormat.format(new Date()) + "abc";
+
+        assertEquals(NonceVerifier.OK, _nonceVerifier.seen("op1", nonce));
+
+        // reopened with a different capacity, the file's one is kept
+        ((MappedNonceVerifier) _nonceVerifier).close();
+        MappedNonceVerifier reopened = new MappedNonceVerifier(_file, MAX_AGE, 64);
+        _nonceVerifier = reopened;
+
+        assertEquals(1024, reopened.getCapacity());
+        assertEquals(NonceVerifier.SEEN, reopened.seen("op1", nonce));
+        assertEquals(NonceVerifier.OK, reopened.seen("op2", nonce));
+    }
+
+    public void testSlotReuse() throws IOException
+    {
+        close();
+        _file = File.createTempFile("nonces", ".map");
+        _file.delete();
+
+        // a single stripe
+        MappedNonceVerifier verifier = new MappedNonceVerifier(_file, 10, 64);
+        _nonceVerifier = verifier;
+
+        long start = 1000000000000L;
+
+        for (int i = 0; i < 64; i++)
+            assertEquals(NonceVerifier.OK,
+                    verifier.seen(start, start, "http://example.com", "n" + i));
+
+        // full with live nonces
+        assertEquals(NonceVerifier.SEEN,
+                verifier.seen(start + 1000, start + 1000, "http://example.com", "x"));
+        assertEquals(1, verifier.getRejected());
+
+        // aged slots are reused, the replay window is kept for live ones
+        long later = start + 10001;
+        assertEquals(NonceVerifier.OK,
+                verifier.seen(later, later, "http://example.com", "x"));
+        assertEquals(NonceVerifier.SEEN,
+                verifier.seen(later, later, "http://example.com", "x"));
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(MappedNonceVerifierTest.class);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Runs the nonce verifier tests against the memcached adapter and an
+ * in-JVM stand-in server.
+ */
+public class MemcachedNonceStoreTest extends AbstractNonceVerifierTest
+{
+    private InProcessKeyValueServer _server;
+    private SocketNonceStore _store;
+
+    public MemcachedNonceStoreTest(String name)
+    {
+        super(name);
+    }
+
+    public NonceVerifier createVerifier(int maxAge)
+    {
+        try
+        {
+            if (_server == null)
+                _server = new InProcessKeyValueServer(getProtocol());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        if (_store != null)
+            _store.close();
+
+        _store = createStore(_server.getPort());
+
+        return new DistributedNonceVerifier(_store, maxAge);
+    }
+
+    protected int getProtocol()
+    {
+        return InProcessKeyValueServer.MEMCACHED;
+    }
+
+    protected SocketNonceStore createStore(int port)
+    {
+        return new MemcachedNonceStore("localhost", port);
+    }
+
+    public void tearDown() throws Exception
+    {
+        _store.close();
+        _server.close();
+
+        super.tearDown();
+    }
+
+    public void testPipelinedBatch() throws IOException
+    {
+        String[] keys = new String[] {"a", "b", "a", "c"};
+        int[] ttls = new int[] {60, 60, 60, 60};
+
+        boolean[] results = _store.putIfAbsent(keys, ttls);
+
+        assertTrue(results[0]);
+        assertTrue(results[1]);
+        assertFalse(results[2]);
+        assertTrue(results[3]);
+
+        assertEquals(1, _server.getConnections());
+        assertEquals(4, _server.getCommands());
+    }
+
+    public void testReconnect() throws IOException
+    {
+        String nonce = _dateFormat.format(new Date()) + "abc";
+        assertEquals(NonceVerifier.OK, _nonceVerifier.seen("op1", nonce));
+
+        _server.dropConnections();
+
+        // the dropped connection fails the call, the next one reconnects
+        assertEquals(NonceVerifier.SEEN, _nonceVerifier.seen("op2", nonce));
+        assertEquals(NonceVerifier.OK, _nonceVerifier.seen("op3", nonce));
+        assertEquals(NonceVerifier.SEEN, _nonceVerifier.seen("op1", nonce));
+        assertEquals(2, _server.getConnections());
+    }
+
+    public void testErrorReply()
+    {
+        _server.setFailing(true);
+
+        try
+        {
+            _store.putIfAbsent("a", 60);
+            fail("Error replies should fail the call");
+        }
+        catch (IOException e)
+        {
+        }
+
+        _server.setFailing(false);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(MemcachedNonceStoreTest.class);
+    }
+}
@@ -0,0 +1,76 @@
+package org.openid4java.consumer;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import javax.sql.DataSource;
+
+public class PartitionedJdbcNonceVerifierTest extends AbstractNonceVerifierTest {
+
+	private SimpleJdbcTemplate _jdbcTemplate;
+
+	public PartitionedJdbcNonceVerifierTest(String name) {
+		super(name);
+	}
+
+	@Override
+	public NonceVerifier createVerifier(int maxAge) {
+		DataSource dataSource = new SingleConnectionDataSource(
+				"org.hsqldb.jdbcDriver",
+				"jdbc:hsqldb:mem:partitioned_nonce", "sa", "", true);
+		_jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+
+		JdbcNonceVerifier jdbcNonceVerifier = new JdbcNonceVerifier(maxAge,
+				"openid_nonce");
+		jdbcNonceVerifier.setDataSource(dataSource);
+		jdbcNonceVerifier.setSchema(JdbcNonceSchema.HSQLDB);
+		jdbcNonceVerifier.setPartitionInterval(maxAge);
+		jdbcNonceVerifier.getJanitor().setInterval(0);
+		return jdbcNonceVerifier;
+	}
+
+	public void testPartitions() {
+		JdbcNonceVerifier verifier = (JdbcNonceVerifier) _nonceVerifier;
+
+		long now = System.currentTimeMillis();
+		long current = now / (1000L * MAX_AGE);
+		String nonce = _dateFormat.format(new java.util.Date(now)) + "partitions";
+
+		// the in-memory database is shared with the other tests
+		String count = "SELECT COUNT(*) FROM " + verifier.getPartitionName(current)
+				+ " WHERE opurl='op-partitions'";
+
+		assertEquals(NonceVerifier.OK, verifier.seen("op-partitions", nonce));
+		assertEquals(NonceVerifier.SEEN, verifier.seen("op-partitions", nonce));
+		assertEquals(1, _jdbcTemplate.queryForInt(count));
+
+		// beyond the next partition
+		String future = _dateFormat.format(new java.util.Date(
+				now + 3000L * MAX_AGE)) + "partitions";
+		assertEquals(NonceVerifier.INVALID_TIMESTAMP,
+				verifier.seen("op-partitions", future));
+
+		// aged partitions are dropped, the next one is created
+		String aged = verifier.getPartitionName(current - 2);
+		_jdbcTemplate.getJdbcOperations().execute(
+				JdbcNonceSchema.HSQLDB.getCreateTableSql(aged));
+		verifier.getJanitor().purge();
+
+		assertEquals(1, verifier.getPartitionsDropped());
+		assertEquals(0, _jdbcTemplate.queryForInt("SELECT COUNT(*) FROM "
+				+ verifier.getPartitionName(current + 1)));
+		assertEquals(1, _jdbcTemplate.queryForInt(count));
+		try {
+			_jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + aged);
+			fail("Aged partition should be dropped: " + aged);
+		} catch (org.springframework.dao.DataAccessException e) {
+		}
+	}
+
+	public static Test suite() {
+		return new TestSuite(PartitionedJdbcNonceVerifierTest.class);
+	}
+
+}
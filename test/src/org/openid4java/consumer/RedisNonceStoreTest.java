@@ -0,0 +1,35 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.consumer;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Runs the nonce verifier tests against the Redis adapter and an in-JVM
+ * stand-in server.
+ */
+public class RedisNonceStoreTest extends MemcachedNonceStoreTest
+{
+    public RedisNonceStoreTest(String name)
+    {
+        super(name);
+    }
+
+    protected int getProtocol()
+    {
+        return InProcessKeyValueServer.REDIS;
+    }
+
+    protected SocketNonceStore createStore(int port)
+    {
+        return new RedisNonceStore("localhost", port);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(RedisNonceStoreTest.class);
+    }
+}
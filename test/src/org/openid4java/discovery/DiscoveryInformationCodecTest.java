@@ -0,0 +1,197 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+
+public class DiscoveryInformationCodecTest extends TestCase
+{
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes();
+
+    private DiscoveryInformationCodec _codec;
+
+    public DiscoveryInformationCodecTest(String name)
+    {
+        super(name);
+    }
+
+    public void setUp() throws Exception
+    {
+        _codec = new DiscoveryInformationCodec();
+    }
+
+    private DiscoveryInformation urlDiscovery() throws Exception
+    {
+        Set types = new HashSet();
+        types.add(DiscoveryInformation.OPENID2);
+        types.add("http://openid.net/srv/ax/1.0");
+
+        return new DiscoveryInformation(
+                new URL("https://op.example.com/server"),
+                new UrlIdentifier("http://example.com/alice#frag"),
+                "http://alice.op.example.com/",
+                DiscoveryInformation.OPENID2, types);
+    }
+
+    private void assertSameDiscovery(DiscoveryInformation expected,
+                                     DiscoveryInformation actual)
+    {
+        assertEquals(expected.getOPEndpoint(), actual.getOPEndpoint());
+        assertEquals(expected.getClaimedIdentifier(), actual.getClaimedIdentifier());
+        assertEquals(expected.getDelegateIdentifier(), actual.getDelegateIdentifier());
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getTypes(), actual.getTypes());
+    }
+
+    public void testUrlRoundTrip() throws Exception
+    {
+        DiscoveryInformation discovered = urlDiscovery();
+
+        DiscoveryInformation decoded = _codec.decode(_codec.encode(discovered));
+
+        assertSameDiscovery(discovered, decoded);
+        assertTrue(decoded.getClaimedIdentifier() instanceof UrlIdentifier);
+    }
+
+    public void testXriRoundTrip() throws Exception
+    {
+        DiscoveryInformation discovered = new DiscoveryInformation(
+                new URL("https://op.example.com/server"),
+                new XriIdentifier("=alice", "xri://=alice", "xri://=alice"),
+                DiscoveryInformation.OPENID11);
+
+        DiscoveryInformation decoded = _codec.decode(_codec.encode(discovered));
+
+        assertSameDiscovery(discovered, decoded);
+        XriIdentifier xri = (XriIdentifier) decoded.getClaimedIdentifier();
+        assertEquals("xri://=alice", xri.toIRINormalForm());
+        assertEquals("xri://=alice", xri.toURINormalForm());
+    }
+
+    public void testOpEndpointOnly() throws Exception
+    {
+        DiscoveryInformation discovered =
+                new DiscoveryInformation(new URL("https://op.example.com/server"));
+
+        DiscoveryInformation decoded = _codec.decode(_codec.encode(discovered));
+
+        assertSameDiscovery(discovered, decoded);
+        assertFalse(decoded.hasClaimedIdentifier());
+        assertNull(decoded.getTypes());
+    }
+
+    public void testStringEncoding() throws Exception
+    {
+        DiscoveryInformation discovered = urlDiscovery();
+
+        String encoded = _codec.encodeToString(discovered);
+
+        for (int i = 0; i < encoded.length(); i++)
+        {
+            char c = encoded.charAt(i);
+            assertTrue("Not URL safe: " + c, Character.isLetterOrDigit(c)
+                    || c == '-' || c == '_');
+        }
+
+        assertSameDiscovery(discovered, _codec.decodeFromString(encoded));
+    }
+
+    public void testSmallerThanSerialization() throws Exception
+    {
+        DiscoveryInformation discovered = urlDiscovery();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(discovered);
+        out.close();
+
+        assertTrue(_codec.encode(discovered).length < bytes.size() / 4);
+    }
+
+    public void testIdentifierRoundTrip() throws Exception
+    {
+        Identifier url = new UrlIdentifier("http://example.com/bob");
+        assertEquals(url, _codec.decodeIdentifier(_codec.encode(url)));
+
+        Identifier xri = new XriIdentifier("=bob", "xri://=bob", "xri://=bob");
+        assertEquals("=bob", _codec.decodeIdentifierFromString(
+                _codec.encodeToString(xri)).getIdentifier());
+    }
+
+    public void testSigned() throws Exception
+    {
+        DiscoveryInformationCodec signer = new DiscoveryInformationCodec(KEY);
+        DiscoveryInformation discovered = urlDiscovery();
+
+        byte[] encoded = signer.encode(discovered);
+        assertSameDiscovery(discovered, signer.decode(encoded));
+
+        encoded[5] ^= 1;
+        try
+        {
+            signer.decode(encoded);
+            fail("Tampered data should not be decoded");
+        }
+        catch (DiscoveryException expected) { }
+
+        try
+        {
+            signer.decode(_codec.encode(discovered));
+            fail("Unsigned data should not be decoded");
+        }
+        catch (DiscoveryException expected) { }
+
+        try
+        {
+            new DiscoveryInformationCodec("0123456789abcdef0123456789abcdeX"
+                    .getBytes()).decodeFromString(signer.encodeToString(discovered));
+            fail("Data signed with another key should not be decoded");
+        }
+        catch (DiscoveryException expected) { }
+    }
+
+    public void testMalformed() throws Exception
+    {
+        byte[] encoded = _codec.encode(urlDiscovery());
+
+        byte[] truncated = new byte[encoded.length - 3];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+
+        try
+        {
+            _codec.decode(truncated);
+            fail("Truncated data should not be decoded");
+        }
+        catch (DiscoveryException expected) { }
+
+        encoded[0] = 99;
+        try
+        {
+            _codec.decode(encoded);
+            fail("Unknown version should not be decoded");
+        }
+        catch (DiscoveryException expected) { }
+
+        try
+        {
+            _codec.decodeFromString("not base64!");
+            fail("Invalid characters should not be decoded");
+        }
+        catch (DiscoveryException expected) { }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(DiscoveryInformationCodecTest.class);
+    }
+}
@@ -6,6 +6,8 @@ package org.openid4java.discovery;
 
 import junit.framework.TestCase;
 
+import java.net.URL;
+
 /**
  * @author Marius Scurtescu, Johnny Bufu
  */
@@ -75,4 +77,79 @@ public class NormalizationTest extends TestCase
         Identifier identifier = _discovery.parseIdentifier("http://example.com/#123");
         assertEquals("http://example.com/#123", identifier.getIdentifier());
     }
+
+    public void testFastPathMatchesUriNormalization() throws Exception
+    {
+        String[] identifiers = new String[] {
+            "HTTP://EXAMPLE.COM/",
+            "http://Example.Com:8080/A/B?Q=Z#END",
+            "https://example.com:443/%7euser/%2f%3d?a=%62&b=%2B",
+            "http://example.com/a/.hidden/b..c/",
+            "http://example.com/a?x=/../y#/./z",
+            "http://example.com#",
+            "http://example.com?",
+            "http://sub-domain.example.com:0080/~user/index.html",
+        };
+
+        for (int i = 0; i < identifiers.length; i++)
+        {
+            URL fast = UrlIdentifier.fastNormalize(identifiers[i], false);
+            assertNotNull(identifiers[i], fast);
+            assertEquals(identifiers[i],
+                    UrlIdentifier.uriNormalize(identifiers[i], false).toExternalForm(),
+                    fast.toExternalForm());
+
+            fast = UrlIdentifier.fastNormalize(identifiers[i], true);
+            assertEquals(identifiers[i],
+                    UrlIdentifier.uriNormalize(identifiers[i], true).toExternalForm(),
+                    fast.toExternalForm());
+        }
+    }
+
+    public void testFallbackToUriNormalization() throws Exception
+    {
+        String[] identifiers = new String[] {
+            "http://example.com//a/./b/../b/c/",
+            "http://user@example.com/",
+            "http://127.0.0.1/",
+            "http://[::1]/",
+            "http://example.com/a b",
+            "http://example.com/%zz",
+        };
+
+        for (int i = 0; i < identifiers.length; i++)
+            assertNull(identifiers[i],
+                    UrlIdentifier.fastNormalize(identifiers[i], false));
+    }
+
+    public void testEqualsAndHashCode() throws DiscoveryException
+    {
+        Identifier id1 = _discovery.parseIdentifier("HTTP://EXAMPLE.COM:80/%7Euser");
+        Identifier id2 = _discovery.parseIdentifier("http://example.com/~user");
+        Identifier id3 = _discovery.parseIdentifier("http://example.com:8080/~user");
+
+        assertEquals(id1, id2);
+        assertEquals(id1.hashCode(), id2.hashCode());
+        assertFalse(id1.equals(id3));
+    }
+
+    public void testInternCache() throws DiscoveryException
+    {
+        UrlIdentifier.setInternCacheSize(2);
+        try
+        {
+            URL url1 = UrlIdentifier.normalize("HTTP://EXAMPLE.COM/a#f", false);
+            assertSame(url1, UrlIdentifier.normalize("HTTP://EXAMPLE.COM/a#f", false));
+
+            URL url2 = UrlIdentifier.normalize("HTTP://EXAMPLE.COM/a#f", true);
+            assertEquals("http://example.com/a", url2.toExternalForm());
+
+            UrlIdentifier.normalize("http://example.com/b", false);
+            assertNotSame(url1, UrlIdentifier.normalize("HTTP://EXAMPLE.COM/a#f", false));
+        }
+        finally
+        {
+            UrlIdentifier.setInternCacheSize(0);
+        }
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery.xri;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.XriIdentifier;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class XriResolverCacheTest extends TestCase
+{
+    private XriResolverCache _cache;
+
+    public XriResolverCacheTest(String name)
+    {
+        super(name);
+    }
+
+    public void setUp() throws Exception
+    {
+        _cache = new XriResolverCache(2, 60);
+    }
+
+    private XriIdentifier xri(String name) throws DiscoveryException
+    {
+        return new XriIdentifier(name, name, name);
+    }
+
+    private List endpoints(String canonicalId)
+            throws DiscoveryException, MalformedURLException
+    {
+        List endpoints = new ArrayList();
+        endpoints.add(new DiscoveryInformation(new URL("https://op.example.com/"),
+                xri(canonicalId), DiscoveryInformation.OPENID2));
+        return endpoints;
+    }
+
+    public void testHitAndMiss() throws Exception
+    {
+        assertNull(_cache.get(xri("=alice")));
+
+        _cache.put(xri("=alice"), endpoints("=!1000"), null);
+
+        List cached = _cache.get(xri("=alice"));
+        assertNotNull(cached);
+        assertEquals(1, cached.size());
+        assertEquals("=!1000", ((DiscoveryInformation) cached.get(0))
+                .getClaimedIdentifier().getIdentifier());
+
+        assertEquals(1, _cache.getHits());
+        assertEquals(1, _cache.getMisses());
+    }
+
+    public void testReturnsCopy() throws Exception
+    {
+        _cache.put(xri("=alice"), endpoints("=!1000"), null);
+
+        _cache.get(xri("=alice")).clear();
+
+        assertEquals(1, _cache.get(xri("=alice")).size());
+    }
+
+    public void testExpires() throws Exception
+    {
+        _cache.put(xri("=alice"), endpoints("=!1000"),
+                new Date(System.currentTimeMillis() + 1000));
+        _cache.put(xri("=bob"), endpoints("=!2000"),
+                new Date(System.currentTimeMillis() - 1000));
+
+        assertNotNull(_cache.get(xri("=alice")));
+        assertNull(_cache.get(xri("=bob")));
+
+        Thread.sleep(1500);
+
+        assertNull(_cache.get(xri("=alice")));
+        assertEquals(1, _cache.getExpirations());
+        assertEquals(0, _cache.size());
+    }
+
+    public void testEviction() throws Exception
+    {
+        _cache.put(xri("=alice"), endpoints("=!1000"), null);
+        _cache.put(xri("=bob"), endpoints("=!2000"), null);
+
+        // touch alice, so that bob is the least recently used
+        assertNotNull(_cache.get(xri("=alice")));
+
+        _cache.put(xri("=carol"), endpoints("=!3000"), null);
+
+        assertEquals(2, _cache.size());
+        assertEquals(1, _cache.getEvictions());
+        assertNull(_cache.get(xri("=bob")));
+        assertNotNull(_cache.get(xri("=alice")));
+        assertNotNull(_cache.get(xri("=carol")));
+    }
+
+    public void testDisabled() throws Exception
+    {
+        _cache.setTtl(0);
+        _cache.put(xri("=alice"), endpoints("=!1000"), null);
+
+        assertNull(_cache.get(xri("=alice")));
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(XriResolverCacheTest.class);
+    }
+}
@@ -8,6 +8,13 @@ import junit.framework.Test;
 import junit.framework.TestSuite;
 import junit.framework.TestCase;
 
+import org.apache.commons.codec.binary.Base64;
+import org.openid4java.association.Association;
+
+import javax.crypto.Mac;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -121,4 +128,91 @@ public class MessageTest extends TestCase
         }
     }
 
+    public void testStreamedSignedText() throws Exception
+    {
+        Association assoc = Association.generate(
+                Association.TYPE_HMAC_SHA256, "handle", 100);
+
+        Mac mac = Mac.getInstance(Association.HMAC_SHA256_ALGORITHM);
+        mac.init(assoc.getMacKey());
+
+        String[] signLists = new String[] {
+                "mode,return_to", "mode,,return_to,,", ",,", "",
+                "mode,missing", "unicode"
+        };
+
+        for (int i = 0; i < signLists.length; i++)
+        {
+            ParameterList params = new ParameterList();
+            params.set(new Parameter("openid.mode", "id_res"));
+            params.set(new Parameter("openid.return_to", "http://example.com/?q=1"));
+            params.set(new Parameter("openid.sig", "ignored"));
+            params.set(new Parameter("openid.unicode", "caf\u00e9 \u20ac \ud834\udd1e"));
+            params.set(new Parameter("openid.signed", signLists[i]));
+
+            AuthSuccess authSuccess = new AuthSuccess(params);
+
+            String expected = new String(Base64.encodeBase64(mac.doFinal(
+                    authSuccess.getSignedText().getBytes("utf-8"))), "utf-8");
+
+            String signature = authSuccess.computeSignature(assoc);
+            assertEquals("signed: " + signLists[i], expected, signature);
+
+            authSuccess.setSignature(signature);
+            assertTrue(authSuccess.verifySignature(assoc));
+
+            authSuccess.setSignature(signature.substring(1) + "A");
+            assertFalse(authSuccess.verifySignature(assoc));
+        }
+    }
+
+    public void testConcurrentSignedText() throws Exception
+    {
+        final Association assoc = Association.generate(
+                Association.TYPE_HMAC_SHA1, "handle", 100);
+        final List failures = Collections.synchronizedList(new ArrayList());
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++)
+        {
+            final int id = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        ParameterList params = new ParameterList();
+                        params.set(new Parameter("openid.mode", "id_res"));
+                        params.set(new Parameter("openid.return_to",
+                                "http://example.com/?thread=" + id));
+                        params.set(new Parameter("openid.signed", "mode,return_to"));
+
+                        AuthSuccess authSuccess = new AuthSuccess(params);
+                        String expected = assoc.sign(authSuccess.getSignedText());
+
+                        for (int i = 0; i < 1000; i++)
+                        {
+                            String signature = authSuccess.computeSignature(assoc);
+                            authSuccess.setSignature(signature);
+
+                            if (! expected.equals(signature) ||
+                                    ! authSuccess.verifySignature(assoc))
+                                failures.add("Signature mismatch in thread " + id);
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        failures.add(e.toString());
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        for (int t = 0; t < threads.length; t++)
+            threads[t].join();
+
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.server;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.association.AssociationInvalidationListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class CachingServerAssociationStoreTest extends AbstractServerAssociationStoreTest
+{
+    private CountingStore _backend;
+
+    public CachingServerAssociationStoreTest(String name)
+    {
+        super(name);
+    }
+
+    public ServerAssociationStore createStore()
+    {
+        _backend = new CountingStore();
+        return new CachingServerAssociationStore(_backend);
+    }
+
+    public void testLoadsServedFromCache() throws AssociationException
+    {
+        Association association = _associationStore.generate(Association.TYPE_HMAC_SHA1, 60);
+
+        for (int i = 0; i < 5; i++)
+            assertSame(association, _associationStore.load(association.getHandle()));
+
+        assertEquals(0, _backend.getLoads());
+    }
+
+    public void testReadThrough() throws AssociationException
+    {
+        // generated on another node sharing the backend
+        Association association = _backend.generate(Association.TYPE_HMAC_SHA256, 60);
+
+        assertSame(association, _associationStore.load(association.getHandle()));
+        assertSame(association, _associationStore.load(association.getHandle()));
+        assertEquals(1, _backend.getLoads());
+
+        assertNull(_associationStore.load("unknown"));
+        assertNull(_associationStore.load("unknown"));
+        assertEquals(3, _backend.getLoads());
+    }
+
+    public void testLoadRacingRemove()
+            throws AssociationException, InterruptedException
+    {
+        final BlockingStore backend = new BlockingStore();
+        final CachingServerAssociationStore store =
+                new CachingServerAssociationStore(backend);
+
+        final String handle =
+                backend.generate(Association.TYPE_HMAC_SHA1, 60).getHandle();
+
+        // reads the association from the store, and caches it after it was removed
+        Thread loader = new Thread()
+        {
+            public void run()
+            {
+                store.load(handle);
+            }
+        };
+        loader.start();
+        backend.awaitLoad();
+
+        store.remove(handle);
+
+        backend.releaseLoad();
+        loader.join();
+
+        assertNull(store.load(handle));
+    }
+
+    public void testInvalidation() throws AssociationException
+    {
+        final List removed = new ArrayList();
+        CachingServerAssociationStore store =
+                (CachingServerAssociationStore) _associationStore;
+        store.setInvalidationListener(new AssociationInvalidationListener()
+        {
+            public void invalidated(String opUrl, String handle)
+            {
+                removed.add(handle);
+            }
+        });
+
+        String handle = store.generate(Association.TYPE_HMAC_SHA1, 60).getHandle();
+        store.remove(handle);
+        assertEquals(1, removed.size());
+        assertEquals(handle, removed.get(0));
+        assertNull(store.load(handle));
+
+        // removal on another node sharing the backend
+        handle = store.generate(Association.TYPE_HMAC_SHA1, 60).getHandle();
+        _backend.remove(handle);
+        assertNotNull(store.load(handle));
+
+        store.invalidate(handle);
+        assertNull(store.load(handle));
+    }
+
+    private static class CountingStore extends InMemoryServerAssociationStore
+    {
+        private int _loads;
+
+        public synchronized Association load(String handle)
+        {
+            _loads++;
+            return super.load(handle);
+        }
+
+        public synchronized int getLoads()
+        {
+            return _loads;
+        }
+    }
+
+    private static class BlockingStore extends InMemoryServerAssociationStore
+    {
+        private final CountDownLatch _loading = new CountDownLatch(1);
+        private final CountDownLatch _release = new CountDownLatch(1);
+
+        public Association load(String handle)
+        {
+            Association association = super.load(handle);
+
+            _loading.countDown();
+            try
+            {
+                _release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            return association;
+        }
+
+        public void awaitLoad() throws InterruptedException
+        {
+            _loading.await();
+        }
+
+        public void releaseLoad()
+        {
+            _release.countDown();
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(CachingServerAssociationStoreTest.class);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.server;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class ClusterNonceGeneratorTest extends AbstractNonceGeneratorTest
+{
+    public ClusterNonceGeneratorTest(String name)
+    {
+        super(name);
+    }
+
+    public NonceGenerator createGenerator()
+    {
+        return new ClusterNonceGenerator();
+    }
+
+    public void testNodeId()
+    {
+        ClusterNonceGenerator generator = new ClusterNonceGenerator("node1");
+        String nonce = generator.next();
+
+        assertEquals("node1.0", nonce.substring(20));
+
+        // random ids tell apart nodes started in the same second
+        assertFalse(new ClusterNonceGenerator().getNodeId().equals(
+                new ClusterNonceGenerator().getNodeId()));
+
+        try
+        {
+            new ClusterNonceGenerator("node.1");
+            fail("Node ids with '.' should be rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+
+    public void testUniqueConcurrent() throws InterruptedException
+    {
+        final List nonces = Collections.synchronizedList(new ArrayList());
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    List local = new ArrayList();
+                    for (int j = 0; j < 5000; j++)
+                        local.add(_nonceGenerator.next());
+                    nonces.addAll(local);
+                }
+            };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        assertEquals(8 * 5000, new HashSet(nonces).size());
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(ClusterNonceGeneratorTest.class);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.server;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+
+import java.util.Arrays;
+
+public class EncryptedHandleAssociationStoreTest extends AbstractServerAssociationStoreTest
+{
+    private static final byte[] SECRET1 = "0123456789abcdef0123456789abcdef".getBytes();
+    private static final byte[] SECRET2 = "fedcba9876543210fedcba9876543210".getBytes();
+
+    public EncryptedHandleAssociationStoreTest(String name)
+    {
+        super(name);
+    }
+
+    public ServerAssociationStore createStore()
+    {
+        return new EncryptedHandleAssociationStore("shared", "k1", SECRET1);
+    }
+
+    private static void assertSameAssociation(Association expected, Association actual)
+    {
+        assertNotNull(actual);
+        assertEquals(expected.getHandle(), actual.getHandle());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getExpiry(), actual.getExpiry());
+        assertTrue(Arrays.equals(expected.getMacKey().getEncoded(),
+                actual.getMacKey().getEncoded()));
+    }
+
+    /**
+     * Loaded associations are decrypted from the handle, so they are equal
+     * to, but not the same instances as, the generated ones.
+     */
+    public void testGenerate() throws AssociationException
+    {
+        Association association = _associationStore.generate(Association.TYPE_HMAC_SHA1, 60);
+        assertSameAssociation(association, _associationStore.load(association.getHandle()));
+        assertEquals(20, association.getMacKey().getEncoded().length);
+
+        association = _associationStore.generate(Association.TYPE_HMAC_SHA256, 60);
+        assertSameAssociation(association, _associationStore.load(association.getHandle()));
+        assertEquals(32, association.getMacKey().getEncoded().length);
+    }
+
+    public void testHandleFormat() throws AssociationException
+    {
+        String handle = _associationStore.generate(
+                Association.TYPE_HMAC_SHA256, 60).getHandle();
+
+        assertTrue(handle.startsWith("k1."));
+        assertTrue(handle.length() <= 255);
+
+        for (int i = 0; i < handle.length(); i++)
+            assertTrue(handle.charAt(i) >= 33 && handle.charAt(i) <= 126);
+    }
+
+    public void testTamperedHandle() throws AssociationException
+    {
+        String handle = _associationStore.generate(
+                Association.TYPE_HMAC_SHA1, 60).getHandle();
+
+        char[] chars = handle.toCharArray();
+        int i = chars.length / 2;
+        chars[i] = chars[i] == 'A' ? 'B' : 'A';
+
+        assertNull(_associationStore.load(new String(chars)));
+        assertNull(_associationStore.load("k2" + handle.substring(2)));
+        assertNull(_associationStore.load(handle.substring(0, handle.length() - 4)));
+    }
+
+    public void testOtherNode() throws AssociationException
+    {
+        Association association = _associationStore.generate(Association.TYPE_HMAC_SHA1, 60);
+
+        EncryptedHandleAssociationStore otherNode =
+                new EncryptedHandleAssociationStore("shared", "k1", SECRET1);
+        assertSameAssociation(association, otherNode.load(association.getHandle()));
+
+        // private and shared handles are not interchangeable
+        EncryptedHandleAssociationStore privateStore =
+                new EncryptedHandleAssociationStore("private", "k1", SECRET1);
+        assertNull(privateStore.load(association.getHandle()));
+    }
+
+    public void testKeyRollover() throws AssociationException
+    {
+        EncryptedHandleAssociationStore store =
+                (EncryptedHandleAssociationStore) _associationStore;
+
+        String oldHandle = store.generate(Association.TYPE_HMAC_SHA1, 60).getHandle();
+
+        store.addKey("k2", SECRET2);
+        assertEquals("k1", store.getActiveKeyId());
+        store.setActiveKey("k2");
+
+        String newHandle = store.generate(Association.TYPE_HMAC_SHA1, 60).getHandle();
+        assertTrue(newHandle.startsWith("k2."));
+
+        assertNotNull(store.load(oldHandle));
+        assertNotNull(store.load(newHandle));
+
+        store.removeKey("k1");
+        assertNull(store.load(oldHandle));
+        assertNotNull(store.load(newHandle));
+
+        try
+        {
+            store.removeKey("k2");
+            fail("Should not remove the active key");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+
+    public void testDenyList() throws AssociationException, InterruptedException
+    {
+        EncryptedHandleAssociationStore store =
+                (EncryptedHandleAssociationStore) _associationStore;
+
+        String handle = store.generate(Association.TYPE_HMAC_SHA1, 1).getHandle();
+        String other = store.generate(Association.TYPE_HMAC_SHA1, 60).getHandle();
+
+        store.remove(handle);
+        store.remove("xyz");
+        assertEquals(1, store.getDenyListSize());
+        assertNull(store.load(handle));
+        assertNotNull(store.load(other));
+
+        Thread.sleep(2000);
+        assertEquals(0, store.getDenyListSize());
+    }
+
+    public void testNonCanonicalHandle() throws AssociationException
+    {
+        String handle = _associationStore.generate(Association.TYPE_HMAC_SHA1, 60).getHandle();
+
+        String[] variants = new String[] {
+                handle.replaceFirst("\\.", ".!"), handle + "\n",
+                handle.replaceFirst("\\.", ". "), handle + "*"
+        };
+
+        for (int i = 0; i < variants.length; i++)
+            assertNull(variants[i], _associationStore.load(variants[i]));
+
+        _associationStore.remove(handle);
+        assertNull(_associationStore.load(handle));
+
+        for (int i = 0; i < variants.length; i++)
+            assertNull(variants[i], _associationStore.load(variants[i]));
+    }
+
+    public void testInvalidKeys()
+    {
+        try
+        {
+            new EncryptedHandleAssociationStore("shared", "k1", new byte[8]);
+            fail("Should reject short master keys");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+
+        try
+        {
+            new EncryptedHandleAssociationStore("shared", "k.1", SECRET1);
+            fail("Should reject key IDs containing separators");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(EncryptedHandleAssociationStoreTest.class);
+    }
+}
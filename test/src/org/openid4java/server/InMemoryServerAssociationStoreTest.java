@@ -6,8 +6,15 @@ package org.openid4java.server;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import org.openid4java.association.Association;
 import org.openid4java.association.AssociationException;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * @author Marius Scurtescu, Johnny Bufu
  */
@@ -32,6 +39,71 @@ public class InMemoryServerAssociationStoreTest extends AbstractServerAssociatio
         assertEquals(1, inMemoryAssociationStore.size());
     }
 
+    public void testMaxCapacity() throws AssociationException
+    {
+        InMemoryServerAssociationStore store = new InMemoryServerAssociationStore(3);
+
+        Association first = store.generate(Association.TYPE_HMAC_SHA1, 10);
+        Association longLived = store.generate(Association.TYPE_HMAC_SHA1, 600);
+        store.generate(Association.TYPE_HMAC_SHA1, 60);
+        assertEquals(0, store.getEvictions());
+
+        // the association expiring first is evicted
+        store.generate(Association.TYPE_HMAC_SHA1, 60);
+        assertEquals(3, store.size());
+        assertEquals(1, store.getEvictions());
+        assertNull(store.load(first.getHandle()));
+        assertSame(longLived, store.load(longLived.getHandle()));
+    }
+
+    public void testConcurrentGenerate() throws Exception
+    {
+        final InMemoryServerAssociationStore store =
+                (InMemoryServerAssociationStore) _associationStore;
+        final List handles = Collections.synchronizedList(new ArrayList());
+        final List errors = Collections.synchronizedList(new ArrayList());
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < 200; j++)
+                        {
+                            Association association =
+                                    store.generate(Association.TYPE_HMAC_SHA1, 60);
+                            handles.add(association.getHandle());
+
+                            if (store.load(association.getHandle()) != association)
+                                errors.add("not loaded: " + association.getHandle());
+
+                            if (j % 2 == 0)
+                                store.remove(association.getHandle());
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        assertEquals(errors.toString(), 0, errors.size());
+
+        Set unique = new HashSet(handles);
+        assertEquals(8 * 200, unique.size());
+        assertEquals(8 * 100, store.size());
+    }
+
     public static Test suite()
     {
         return new TestSuite(InMemoryServerAssociationStoreTest.class);
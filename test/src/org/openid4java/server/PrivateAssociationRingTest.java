@@ -0,0 +1,190 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.server;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.Message;
+import org.openid4java.message.ParameterList;
+import org.openid4java.message.VerifyRequest;
+import org.openid4java.message.VerifyResponse;
+
+public class PrivateAssociationRingTest extends TestCase
+{
+    private CountingStore _store;
+    private PrivateAssociationRing _ring;
+
+    public PrivateAssociationRingTest(String name)
+    {
+        super(name);
+    }
+
+    public void setUp() throws Exception
+    {
+        _store = new CountingStore();
+        _ring = new PrivateAssociationRing(_store);
+    }
+
+    public void testActiveAssociationReused() throws Exception
+    {
+        Association first = _ring.getAssociation(Association.TYPE_HMAC_SHA1);
+
+        for (int i = 0; i < 10; i++)
+            assertSame(first, _ring.getAssociation(Association.TYPE_HMAC_SHA1));
+
+        Association sha256 = _ring.getAssociation(Association.TYPE_HMAC_SHA256);
+        assertNotSame(first, sha256);
+        assertEquals(Association.TYPE_HMAC_SHA256, sha256.getType());
+
+        assertEquals(2, _store.getGenerated());
+        assertEquals(2, _ring.getRotations());
+    }
+
+    public void testRotation() throws Exception
+    {
+        _ring.setRotationInterval(1);
+        _ring.setGracePeriod(60);
+
+        Association first = _ring.getAssociation(Association.TYPE_HMAC_SHA1);
+
+        Thread.sleep(1100);
+
+        Association second = _ring.getAssociation(Association.TYPE_HMAC_SHA1);
+        assertNotSame(first, second);
+
+        // retired association still verifiable during the grace period
+        assertSame(first, _ring.load(first.getHandle()));
+        assertSame(second, _ring.load(second.getHandle()));
+
+        _ring.rotate();
+        assertNotSame(second, _ring.getAssociation(Association.TYPE_HMAC_SHA1));
+        assertEquals(3, _store.getGenerated());
+    }
+
+    public void testLoadFallsBackToStore() throws Exception
+    {
+        Association assoc = _store.generate(Association.TYPE_HMAC_SHA1, 60);
+
+        assertSame(assoc, _ring.load(assoc.getHandle()));
+        assertNull(_ring.load("unknown"));
+    }
+
+    public void testMarkVerified() throws Exception
+    {
+        Association assoc = _ring.getAssociation(Association.TYPE_HMAC_SHA1);
+
+        assertTrue(_ring.markVerified(assoc, "sig1"));
+        assertTrue(_ring.markVerified(assoc, "sig2"));
+        assertFalse(_ring.markVerified(assoc, "sig1"));
+        assertEquals(1, _ring.getReplays());
+    }
+
+    public void testVerifiedRecordBounded() throws Exception
+    {
+        _ring.setRotationInterval(1);
+        _ring.setGracePeriod(0);
+        _ring.setMaxVerified(3);
+
+        Association first = _ring.getAssociation(Association.TYPE_HMAC_SHA1);
+
+        for (int i = 0; i < 3; i++)
+            assertTrue(_ring.markVerified(first, "sig" + i));
+
+        // full: denied rather than forgetting verified signatures
+        assertFalse(_ring.markVerified(first, "sig3"));
+        assertEquals(1, _ring.getOverflows());
+        assertEquals(3, _ring.getVerifiedCount());
+
+        Thread.sleep(1100);
+
+        // the expired association's signatures are dropped together
+        Association second = _ring.getAssociation(Association.TYPE_HMAC_SHA1);
+        assertTrue(_ring.markVerified(second, "sig0"));
+        assertEquals(1, _ring.getVerifiedCount());
+        assertFalse(_ring.markVerified(second, "sig0"));
+    }
+
+    public void testServerManagerStateless() throws Exception
+    {
+        ServerManager manager = new ServerManager();
+        manager.setOPEndpointUrl("http://op.example.com/server");
+        manager.setPrivateAssociationRing(_ring);
+
+        assertSame(_store, manager.getPrivateAssociations());
+
+        String[] handles = new String[3];
+        AuthSuccess[] responses = new AuthSuccess[3];
+        for (int i = 0; i < 3; i++)
+        {
+            AuthRequest authReq = AuthRequest.createAuthRequest(
+                    "http://user.example.com/", "http://user.example.com/",
+                    false, "http://rp.example.com/return?i=" + i, null,
+                    manager.getRealmVerifier());
+
+            Message response = manager.authResponse(authReq, null, null, true);
+            assertTrue(response instanceof AuthSuccess);
+
+            responses[i] = (AuthSuccess) response;
+            handles[i] = responses[i].getHandle();
+        }
+
+        // one store write for all the responses
+        assertEquals(1, _store.getGenerated());
+        assertEquals(handles[0], handles[1]);
+        assertEquals(handles[0], handles[2]);
+
+        for (int i = 0; i < 3; i++)
+            assertTrue(verify(manager, responses[i]));
+
+        // each signature can be verified only once
+        assertFalse(verify(manager, responses[1]));
+        assertEquals(1, _ring.getReplays());
+
+        // a tampered response does not verify
+        responses[0].setReturnTo("http://evil.example.com/return");
+        assertFalse(verify(manager, responses[0]));
+    }
+
+    private boolean verify(ServerManager manager, AuthSuccess authSuccess)
+            throws Exception
+    {
+        VerifyRequest vrfyReq = VerifyRequest.createVerifyRequest(authSuccess);
+
+        Message response = manager.verify(
+                new ParameterList(vrfyReq.getParameterMap()));
+
+        assertTrue(response instanceof VerifyResponse);
+
+        return ((VerifyResponse) response).isSignatureVerified();
+    }
+
+    private static class CountingStore extends InMemoryServerAssociationStore
+    {
+        private int _generated;
+
+        public synchronized Association generate(String type, int expiryIn)
+                throws AssociationException
+        {
+            _generated++;
+            return super.generate(type, expiryIn);
+        }
+
+        public synchronized int getGenerated()
+        {
+            return _generated;
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(PrivateAssociationRingTest.class);
+    }
+}
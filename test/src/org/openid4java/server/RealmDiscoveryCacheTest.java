@@ -0,0 +1,213 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.server;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.util.HttpFetcherFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RealmDiscoveryCacheTest extends TestCase
+{
+    private CountingYadisResolver _resolver;
+    private RealmDiscoveryCache _cache;
+
+    public RealmDiscoveryCacheTest(String name)
+    {
+        super(name);
+    }
+
+    public void setUp() throws Exception
+    {
+        _resolver = new CountingYadisResolver();
+        _cache = new RealmDiscoveryCache(_resolver);
+        _cache.setRefreshAhead(0);
+    }
+
+    public void tearDown() throws Exception
+    {
+        _cache.shutdown();
+    }
+
+    public void testHit() throws Exception
+    {
+        List endpoints = _cache.discover("http://rp.example.com/");
+        assertEquals(1, endpoints.size());
+
+        endpoints = _cache.discover("http://rp.example.com/");
+        assertEquals(1, endpoints.size());
+
+        assertEquals(1, _resolver.getCount());
+        assertEquals(1, _cache.getHits());
+        assertEquals(1, _cache.getMisses());
+    }
+
+    public void testNegativeCaching() throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            try
+            {
+                _cache.discover("http://fail.example.com/");
+                fail("Discovery should have failed");
+            }
+            catch (DiscoveryException expected)
+            {
+                assertEquals(CountingYadisResolver.ERROR_CODE,
+                        expected.getErrorCode());
+            }
+        }
+
+        assertEquals(1, _resolver.getCount());
+        assertEquals(2, _cache.getNegativeHits());
+    }
+
+    public void testExpiry() throws Exception
+    {
+        _cache.setTtl(1);
+
+        _cache.discover("http://rp.example.com/");
+        Thread.sleep(1100);
+        _cache.discover("http://rp.example.com/");
+
+        assertEquals(2, _resolver.getCount());
+    }
+
+    public void testEviction() throws Exception
+    {
+        _cache.setMaxSize(2);
+
+        _cache.discover("http://a.example.com/");
+        _cache.discover("http://b.example.com/");
+        _cache.discover("http://a.example.com/");
+        _cache.discover("http://c.example.com/");
+
+        assertEquals(2, _cache.size());
+        assertEquals(1, _cache.getEvictions());
+
+        _cache.discover("http://a.example.com/");
+        assertEquals(3, _resolver.getCount());
+
+        _cache.discover("http://b.example.com/");
+        assertEquals(4, _resolver.getCount());
+    }
+
+    public void testBackgroundRefresh() throws Exception
+    {
+        _cache.setTtl(60);
+        _cache.setRefreshAhead(60);
+
+        _cache.discover("http://rp.example.com/");
+        _cache.discover("http://rp.example.com/");
+
+        for (int i = 0; i < 50 && _cache.getRefreshes() == 0; i++)
+            Thread.sleep(100);
+
+        assertEquals(1, _cache.getRefreshes());
+        assertEquals(2, _resolver.getCount());
+        assertEquals(1, _cache.getHits());
+    }
+
+    public void testFailedRefreshBacksOff() throws Exception
+    {
+        _cache.setTtl(60);
+        _cache.setRefreshAhead(60);
+        _cache.setNegativeTtl(60);
+
+        _cache.discover("http://rp.example.com/");
+        _resolver.setFailing(true);
+
+        _cache.discover("http://rp.example.com/");
+
+        for (int i = 0; i < 50 && _cache.getRefreshFailures() == 0; i++)
+            Thread.sleep(100);
+
+        // still served from the cache, without queueing more refreshes
+        for (int i = 0; i < 10; i++)
+            assertEquals(1, _cache.discover("http://rp.example.com/").size());
+
+        Thread.sleep(200);
+
+        assertEquals(1, _cache.getRefreshFailures());
+        assertEquals(2, _resolver.getCount());
+    }
+
+    public void testRealmVerifierUsesCache() throws Exception
+    {
+        RealmVerifier verifier = new RealmVerifier(true, _resolver);
+        verifier.getRpDiscoveryCache().setRefreshAhead(0);
+
+        assertEquals(RealmVerifier.OK, verifier.validate(
+                "http://rp.example.com/", "http://rp.example.com/return"));
+        assertEquals(RealmVerifier.OK, verifier.validate(
+                "http://rp.example.com/", "http://rp.example.com/return"));
+        assertEquals(1, _resolver.getCount());
+
+        verifier.setRpDiscoveryCache(null);
+        assertEquals(RealmVerifier.OK, verifier.validate(
+                "http://rp.example.com/", "http://rp.example.com/return"));
+        assertEquals(2, _resolver.getCount());
+    }
+
+    private static class CountingYadisResolver extends YadisResolver
+    {
+        static final int ERROR_CODE = 1234;
+
+        private int _count;
+        private volatile boolean _failing;
+
+        public CountingYadisResolver()
+        {
+            super(new HttpFetcherFactory());
+        }
+
+        public List discoverRP(String url) throws DiscoveryException
+        {
+            synchronized (this)
+            {
+                _count++;
+            }
+
+            if (_failing || url.startsWith("http://fail."))
+                throw new DiscoveryException("RP discovery failed: " + url,
+                        ERROR_CODE);
+
+            try
+            {
+                List result = new ArrayList();
+                result.add(new DiscoveryInformation(new URL(url),
+                        null, DiscoveryInformation.OPENID2_RP));
+                return result;
+            }
+            catch (MalformedURLException e)
+            {
+                throw new DiscoveryException(e.getMessage());
+            }
+        }
+
+        public synchronized int getCount()
+        {
+            return _count;
+        }
+
+        public void setFailing(boolean failing)
+        {
+            _failing = failing;
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(RealmDiscoveryCacheTest.class);
+    }
+}
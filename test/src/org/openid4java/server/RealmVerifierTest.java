@@ -66,7 +66,7 @@ public class RealmVerifierTest extends TestCase
         _realmVerifier = new RealmVerifier(false, new YadisResolver(new HttpFetcherFactory()));
     }
 
-    public void testXmlFile() throws IOException, JDOMException
+    private List loadTests() throws IOException, JDOMException
     {
         InputStream in = new BufferedInputStream(
                 new FileInputStream(_testDataPath + "/server/" + TEST_DATA_FILE));
@@ -76,7 +76,11 @@ public class RealmVerifierTest extends TestCase
         SAXBuilder saxBuilder = new SAXBuilder();
         Document document = saxBuilder.build(in);
         Element testSuite = document.getRootElement();
-        List tests = testSuite.getChildren("test");
+        return testSuite.getChildren("test");
+    }
+
+    private void verifyTests(List tests)
+    {
         for (int i = 0; i < tests.size(); i++)
         {
             Element test = (Element) tests.get(i);
@@ -95,6 +99,42 @@ public class RealmVerifierTest extends TestCase
         }
     }
 
+    public void testXmlFile() throws IOException, JDOMException
+    {
+        verifyTests(loadTests());
+    }
+
+    public void testXmlFileUncached() throws IOException, JDOMException
+    {
+        _realmVerifier.setMatcherCacheSize(0);
+
+        verifyTests(loadTests());
+    }
+
+    /**
+     * Repeated passes over the test data are answered from the compiled
+     * realms; they must not change the outcome.
+     */
+    public void testXmlFileRepeated() throws IOException, JDOMException
+    {
+        List tests = loadTests();
+
+        for (int pass = 0; pass < 100; pass++)
+            verifyTests(tests);
+    }
+
+    public void testDeniedRealmDomainClearsCache()
+    {
+        String realm = "http://*.example.com/";
+        String returnTo = "http://www.example.com/return";
+
+        assertEquals(RealmVerifier.OK, _realmVerifier.match(realm, returnTo));
+
+        _realmVerifier.addDeniedRealmDomain("\\*\\.example\\.com");
+
+        assertEquals(RealmVerifier.DENIED_REALM, _realmVerifier.match(realm, returnTo));
+    }
+
     public static Test suite()
     {
         return new TestSuite(RealmVerifierTest.class);
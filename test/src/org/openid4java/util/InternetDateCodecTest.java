@@ -0,0 +1,92 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+import java.util.Date;
+import java.util.Random;
+import java.text.ParseException;
+
+public class InternetDateCodecTest extends TestCase
+{
+    InternetDateFormat _dateFormat;
+
+    public InternetDateCodecTest(String name)
+    {
+        super(name);
+    }
+
+    protected void setUp() throws Exception
+    {
+        _dateFormat = new InternetDateFormat();
+    }
+
+    public void testFormat()
+    {
+        assertEquals("1970-01-01T00:00:00Z", InternetDateCodec.format(new Date(0)));
+        assertEquals("1969-12-31T23:59:59Z", InternetDateCodec.format(-1));
+        assertEquals("2000-02-29T12:34:56Z", InternetDateCodec.format(951827696789L));
+    }
+
+    public void testParse() throws ParseException
+    {
+        assertEquals(0, InternetDateCodec.parseSeconds("1970-01-01T00:00:00Z"));
+        assertEquals(0, InternetDateCodec.parseSeconds("1970-01-01t00:00:00z"));
+        assertEquals(1183068918, InternetDateCodec.parseSeconds("2007-06-28T22:15:18Zabc"));
+
+        // leap second rolls over
+        assertEquals(InternetDateCodec.parseSeconds("2008-12-31T23:59:59Z") + 1,
+                InternetDateCodec.parseSeconds("2008-12-31T23:59:60Z"));
+    }
+
+    public void testParseInvalid()
+    {
+        String[] invalid = new String[] {
+                null, "", "xyz", "1970-01-01T00:00:00", "1970-01-01 00:00:00Z",
+                "1970/01/01T00:00:00Z", "1970-13-01T00:00:00Z",
+                "1970-00-01T00:00:00Z", "1970-04-31T00:00:00Z",
+                "1900-02-29T00:00:00Z", "1970-01-01T24:00:00Z",
+                "1970-01-01T00:60:00Z", "1970-01-01T00:00:61Z",
+                "197O-01-01T00:00:00Z", "+970-01-01T00:00:00Z"};
+
+        for (int i = 0; i < invalid.length; i++)
+        {
+            try
+            {
+                InternetDateCodec.parseSeconds(invalid[i]);
+                fail("Should not parse: " + invalid[i]);
+            }
+            catch (ParseException e)
+            {
+            }
+        }
+    }
+
+    public void testMatchesInternetDateFormat() throws ParseException
+    {
+        Random random = new Random(42);
+
+        for (int i = 0; i < 10000; i++)
+        {
+            // 1900 to 2100
+            long millis = (long) ((random.nextDouble() - 0.35) * 6.3e12);
+            Date date = new Date(millis);
+
+            String formatted = _dateFormat.format(date);
+            assertEquals(formatted, InternetDateCodec.format(millis));
+
+            assertEquals(formatted, _dateFormat.parse(formatted).getTime(),
+                    InternetDateCodec.parseSeconds(formatted) * 1000);
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(InternetDateCodecTest.class);
+    }
+}